@@ -22,9 +22,11 @@
 
 package benchmarks;
 
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.util.BytesRef;
 import org.rsankar.lucenecodecs.field.IndexedLongField;
 import org.rsankar.lucenecodecs.mapcodec.MapPostingsFormat;
+import org.rsankar.lucenecodecs.termmap.TermMapType;
 
 public class BenchmarkFormat extends MapPostingsFormat {
   /*
@@ -33,13 +35,80 @@ public class BenchmarkFormat extends MapPostingsFormat {
    * fingerprint
    */
 
+  // Map layout to index with, e.g. -Dmap.type=PERFECT_HASH. Reading doesn't
+  // depend on it since the layout is recorded per field.
+  private static final TermMapType MAP_TYPE = TermMapType
+      .valueOf(System.getProperty("map.type", TermMapType.ROBIN_HOOD.name()));
+
+  // Pulsing threshold to index with, e.g. -Dpulsing.threshold=8
+  private static final int PULSING_THRESHOLD = Integer
+      .getInteger("pulsing.threshold", DEFAULT_PULSING_THRESHOLD);
+
+  // Largest fields written as a sorted array, e.g. -Dsorted.array.max.terms=0
+  private static final int SORTED_ARRAY_MAX_TERMS = Integer
+      .getInteger("sorted.array.max.terms", DEFAULT_SORTED_ARRAY_MAX_TERMS);
+
+  // Parameter analysis limits, e.g. -Danalysis.max.candidates=64 or
+  // -Danalysis.budget.millis=10000
+  private static final int ANALYSIS_MAX_CANDIDATES = Integer
+      .getInteger("analysis.max.candidates", DEFAULT_PARAMETER_ANALYSIS_MAX_CANDIDATES);
+  private static final long ANALYSIS_BUDGET_MILLIS = Long.getLong("analysis.budget.millis", 0);
+
+  // Whether Robin Hood maps keep full fingerprints, e.g. -Dfull.fingerprints=true
+  private static final boolean FULL_FINGERPRINTS = Boolean.getBoolean("full.fingerprints");
+
+  // Whether to write skip filters, e.g. -Dskip.filter=true
+  private static final boolean SKIP_FILTER = Boolean.getBoolean("skip.filter");
+
+  // Whether to also write a terms dictionary, e.g. -Dterms.dictionary=true
+  private static final boolean TERMS_DICTIONARY = Boolean.getBoolean("terms.dictionary");
+
   public BenchmarkFormat() {
-    super("BenchmarkFormat");
+    super("BenchmarkFormat", Residency.OFF_HEAP, PULSING_THRESHOLD);
+  }
+
+  @Override
+  public TermMapType getTermMapType(FieldInfo fieldInfo) {
+    return MAP_TYPE;
+  }
+
+  @Override
+  public int sortedArrayMaxTerms(FieldInfo fieldInfo) {
+    return SORTED_ARRAY_MAX_TERMS;
+  }
+
+  @Override
+  public int parameterAnalysisMaxCandidates(FieldInfo fieldInfo) {
+    return ANALYSIS_MAX_CANDIDATES;
+  }
+
+  @Override
+  public long parameterAnalysisBudgetMillis(FieldInfo fieldInfo) {
+    return ANALYSIS_BUDGET_MILLIS;
+  }
+
+  @Override
+  public boolean usesFullFingerprints(FieldInfo fieldInfo) {
+    return FULL_FINGERPRINTS;
+  }
+
+  @Override
+  public boolean usesSkipFilter(FieldInfo fieldInfo) {
+    return SKIP_FILTER;
+  }
+
+  @Override
+  public boolean usesTermsDictionary(FieldInfo fieldInfo) {
+    return TERMS_DICTIONARY;
   }
 
   @Override
   public long getFingerprint(BytesRef text) {
-    long val = IndexedLongField.BytesRefToLong(text);
+    return getFingerprint(IndexedLongField.BytesRefToLong(text));
+  }
+
+  @Override
+  public long getFingerprint(long val) {
     return (val >>> 18) & 0x3ffffffffL;
   }
 }
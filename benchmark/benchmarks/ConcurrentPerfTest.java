@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.FSDirectory;
+import org.rsankar.lucenecodecs.field.IndexedLongField;
+
+/**
+ * Runs the PerfTest queries against one shared IndexSearcher from 1, 2, 4, ...
+ * threads (up to the number of cores) and prints the throughput of each run.
+ * Lookups share no mutable state, so QPS should grow with the thread count.
+ */
+public class ConcurrentPerfTest {
+
+  static final int QUERIES_PER_THREAD = 50000;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 1 || (!(args[0].equals("map") || args[0].equals("default")))) {
+      System.out.println("USAGE: benchmarks.ConcurrentPerfTest [map/default]");
+      return;
+    }
+
+    String indexPath = "benchmark/data/index/data1000000/" + args[0];
+    String docsPath = "benchmark/data/docs/data1000000";
+
+    List<Query> queries = loadQueries(docsPath);
+
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)));
+    IndexSearcher searcher = new IndexSearcher(reader);
+
+    // Warm up the searcher and the page cache before measuring
+    runThreads(searcher, queries, 1);
+
+    int cores = Runtime.getRuntime().availableProcessors();
+    for (int threads = 1;; threads *= 2) {
+      threads = Math.min(threads, cores);
+      long elapsed = runThreads(searcher, queries, threads);
+      double qps = (double) threads * QUERIES_PER_THREAD / (elapsed / 1000000000.0);
+      System.out.println("threads: " + threads + ", elapsed: " + elapsed + ", qps: "
+          + (long) qps);
+      if (threads == cores) {
+        break;
+      }
+    }
+    reader.close();
+  }
+
+  static List<Query> loadQueries(String docsPath) throws IOException {
+    Set<Long> terms = new HashSet<>();
+    BufferedReader br = new BufferedReader(new FileReader(docsPath));
+    String line;
+    while ((line = br.readLine()) != null) {
+      StringTokenizer strtok = new StringTokenizer(line);
+      while (strtok.hasMoreTokens()) {
+        terms.add(Long.parseLong(strtok.nextToken(), 16));
+      }
+    }
+    br.close();
+
+    List<Query> queries = new ArrayList<>();
+    for (long term : terms) {
+      Term t = new Term("longs", IndexedLongField.longToBytesRef(term));
+      queries.add(new ConstantScoreQuery(new TermQuery(t)));
+    }
+    Collections.shuffle(queries, new Random(0));
+    return queries;
+  }
+
+  // Returns the wall-clock time (ns) for every thread to finish its queries
+  static long runThreads(IndexSearcher searcher, List<Query> queries, int numThreads)
+      throws InterruptedException {
+    CountDownLatch start = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(numThreads);
+    AtomicLong hits = new AtomicLong();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < numThreads; ++t) {
+      final int offset = t * (queries.size() / numThreads);
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+          long count = 0;
+          for (int i = 0; i < QUERIES_PER_THREAD; ++i) {
+            count += searcher.count(queries.get((offset + i) % queries.size()));
+          }
+          hits.addAndGet(count);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        } finally {
+          done.countDown();
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    long startTime = System.nanoTime();
+    start.countDown();
+    done.await();
+    long elapsed = System.nanoTime() - startTime;
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    return elapsed;
+  }
+}
@@ -26,6 +26,8 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.apache.lucene.codecs.PostingsFormat;
 import org.apache.lucene.codecs.lucene50.Lucene50PostingsFormat;
@@ -33,11 +35,16 @@ import org.apache.lucene.codecs.lucene80.Lucene80Codec;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexFileNames;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Terms;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.rsankar.lucenecodecs.field.IndexedLongField;
+import org.rsankar.lucenecodecs.mapcodec.MapFieldsReader.MapTerms;
 
 public final class Index {
 
@@ -80,11 +87,46 @@ public final class Index {
       // Merge all segments into one
       // writer.forceMerge(1);
       writer.close();
+      printSizes(dir);
     } catch (IOException e) {
       System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
     }
   }
 
+  // Prints the bytes taken by each kind of index file, and how many of the .fde
+  // bytes of the map fields are their fingerprint lists
+  static void printSizes(Directory dir) throws IOException {
+    Map<String, Long> sizes = new TreeMap<>();
+    long total = 0;
+    for (String file : dir.listAll()) {
+      String extension = IndexFileNames.getExtension(file);
+      long length = dir.fileLength(file);
+      sizes.merge(extension == null ? IndexFileNames.stripExtension(file) : extension, length,
+          Long::sum);
+      total += length;
+    }
+    for (Map.Entry<String, Long> size : sizes.entrySet()) {
+      System.out.println(size.getKey() + ": " + size.getValue() + " bytes");
+    }
+    System.out.println("total: " + total + " bytes");
+
+    long fingerprintListBytes = 0;
+    long termCount = 0;
+    try (DirectoryReader reader = DirectoryReader.open(dir)) {
+      for (LeafReaderContext context : reader.leaves()) {
+        Terms terms = context.reader().terms("longs");
+        if (terms instanceof MapTerms) {
+          fingerprintListBytes += ((MapTerms) terms).fingerprintListBytes();
+          termCount += terms.size();
+        }
+      }
+    }
+    if (termCount > 0) {
+      System.out.println("fingerprint lists (in fde): " + fingerprintListBytes + " bytes, "
+          + String.format("%.2f", (double) fingerprintListBytes / termCount) + " per term");
+    }
+  }
+
   static void indexFile(IndexWriter writer, String docspath) throws IOException {
     BufferedReader reader = new BufferedReader(new FileReader(docspath));
 
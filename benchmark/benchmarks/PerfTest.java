@@ -42,7 +42,6 @@ import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.FSDirectory;
 import org.rsankar.lucenecodecs.field.IndexedLongField;
-import org.rsankar.lucenecodecs.termmap.RobinHoodHashMap;
 
 public class PerfTest {
 
@@ -93,9 +92,6 @@ public class PerfTest {
 
     System.out.println();
     System.out.println("elapsed: " + elapsed);
-    System.out.println("iterations: " + RobinHoodHashMap.iterations);
-    System.out.println("calls: " + RobinHoodHashMap.calls);
-    System.out.println("ratio: " + RobinHoodHashMap.iterations * 1.0 / RobinHoodHashMap.calls);
 
     System.out.println("count: " + count);
   }
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.lucene50.Lucene50PostingsFormat;
+import org.apache.lucene.codecs.lucene80.Lucene80Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.rsankar.lucenecodecs.field.IndexedLongField;
+import org.rsankar.lucenecodecs.search.LongExactQuery;
+
+/**
+ * End-to-end exact-match query benchmark comparing BenchmarkFormat with
+ * Lucene50PostingsFormat. For every combination of segment count, hit ratio,
+ * key skew and thread count it prints the p50/p99/p999 latency (us) and the
+ * throughput of each format, so the two can be compared line by line.
+ */
+public class QueryBenchmark {
+
+  static final String FIELD = "longs";
+  static final String[] FORMATS = { "map", "default" };
+
+  static final int[] SEGMENT_COUNTS = { 1, 8, 32 };
+  static final double[] HIT_RATIOS = { 1.0, 0.5, 0.0 };
+  static final String[] SKEWS = { "uniform", "zipf" };
+  static final double ZIPF_EXPONENT = 1.0;
+
+  // Query shape to run, e.g. -Dquery=long for LongExactQuery instead of a
+  // constant score TermQuery
+  static final String QUERY = System.getProperty("query", "term");
+
+  static final int QUERIES_PER_RUN = 200000;
+  static final int WARMUP_QUERIES = 50000;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 2) {
+      System.out.println("USAGE: benchmarks.QueryBenchmark [docsPath] [workDir]");
+      return;
+    }
+    String docsPath = args.length > 0 ? args[0] : "benchmark/data/docs/data1000000";
+    Path workDir = Paths.get(args.length > 1 ? args[1] : "benchmark/data/index/querybenchmark");
+
+    List<long[]> docs = readDocs(docsPath);
+    long[] keys = distinctKeys(docs);
+    long[] missingKeys = missingKeys(keys, keys.length, new Random(1));
+    System.out.println(docs.size() + " docs, " + keys.length + " distinct terms");
+
+    List<Integer> threadCounts = new ArrayList<>();
+    int cores = Runtime.getRuntime().availableProcessors();
+    for (int threads = 1; threads < cores; threads *= 2) {
+      threadCounts.add(threads);
+    }
+    threadCounts.add(cores);
+
+    System.out.println(
+        "format\tsegments\thitRatio\tskew\tthreads\tp50(us)\tp99(us)\tp999(us)\tqps");
+    for (int segments : SEGMENT_COUNTS) {
+      for (String format : FORMATS) {
+        Path indexPath = workDir.resolve(format + "_" + segments);
+        if (!Files.exists(indexPath.resolve("segments_1"))) {
+          buildIndex(indexPath, format, docs, segments);
+        }
+        try (Directory dir = FSDirectory.open(indexPath);
+            DirectoryReader reader = DirectoryReader.open(dir)) {
+          IndexSearcher searcher = new IndexSearcher(reader);
+          for (double hitRatio : HIT_RATIOS) {
+            for (String skew : SKEWS) {
+              Query[] queries = queries(keys, missingKeys, hitRatio, skew, new Random(2));
+              run(searcher, queries, 1, WARMUP_QUERIES);
+              for (int threads : threadCounts) {
+                Result result = run(searcher, queries, threads, QUERIES_PER_RUN);
+                System.out.println(format + "\t" + reader.leaves().size() + "\t" + hitRatio
+                    + "\t" + skew + "\t" + threads + "\t" + result);
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  static List<long[]> readDocs(String docsPath) throws IOException {
+    List<long[]> docs = new ArrayList<>();
+    BufferedReader br = new BufferedReader(new FileReader(docsPath));
+    String line;
+    while ((line = br.readLine()) != null) {
+      StringTokenizer strtok = new StringTokenizer(line);
+      long[] terms = new long[strtok.countTokens()];
+      for (int i = 0; i < terms.length; ++i) {
+        terms[i] = Long.parseLong(strtok.nextToken(), 16);
+      }
+      docs.add(terms);
+    }
+    br.close();
+    return docs;
+  }
+
+  static long[] distinctKeys(List<long[]> docs) {
+    Set<Long> terms = new HashSet<>();
+    for (long[] doc : docs) {
+      for (long term : doc) {
+        terms.add(term);
+      }
+    }
+    long[] keys = new long[terms.size()];
+    int i = 0;
+    for (long term : terms) {
+      keys[i++] = term;
+    }
+    // HashSet order would correlate key rank with hash order
+    Arrays.sort(keys);
+    shuffle(keys, new Random(0));
+    return keys;
+  }
+
+  // Keys that aren't in the index but follow the same 309d..2f layout, so
+  // BenchmarkFormat fingerprints them the same way as real terms
+  static long[] missingKeys(long[] keys, int count, Random r) {
+    Set<Long> present = new HashSet<>();
+    for (long key : keys) {
+      present.add(key);
+    }
+    long[] missing = new long[count];
+    for (int i = 0; i < count;) {
+      long key = (0x309dL << 48) | ((r.nextLong() & 0xffffffffL) << 18) | 0x2fL;
+      if (!present.contains(key)) {
+        missing[i++] = key;
+      }
+    }
+    return missing;
+  }
+
+  static void buildIndex(Path indexPath, String format, List<long[]> docs, int segments)
+      throws IOException {
+    System.out.println("Indexing " + format + " with " + segments + " segments to '"
+        + indexPath + "'...");
+    IndexWriterConfig iwc = new IndexWriterConfig();
+    iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+    iwc.setUseCompoundFile(false);
+    // Flush by doc count and never merge, so the index has exactly the
+    // requested number of segments
+    iwc.setMaxBufferedDocs(Math.max(2, (docs.size() + segments - 1) / segments));
+    iwc.setRAMBufferSizeMB(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+    iwc.setMergePolicy(NoMergePolicy.INSTANCE);
+    iwc.setCodec(new Lucene80Codec() {
+      @Override
+      public PostingsFormat getPostingsFormatForField(String field) {
+        if (field.equals(FIELD) && format.equals("map")) {
+          return new BenchmarkFormat();
+        } else {
+          return new Lucene50PostingsFormat();
+        }
+      }
+    });
+    try (Directory dir = FSDirectory.open(indexPath);
+        IndexWriter writer = new IndexWriter(dir, iwc)) {
+      for (long[] terms : docs) {
+        Document doc = new Document();
+        for (long term : terms) {
+          doc.add(new IndexedLongField(FIELD, term, Field.Store.NO));
+        }
+        writer.addDocument(doc);
+      }
+      writer.commit();
+    }
+  }
+
+  static Query[] queries(long[] keys, long[] missingKeys, double hitRatio, String skew,
+      Random r) {
+    ZipfSampler zipf = skew.equals("zipf") ? new ZipfSampler(keys.length, ZIPF_EXPONENT) : null;
+    Query[] queries = new Query[QUERIES_PER_RUN];
+    for (int i = 0; i < queries.length; ++i) {
+      int rank = zipf != null ? zipf.next(r) : r.nextInt(keys.length);
+      long key = r.nextDouble() < hitRatio ? keys[rank] : missingKeys[rank];
+      if (QUERY.equals("long")) {
+        queries[i] = new LongExactQuery(FIELD, key);
+      } else {
+        Term t = new Term(FIELD, IndexedLongField.longToBytesRef(key));
+        queries[i] = new ConstantScoreQuery(new TermQuery(t));
+      }
+    }
+    return queries;
+  }
+
+  static Result run(IndexSearcher searcher, Query[] queries, int numThreads, int numQueries)
+      throws InterruptedException {
+    long[][] latencies = new long[numThreads][numQueries / numThreads];
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < numThreads; ++t) {
+      final long[] threadLatencies = latencies[t];
+      final int offset = t * threadLatencies.length;
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+          for (int i = 0; i < threadLatencies.length; ++i) {
+            Query query = queries[(offset + i) % queries.length];
+            long queryStart = System.nanoTime();
+            searcher.search(query, 10);
+            threadLatencies[i] = System.nanoTime() - queryStart;
+          }
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    long startTime = System.nanoTime();
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = System.nanoTime() - startTime;
+
+    int total = 0;
+    for (long[] l : latencies) {
+      total += l.length;
+    }
+    long[] all = new long[total];
+    int pos = 0;
+    for (long[] l : latencies) {
+      System.arraycopy(l, 0, all, pos, l.length);
+      pos += l.length;
+    }
+    Arrays.sort(all);
+    return new Result(all, elapsed);
+  }
+
+  static void shuffle(long[] a, Random r) {
+    for (int i = a.length - 1; i > 0; --i) {
+      int j = r.nextInt(i + 1);
+      long tmp = a[i];
+      a[i] = a[j];
+      a[j] = tmp;
+    }
+  }
+
+  static final class Result {
+    final long[] sortedLatencies;
+    final long elapsed;
+
+    Result(long[] sortedLatencies, long elapsed) {
+      this.sortedLatencies = sortedLatencies;
+      this.elapsed = elapsed;
+    }
+
+    double percentileMicros(double p) {
+      int index = (int) Math.ceil(p * sortedLatencies.length) - 1;
+      return sortedLatencies[Math.max(0, index)] / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+      double qps = sortedLatencies.length / (elapsed / 1000000000.0);
+      return String.format("%.1f\t%.1f\t%.1f\t%d", percentileMicros(0.5),
+          percentileMicros(0.99), percentileMicros(0.999), (long) qps);
+    }
+  }
+
+  // Samples ranks 0..n-1 with P(rank) proportional to 1 / (rank + 1)^exponent
+  static final class ZipfSampler {
+    final double[] cdf;
+
+    ZipfSampler(int n, double exponent) {
+      cdf = new double[n];
+      double sum = 0;
+      for (int i = 0; i < n; ++i) {
+        sum += 1.0 / Math.pow(i + 1, exponent);
+        cdf[i] = sum;
+      }
+      for (int i = 0; i < n; ++i) {
+        cdf[i] /= sum;
+      }
+    }
+
+    int next(Random r) {
+      int index = Arrays.binarySearch(cdf, r.nextDouble());
+      if (index < 0) {
+        index = -index - 1;
+      }
+      return Math.min(index, cdf.length - 1);
+    }
+  }
+}
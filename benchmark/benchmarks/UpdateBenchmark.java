@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.lucene50.Lucene50PostingsFormat;
+import org.apache.lucene.codecs.lucene80.Lucene80Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.rsankar.lucenecodecs.field.IndexedLongField;
+import org.rsankar.lucenecodecs.search.PrimaryKeyLookup;
+
+/**
+ * Compares primary key updates and lookups on an IndexedLongField written with
+ * BenchmarkFormat against Lucene50PostingsFormat. For each format it indexes
+ * NUM_DOCS docs, then times updateDocument calls on random existing keys,
+ * reopening an NRT reader (which applies the deletes) every REOPEN_EVERY
+ * updates, and finally times PrimaryKeyLookup one key at a time and in
+ * batches.
+ */
+public class UpdateBenchmark {
+
+  static final String ID_FIELD = "id";
+  static final String VERSION_FIELD = "version";
+  static final String[] FORMATS = { "map", "default" };
+
+  static final int NUM_DOCS = 1000000;
+  static final int NUM_UPDATES = 500000;
+  static final int REOPEN_EVERY = 10000;
+  static final int NUM_LOOKUPS = 500000;
+  static final int BATCH_SIZE = 1000;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 1) {
+      System.out.println("USAGE: benchmarks.UpdateBenchmark [workDir]");
+      return;
+    }
+    Path workDir = Paths.get(args.length > 0 ? args[0] : "benchmark/data/index/updatebenchmark");
+
+    System.out.println("format\tupdates/s\tsegments\tlookups/s\tbatched lookups/s");
+    for (String format : FORMATS) {
+      Path indexPath = workDir.resolve(format);
+      IOUtils.rm(indexPath);
+      try (Directory dir = FSDirectory.open(indexPath);
+          IndexWriter writer = new IndexWriter(dir, config(format))) {
+        for (int i = 0; i < NUM_DOCS; ++i) {
+          writer.addDocument(doc(key(i), 0));
+        }
+        writer.commit();
+
+        Random r = new Random(0);
+        DirectoryReader reader = DirectoryReader.open(writer);
+        long start = System.nanoTime();
+        for (int i = 1; i <= NUM_UPDATES; ++i) {
+          long key = key(r.nextInt(NUM_DOCS));
+          writer.updateDocument(new Term(ID_FIELD, IndexedLongField.longToBytesRef(key)),
+              doc(key, i));
+          if (i % REOPEN_EVERY == 0) {
+            DirectoryReader newReader = DirectoryReader.openIfChanged(reader, writer);
+            if (newReader != null) {
+              reader.close();
+              reader = newReader;
+            }
+          }
+        }
+        double updatesPerSec = NUM_UPDATES / ((System.nanoTime() - start) / 1e9);
+
+        double lookupsPerSec = lookups(reader, r);
+        double batchedLookupsPerSec = batchedLookups(reader, r);
+        System.out.println(format + "\t" + (long) updatesPerSec + "\t" + reader.leaves().size()
+            + "\t" + (long) lookupsPerSec + "\t" + (long) batchedLookupsPerSec);
+        reader.close();
+      }
+    }
+  }
+
+  static IndexWriterConfig config(String format) {
+    IndexWriterConfig iwc = new IndexWriterConfig();
+    iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+    // Deletes are applied to the same flushed segments for both formats
+    iwc.setMergePolicy(NoMergePolicy.INSTANCE);
+    iwc.setCodec(new Lucene80Codec() {
+      @Override
+      public PostingsFormat getPostingsFormatForField(String field) {
+        if (field.equals(ID_FIELD) && format.equals("map")) {
+          return new BenchmarkFormat();
+        } else {
+          return new Lucene50PostingsFormat();
+        }
+      }
+    });
+    return iwc;
+  }
+
+  // Keys follow the 309d..2f layout BenchmarkFormat fingerprints
+  static long key(int i) {
+    return (0x309dL << 48) | ((i & 0xffffffffL) << 18) | 0x2fL;
+  }
+
+  static Document doc(long key, long version) {
+    Document doc = new Document();
+    doc.add(new IndexedLongField(ID_FIELD, key, Field.Store.NO));
+    doc.add(new NumericDocValuesField(VERSION_FIELD, version));
+    return doc;
+  }
+
+  static double lookups(DirectoryReader reader, Random r) throws IOException {
+    PrimaryKeyLookup lookup = new PrimaryKeyLookup(reader, ID_FIELD, VERSION_FIELD);
+    long found = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < NUM_LOOKUPS; ++i) {
+      if (lookup.lookup(key(r.nextInt(NUM_DOCS))) != -1) {
+        ++found;
+      }
+    }
+    double perSec = NUM_LOOKUPS / ((System.nanoTime() - start) / 1e9);
+    if (found != NUM_LOOKUPS) {
+      throw new IllegalStateException("Found " + found + " of " + NUM_LOOKUPS + " keys");
+    }
+    return perSec;
+  }
+
+  static double batchedLookups(DirectoryReader reader, Random r) throws IOException {
+    PrimaryKeyLookup lookup = new PrimaryKeyLookup(reader, ID_FIELD, VERSION_FIELD);
+    long[] keys = new long[BATCH_SIZE];
+    int[] docIDs = new int[BATCH_SIZE];
+    long[] versions = new long[BATCH_SIZE];
+    long found = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < NUM_LOOKUPS; i += BATCH_SIZE) {
+      for (int j = 0; j < BATCH_SIZE; ++j) {
+        keys[j] = key(r.nextInt(NUM_DOCS));
+      }
+      found += lookup.lookup(keys, BATCH_SIZE, docIDs, versions);
+    }
+    double perSec = NUM_LOOKUPS / ((System.nanoTime() - start) / 1e9);
+    if (found != NUM_LOOKUPS) {
+      throw new IllegalStateException("Found " + found + " of " + NUM_LOOKUPS + " keys");
+    }
+    return perSec;
+  }
+}
@@ -33,7 +33,12 @@ public class SimpleLongFormat extends MapPostingsFormat {
 
   @Override
   public long getFingerprint(BytesRef text) {
-    return IndexedLongField.BytesRefToLong(text);
+    return getFingerprint(IndexedLongField.BytesRefToLong(text));
+  }
+
+  @Override
+  public long getFingerprint(long value) {
+    return value;
   }
 
 }
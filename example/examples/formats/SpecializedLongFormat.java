@@ -40,4 +40,10 @@ public class SpecializedLongFormat extends MapPostingsFormat {
   public long getFingerprint(BytesRef text) {
     return IndexedLongField.BytesRefToLong(text, 3, 1);
   }
+
+  @Override
+  public long getFingerprint(long value) {
+    // Bytes 3 to 6 of the big-endian term
+    return (value >>> 8) & 0xffffffffL;
+  }
 }
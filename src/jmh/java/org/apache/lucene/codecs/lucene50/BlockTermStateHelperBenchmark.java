@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.apache.lucene.codecs.lucene50;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.codecs.lucene50.Lucene50PostingsFormat.IntBlockTermState;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of the term states that MapFieldsWriter stores in the
+ * .fde file. Each invocation handles {@link #NUM_STATES} states.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockTermStateHelperBenchmark {
+  static final int NUM_STATES = 1024;
+  static final int MAX_DOC = 1 << 20;
+
+  // singleton: docFreq == 1, small: fits in one block, large: has skip data
+  @Param({ "singleton", "small", "large" })
+  String termShape;
+
+  @Param({ "DOCS", "DOCS_AND_FREQS_AND_POSITIONS" })
+  IndexOptions indexOptions;
+
+  FieldInfo fieldInfo;
+  IntBlockTermState[] states;
+  long[] offsets;
+  RandomAccessInput encoded;
+
+  IntBlockTermState reuse;
+  CountingIndexOutput sink;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    Random r = new Random(0);
+    fieldInfo = new FieldInfo("field", 0, false, false, false, indexOptions,
+        DocValuesType.NONE, -1, Collections.emptyMap(), 0, 0, 0, false);
+    states = new IntBlockTermState[NUM_STATES];
+    for (int i = 0; i < NUM_STATES; ++i) {
+      IntBlockTermState state = new IntBlockTermState();
+      switch (termShape) {
+      case "singleton":
+        state.docFreq = 1;
+        state.singletonDocID = r.nextInt(MAX_DOC);
+        state.docStartFP = -1;
+        break;
+      case "small":
+        state.docFreq = 2 + r.nextInt(Lucene50PostingsFormat.BLOCK_SIZE - 1);
+        state.singletonDocID = -1;
+        state.docStartFP = r.nextInt(1 << 30);
+        break;
+      case "large":
+        state.docFreq = Lucene50PostingsFormat.BLOCK_SIZE + 1 + r.nextInt(MAX_DOC / 8);
+        state.singletonDocID = -1;
+        state.docStartFP = r.nextInt(1 << 30);
+        // Skip data follows the doc blocks, a few bytes per doc
+        state.skipOffset = state.docFreq + r.nextInt(state.docFreq * 3);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown term shape: " + termShape);
+      }
+      if (indexOptions != IndexOptions.DOCS) {
+        state.totalTermFreq = state.docFreq + r.nextInt(state.docFreq * 2);
+        state.posStartFP = r.nextInt(1 << 30);
+        state.lastPosBlockOffset = state.totalTermFreq > Lucene50PostingsFormat.BLOCK_SIZE
+            ? r.nextInt(state.docFreq * 4)
+            : -1;
+      }
+      states[i] = state;
+    }
+
+    ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+    CountingIndexOutput indexOut = new CountingIndexOutput(out);
+    offsets = new long[NUM_STATES];
+    for (int i = 0; i < NUM_STATES; ++i) {
+      offsets[i] = indexOut.getFilePointer();
+      BlockTermStateHelper.writeToFile(indexOut, states[i], fieldInfo);
+    }
+    encoded = out.toDataInput();
+
+    reuse = new IntBlockTermState();
+    sink = new CountingIndexOutput(null);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_STATES)
+  public long writeToFile() throws IOException {
+    for (IntBlockTermState state : states) {
+      BlockTermStateHelper.writeToFile(sink, state, fieldInfo);
+    }
+    return sink.getFilePointer();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_STATES)
+  public long readFromFile() throws IOException {
+    long sum = 0;
+    for (long offset : offsets) {
+      BlockTermStateHelper.readFromFile(encoded, offset, reuse, fieldInfo);
+      sum += reuse.docFreq;
+    }
+    return sum;
+  }
+
+  // Counts bytes and optionally forwards them, so encoding can be measured
+  // without also measuring a growing buffer
+  static final class CountingIndexOutput extends IndexOutput {
+    private final ByteBuffersDataOutput delegate;
+    private long pointer;
+
+    CountingIndexOutput(ByteBuffersDataOutput delegate) {
+      super("counting", "counting");
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void writeByte(byte b) {
+      if (delegate != null) {
+        delegate.writeByte(b);
+      }
+      ++pointer;
+    }
+
+    @Override
+    public void writeBytes(byte[] b, int offset, int length) {
+      if (delegate != null) {
+        delegate.writeBytes(b, offset, length);
+      }
+      pointer += length;
+    }
+
+    @Override
+    public long getFilePointer() {
+      return pointer;
+    }
+
+    @Override
+    public long getChecksum() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
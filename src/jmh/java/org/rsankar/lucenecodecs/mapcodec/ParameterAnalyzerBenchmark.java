@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.mapcodec;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of verifying a single (capacity, k) candidate on every fingerprint,
+ * which the analyzer repeats for the best few pairs of its grid when a
+ * segment is flushed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParameterAnalyzerBenchmark {
+  @Param({ "10000", "100000", "1000000" })
+  int termCount;
+
+  // Spare slots as a percentage of termCount, like EXTRA_SPACE_PERCENT
+  @Param({ "25", "50", "100" })
+  int extraSpacePercent;
+
+  int capacity;
+  int[] slots;
+  byte[] dists;
+  long[] fingerprints;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    Random r = new Random(0);
+    fingerprints = new long[termCount];
+    for (int i = 0; i < termCount; ++i) {
+      fingerprints[i] = r.nextLong() >>> 30;
+    }
+    capacity = Primes.next20Primes(termCount * (100 + extraSpacePercent) / 100)[0];
+    slots = new int[capacity];
+    dists = new byte[capacity];
+  }
+
+  @Benchmark
+  public double analyzeParameters() {
+    return ParameterAnalyzer.analyzeParameters(capacity, 128, slots, dists, fingerprints, 8);
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.mapcodec;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.lucene50.Lucene50PostingsFormat;
+import org.apache.lucene.codecs.lucene80.Lucene80Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rsankar.lucenecodecs.field.IndexedLongField;
+import org.rsankar.lucenecodecs.search.LongExactQuery;
+
+import benchmarks.BenchmarkFormat;
+
+/**
+ * A TermQuery, or the LongExactQuery for the same key, on a long key field
+ * against a multi-segment index, with the key field in BenchmarkFormat or in
+ * Lucene50PostingsFormat. Run with the GC profiler: gc.alloc.rate.norm is what
+ * one query allocates across all segments, which Lucene's own query and scorer
+ * objects put a floor under.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TermQueryBenchmark {
+  static final String FIELD = "key";
+  static final int NUM_DOCS = 1 << 18;
+  static final int NUM_QUERIES = 1 << 12;
+
+  @Param({ "map", "default" })
+  String format;
+
+  @Param({ "1", "16" })
+  int segments;
+
+  @Param({ "0.0", "1.0" })
+  double hitRatio;
+
+  Path path;
+  Directory dir;
+  DirectoryReader reader;
+  IndexSearcher searcher;
+  TermQuery[] queries;
+  LongExactQuery[] longQueries;
+  int query;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    IndexWriterConfig iwc = new IndexWriterConfig();
+    iwc.setMaxBufferedDocs(NUM_DOCS / segments);
+    iwc.setRAMBufferSizeMB(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+    iwc.setMergePolicy(NoMergePolicy.INSTANCE);
+    iwc.setCodec(new Lucene80Codec() {
+      @Override
+      public PostingsFormat getPostingsFormatForField(String field) {
+        return format.equals("map") ? new BenchmarkFormat() : new Lucene50PostingsFormat();
+      }
+    });
+    path = Files.createTempDirectory("tqb");
+    dir = new MMapDirectory(path);
+    try (IndexWriter writer = new IndexWriter(dir, iwc)) {
+      for (int i = 0; i < NUM_DOCS; ++i) {
+        Document doc = new Document();
+        doc.add(new IndexedLongField(FIELD, key(i), Field.Store.NO));
+        writer.addDocument(doc);
+      }
+    }
+    reader = DirectoryReader.open(dir);
+    searcher = new IndexSearcher(reader);
+    // Caching would answer repeated queries without reaching the postings
+    searcher.setQueryCache(null);
+
+    Random r = new Random(0);
+    queries = new TermQuery[NUM_QUERIES];
+    longQueries = new LongExactQuery[NUM_QUERIES];
+    for (int i = 0; i < NUM_QUERIES; ++i) {
+      int id = r.nextDouble() < hitRatio ? r.nextInt(NUM_DOCS) : NUM_DOCS + r.nextInt(NUM_DOCS);
+      queries[i] = new TermQuery(new Term(FIELD, IndexedLongField.longToBytesRef(key(id))));
+      longQueries[i] = new LongExactQuery(FIELD, key(id));
+    }
+  }
+
+  // BenchmarkFormat's keys have the form 309d __ __ __ __ 2f
+  private static long key(int id) {
+    return 0x309d00000000002fL | ((long) id << 18);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    IOUtils.close(reader, dir);
+    IOUtils.rm(path);
+  }
+
+  @Benchmark
+  public int search() throws IOException {
+    TotalHitCountCollector collector = new TotalHitCountCollector();
+    searcher.search(queries[query++ & (NUM_QUERIES - 1)], collector);
+    return collector.getTotalHits();
+  }
+
+  @Benchmark
+  public int searchLong() throws IOException {
+    TotalHitCountCollector collector = new TotalHitCountCollector();
+    searcher.search(longQueries[query++ & (NUM_QUERIES - 1)], collector);
+    return collector.getTotalHits();
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.termmap;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Same measurements as RobinHoodHashMapBenchmark for the bucketized layout, so
+ * the two can be compared at equal capacity, load factor and hit ratio.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BucketizedHashMapBenchmark {
+  static final int FINGERPRINT_SIZE_BYTES = 8;
+  static final int VALUE_SIZE_BYTES = 4;
+
+  static final int NUM_QUERIES = 1 << 16;
+
+  @Param({ "1021", "65521", "1048573" })
+  int capacity;
+
+  @Param({ "0.5", "0.67", "0.8", "0.9" })
+  double loadFactor;
+
+  @Param({ "0.0", "0.5", "1.0" })
+  double hitRatio;
+
+  long[] keyFingerprints;
+  long[] queryFingerprints;
+  int query;
+
+  Path path;
+  Directory dir;
+  IndexInput in;
+  BucketizedHashMap map;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    Random r = new Random(0);
+    int numKeys = (int) (capacity * loadFactor);
+    keyFingerprints = new long[numKeys];
+    for (int i = 0; i < numKeys; ++i) {
+      keyFingerprints[i] = r.nextLong();
+    }
+
+    BucketizedHashMap writer = build();
+
+    path = Files.createTempDirectory("bhm");
+    dir = new MMapDirectory(path);
+    try (IndexOutput out = dir.createOutput("map", IOContext.DEFAULT)) {
+      writer.save(out);
+    }
+    in = dir.openInput("map", IOContext.READ);
+    int savedCapacity = in.readVInt();
+    int hashcodeSizeBytes = in.readVInt();
+    int fingerprintSizeBytes = in.readVInt();
+    int valueSizeBytes = in.readVInt();
+    map = new BucketizedHashMap();
+    map.open(savedCapacity, hashcodeSizeBytes, fingerprintSizeBytes, valueSizeBytes,
+        in.randomAccessSlice(in.getFilePointer(), in.length() - in.getFilePointer()));
+
+    // Misses are random fingerprints, which are almost never in the map
+    queryFingerprints = new long[NUM_QUERIES];
+    for (int i = 0; i < NUM_QUERIES; ++i) {
+      if (r.nextDouble() < hitRatio) {
+        queryFingerprints[i] = keyFingerprints[r.nextInt(numKeys)];
+      } else {
+        queryFingerprints[i] = r.nextLong();
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    IOUtils.close(in, dir);
+    IOUtils.rm(path);
+  }
+
+  private BucketizedHashMap build() throws IOException {
+    BucketizedHashMap writer = new BucketizedHashMap();
+    writer.create(capacity, 0, FINGERPRINT_SIZE_BYTES, VALUE_SIZE_BYTES);
+    for (int i = 0; i < keyFingerprints.length; ++i) {
+      writer.put(0, keyFingerprints[i], i);
+    }
+    return writer;
+  }
+
+  @Benchmark
+  public long get() throws IOException {
+    int i = query++ & (NUM_QUERIES - 1);
+    return map.get(0, queryFingerprints[i]);
+  }
+
+  // Time to fill a whole table, i.e. capacity * loadFactor puts
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Measurement(iterations = 10)
+  public BucketizedHashMap put() throws IOException {
+    return build();
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.termmap;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups against a saved map opened off-heap the same way MapFieldsReader
+ * opens it, and the cost of building a map with put().
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RobinHoodHashMapBenchmark {
+  // Same slot layout as MapFieldsWriter
+  static final int DIST_SIZE_BYTES = 1;
+  static final int FINGERPRINT_SIZE_BYTES = 1;
+  static final int VALUE_SIZE_BYTES = 4;
+
+  static final int NUM_QUERIES = 1 << 16;
+
+  @Param({ "1021", "65521", "1048573" })
+  int capacity;
+
+  @Param({ "0.5", "0.67", "0.8" })
+  double loadFactor;
+
+  @Param({ "0.0", "0.5", "1.0" })
+  double hitRatio;
+
+  int[] keyHashcodes;
+  long[] keyFingerprints;
+
+  int[] queryHashcodes;
+  long[] queryFingerprints;
+  int query;
+
+  Path path;
+  Directory dir;
+  IndexInput in;
+  RobinHoodHashMap map;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    Random r = new Random(0);
+    int numKeys = (int) (capacity * loadFactor);
+    keyHashcodes = new int[numKeys];
+    keyFingerprints = new long[numKeys];
+    // Keys are distinct, so put() never takes the duplicate key path
+    Set<Long> keys = new HashSet<>();
+    for (int i = 0; i < numKeys; ++i) {
+      do {
+        keyHashcodes[i] = r.nextInt(capacity);
+        keyFingerprints[i] = r.nextInt(256);
+      } while (!keys.add(key(keyHashcodes[i], keyFingerprints[i])));
+    }
+
+    RobinHoodHashMap writer = build();
+
+    path = Files.createTempDirectory("rhhm");
+    dir = new MMapDirectory(path);
+    try (IndexOutput out = dir.createOutput("map", IOContext.DEFAULT)) {
+      writer.save(out);
+    }
+    in = dir.openInput("map", IOContext.READ);
+    int savedCapacity = in.readVInt();
+    int distSizeBytes = in.readVInt();
+    int fingerprintSizeBytes = in.readVInt();
+    int valueSizeBytes = in.readVInt();
+    map = new RobinHoodHashMap();
+    map.open(savedCapacity, distSizeBytes, fingerprintSizeBytes, valueSizeBytes,
+        in.randomAccessSlice(in.getFilePointer(), in.length() - in.getFilePointer()));
+
+    // Misses are random (hashcode, fingerprint) pairs that aren't in the map,
+    // like absent terms in a segment
+    queryHashcodes = new int[NUM_QUERIES];
+    queryFingerprints = new long[NUM_QUERIES];
+    for (int i = 0; i < NUM_QUERIES; ++i) {
+      if (r.nextDouble() < hitRatio) {
+        int key = r.nextInt(numKeys);
+        queryHashcodes[i] = keyHashcodes[key];
+        queryFingerprints[i] = keyFingerprints[key];
+      } else {
+        do {
+          queryHashcodes[i] = r.nextInt(capacity);
+          queryFingerprints[i] = r.nextInt(256);
+        } while (keys.contains(key(queryHashcodes[i], queryFingerprints[i])));
+      }
+    }
+  }
+
+  private static long key(int hashcode, long fingerprint) {
+    return ((long) hashcode << 8) | fingerprint;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    IOUtils.close(in, dir);
+    IOUtils.rm(path);
+  }
+
+  private RobinHoodHashMap build() throws IOException {
+    RobinHoodHashMap writer = new RobinHoodHashMap();
+    writer.create(capacity, DIST_SIZE_BYTES, FINGERPRINT_SIZE_BYTES, VALUE_SIZE_BYTES);
+    for (int i = 0; i < keyHashcodes.length; ++i) {
+      writer.put(keyHashcodes[i], keyFingerprints[i], i);
+    }
+    return writer;
+  }
+
+  @Benchmark
+  public long get() throws IOException {
+    int i = query++ & (NUM_QUERIES - 1);
+    return map.get(queryHashcodes[i], queryFingerprints[i]);
+  }
+
+  // Time to fill a whole table, i.e. capacity * loadFactor puts
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Measurement(iterations = 10)
+  public RobinHoodHashMap put() throws IOException {
+    return build();
+  }
+}
@@ -26,16 +26,26 @@ import java.io.IOException;
 
 import org.apache.lucene.codecs.BlockTermState;
 import org.apache.lucene.codecs.lucene50.Lucene50PostingsFormat.IntBlockTermState;
-import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RandomAccessInput;
 
 public class BlockTermStateHelper {
-  public static void writeToFile(IndexOutput out, BlockTermState bts) throws IOException {
+  public static void writeToFile(IndexOutput out, BlockTermState bts, FieldInfo fieldInfo)
+      throws IOException {
     Lucene50PostingsFormat.IntBlockTermState ibts = (Lucene50PostingsFormat.IntBlockTermState) bts;
 
     /*
      * If docFreq=1: 1-5 bytes: [singletonDocIDSizeBytes] [singletonDocID]... Else:
-     * First byte 0 0 0 [docFreqSizeBytes] [docStartFPSizeBytes]
+     * First byte 0 0 0 [docFreqSizeBytes] [docStartFPSizeBytes], then docFreq and
+     * docStartFP, then vlong skipOffset if docFreq > BLOCK_SIZE (the postings
+     * writer writes skip data for exactly those terms)
+     * 
+     * Followed by what the field's index options need, all as vlongs: with
+     * freqs, totalTermFreq - docFreq; with positions, posStartFP, payStartFP if
+     * the field has payloads or offsets, and lastPosBlockOffset if totalTermFreq
+     * > BLOCK_SIZE. DOCS-only fields write nothing more.
      */
 
     if (ibts.docFreq == 1) {
@@ -62,15 +72,40 @@ public class BlockTermStateHelper {
       for (int i = docStartFPSizeBytes - 1; i >= 0; --i) {
         out.writeByte((byte) (ibts.docStartFP >> (8 * i)));
       }
+      if (ibts.docFreq > Lucene50PostingsFormat.BLOCK_SIZE) {
+        out.writeVLong(ibts.skipOffset);
+      }
     }
-  }
 
-  public static BlockTermState readFromFile(IndexInput in, int index) throws IOException {
-    Lucene50PostingsFormat.IntBlockTermState ibts = new Lucene50PostingsFormat.IntBlockTermState();
+    IndexOptions indexOptions = fieldInfo.getIndexOptions();
+    if (indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS) >= 0) {
+      out.writeVLong(ibts.totalTermFreq - ibts.docFreq);
+    }
+    if (indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0) {
+      out.writeVLong(ibts.posStartFP);
+      if (hasPayloadsOrOffsets(fieldInfo)) {
+        out.writeVLong(ibts.payStartFP);
+      }
+      if (ibts.totalTermFreq > Lucene50PostingsFormat.BLOCK_SIZE) {
+        out.writeVLong(ibts.lastPosBlockOffset);
+      }
+    }
+  }
 
-    in.seek(index);
-    byte first = in.readByte();
+  /**
+   * Decodes the term state stored at the given position into {@code reuse}
+   * (which must come from {@link Lucene50PostingsReader#newTermState()}), using
+   * absolute reads only so that nothing is allocated per lookup. Returns the
+   * position right after the term state.
+   */
+  public static long readFromFile(RandomAccessInput in, long index, BlockTermState reuse,
+      FieldInfo fieldInfo) throws IOException {
+    Lucene50PostingsFormat.IntBlockTermState ibts = (Lucene50PostingsFormat.IntBlockTermState) reuse;
+
+    long pos = index;
+    byte first = in.readByte(pos++);
     int singletonDocIDSizeBytes;
+    ibts.skipOffset = -1;
 
     if (first == 0) {
       ibts.docFreq = 1;
@@ -82,7 +117,7 @@ public class BlockTermStateHelper {
       ibts.singletonDocID = first & 0x3f;
       for (int i = 0; i < singletonDocIDSizeBytes - 1; ++i) {
         ibts.singletonDocID <<= 8;
-        ibts.singletonDocID |= (in.readByte() & 0xff);
+        ibts.singletonDocID |= (in.readByte(pos++) & 0xff);
       }
     } else {
       ibts.singletonDocID = -1;
@@ -91,22 +126,90 @@ public class BlockTermStateHelper {
       ibts.docFreq = 0;
       for (int i = 0; i < docFreqSizeBytes; ++i) {
         ibts.docFreq <<= 8;
-        ibts.docFreq |= (in.readByte() & 0xff);
+        ibts.docFreq |= (in.readByte(pos++) & 0xff);
       }
       ibts.docStartFP = 0;
       for (int i = 0; i < docStartFPSizeBytes; ++i) {
         ibts.docStartFP <<= 8;
-        ibts.docStartFP |= (in.readByte() & 0xff);
+        ibts.docStartFP |= (in.readByte(pos++) & 0xff);
+      }
+      if (ibts.docFreq > Lucene50PostingsFormat.BLOCK_SIZE) {
+        ibts.skipOffset = readVLong(in, pos);
+        pos += vLongLength(ibts.skipOffset);
       }
     }
 
     ibts.totalTermFreq = -1;
-    ibts.skipOffset = -1;
     ibts.posStartFP = 0;
     ibts.payStartFP = 0;
     ibts.lastPosBlockOffset = -1;
 
-    return ibts;
+    IndexOptions indexOptions = fieldInfo.getIndexOptions();
+    if (indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS) >= 0) {
+      long extraFreq = readVLong(in, pos);
+      pos += vLongLength(extraFreq);
+      ibts.totalTermFreq = ibts.docFreq + extraFreq;
+    }
+    if (indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0) {
+      ibts.posStartFP = readVLong(in, pos);
+      pos += vLongLength(ibts.posStartFP);
+      if (hasPayloadsOrOffsets(fieldInfo)) {
+        ibts.payStartFP = readVLong(in, pos);
+        pos += vLongLength(ibts.payStartFP);
+      }
+      if (ibts.totalTermFreq > Lucene50PostingsFormat.BLOCK_SIZE) {
+        ibts.lastPosBlockOffset = readVLong(in, pos);
+        pos += vLongLength(ibts.lastPosBlockOffset);
+      }
+    }
+    return pos;
+  }
+
+  private static boolean hasPayloadsOrOffsets(FieldInfo fieldInfo) {
+    return fieldInfo.hasPayloads() || fieldInfo.getIndexOptions()
+        .compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS) >= 0;
+  }
+
+  // Decodes the vlong at pos: 7 bits per byte, low bits first
+  private static long readVLong(RandomAccessInput in, long pos) throws IOException {
+    long value = 0;
+    for (int shift = 0;; shift += 7) {
+      byte b = in.readByte(pos++);
+      value |= (b & 0x7fL) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  private static int vLongLength(long value) {
+    int length = 1;
+    while ((value >>>= 7) != 0) {
+      ++length;
+    }
+    return length;
+  }
+
+  /** Returns the docID of a term that is in a single document, -1 otherwise. */
+  public static int getSingletonDocID(BlockTermState bts) {
+    Lucene50PostingsFormat.IntBlockTermState ibts = (Lucene50PostingsFormat.IntBlockTermState) bts;
+    return ibts.docFreq == 1 ? ibts.singletonDocID : -1;
+  }
+
+  /**
+   * Sets {@code reuse} to the state of a term in a DOCS-only field whose only
+   * document is docID, as {@link #readFromFile} would decode it.
+   */
+  public static void setSingleton(BlockTermState reuse, int docID) {
+    Lucene50PostingsFormat.IntBlockTermState ibts = (Lucene50PostingsFormat.IntBlockTermState) reuse;
+    ibts.docFreq = 1;
+    ibts.docStartFP = -1;
+    ibts.singletonDocID = docID;
+    ibts.totalTermFreq = -1;
+    ibts.skipOffset = -1;
+    ibts.posStartFP = 0;
+    ibts.payStartFP = 0;
+    ibts.lastPosBlockOffset = -1;
   }
 
   private static int numBytes(int i) {
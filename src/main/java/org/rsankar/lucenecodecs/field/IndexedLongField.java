@@ -58,11 +58,16 @@ public class IndexedLongField extends Field {
   // TODO: Switch to org.apache.lucene.store.ByteArrayDataOutput
   public static BytesRef longToBytesRef(long l) {
     byte[] bytes = new byte[8];
+    longToBytes(l, bytes);
+    return new BytesRef(bytes);
+  }
+
+  // Writes the term bytes of l to the start of bytes, so a buffer can be reused
+  public static void longToBytes(long l, byte[] bytes) {
     for (int i = 7; i >= 0; --i) {
       bytes[i] = (byte) (l & 0xff);
       l >>= 8;
     }
-    return new BytesRef(bytes);
   }
 
   public static long BytesRefToLong(BytesRef term) {
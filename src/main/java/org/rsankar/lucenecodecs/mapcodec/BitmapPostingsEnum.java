@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.mapcodec;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * PostingsEnum over a term saved as a bitmap by MapFileWriter, read straight
+ * from the .fbm file. advance binary searches the container directory and
+ * then the container, so skipping costs a few reads wherever the target is,
+ * and cost() is the exact cardinality.
+ */
+final class BitmapPostingsEnum extends PostingsEnum {
+  // Containers with more docs than this are bitmaps, like in Roaring
+  static final int ARRAY_MAX_CARDINALITY = 4096;
+  static final int BITMAP_WORDS = (1 << 16) / Long.SIZE;
+  // int key, int cardinality, long data pointer
+  static final int DIRECTORY_ENTRY_BYTES = 16;
+
+  private final RandomAccessInput in;
+  private long directoryFP;
+  private int numContainers;
+  private int docFreq;
+
+  // The current container
+  private int container;
+  private int key;
+  private int cardinality;
+  private long dataFP;
+  private boolean isBitmap;
+  // Index of the current doc, for array containers
+  private int arrayIndex;
+
+  private int doc;
+
+  BitmapPostingsEnum(RandomAccessInput in) {
+    this.in = in;
+  }
+
+  boolean canReuse(RandomAccessInput in) {
+    return this.in == in;
+  }
+
+  BitmapPostingsEnum reset(long bitmapFP, int docFreq) throws IOException {
+    this.numContainers = in.readInt(bitmapFP);
+    this.directoryFP = bitmapFP + Integer.BYTES;
+    this.docFreq = docFreq;
+    this.container = -1;
+    this.doc = -1;
+    return this;
+  }
+
+  @Override
+  public int docID() {
+    return doc;
+  }
+
+  @Override
+  public int nextDoc() throws IOException {
+    return advance(doc + 1);
+  }
+
+  @Override
+  public int advance(int target) throws IOException {
+    int targetKey = target >>> 16;
+    if (container == -1 || key < targetKey) {
+      if (seekContainer(targetKey) == false) {
+        return doc = NO_MORE_DOCS;
+      }
+      if (key > targetKey) {
+        target = key << 16;
+      }
+    }
+    while (true) {
+      int low = isBitmap ? nextSetBit(target & 0xFFFF) : nextInArray(target & 0xFFFF);
+      if (low != -1) {
+        return doc = (key << 16) | low;
+      }
+      if (container + 1 == numContainers) {
+        return doc = NO_MORE_DOCS;
+      }
+      loadContainer(container + 1);
+      target = key << 16;
+    }
+  }
+
+  // Moves to the first container after the current one whose key is at least
+  // targetKey, returns false if there is none
+  private boolean seekContainer(int targetKey) throws IOException {
+    int lo = container + 1;
+    int hi = numContainers;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (in.readInt(directoryFP + (long) mid * DIRECTORY_ENTRY_BYTES) < targetKey) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    if (lo == numContainers) {
+      return false;
+    }
+    loadContainer(lo);
+    return true;
+  }
+
+  private void loadContainer(int index) throws IOException {
+    long entryFP = directoryFP + (long) index * DIRECTORY_ENTRY_BYTES;
+    container = index;
+    key = in.readInt(entryFP);
+    cardinality = in.readInt(entryFP + Integer.BYTES);
+    dataFP = in.readLong(entryFP + 2 * Integer.BYTES);
+    isBitmap = cardinality > ARRAY_MAX_CARDINALITY;
+    arrayIndex = 0;
+  }
+
+  // Lowest bit >= low set in the current bitmap container, or -1
+  private int nextSetBit(int low) throws IOException {
+    int wordIndex = low >>> 6;
+    long word = in.readLong(dataFP + (long) wordIndex * Long.BYTES) & (-1L << low);
+    while (word == 0) {
+      if (++wordIndex == BITMAP_WORDS) {
+        return -1;
+      }
+      word = in.readLong(dataFP + (long) wordIndex * Long.BYTES);
+    }
+    return (wordIndex << 6) | Long.numberOfTrailingZeros(word);
+  }
+
+  // Lowest value >= low in the current array container, or -1. Values before
+  // arrayIndex are all lower, nextDoc usually wants the one right after it.
+  private int nextInArray(int low) throws IOException {
+    if (arrayIndex < cardinality) {
+      int value = arrayValue(arrayIndex);
+      if (value >= low) {
+        return value;
+      }
+    }
+    int lo = arrayIndex + 1;
+    int hi = cardinality;
+    if (lo < hi && arrayValue(lo) >= low) {
+      hi = lo;
+    }
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (arrayValue(mid) < low) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    arrayIndex = lo;
+    return lo < cardinality ? arrayValue(lo) : -1;
+  }
+
+  private int arrayValue(int index) throws IOException {
+    return in.readShort(dataFP + (long) index * Short.BYTES) & 0xFFFF;
+  }
+
+  @Override
+  public int freq() throws IOException {
+    return 1;
+  }
+
+  @Override
+  public int nextPosition() throws IOException {
+    return -1;
+  }
+
+  @Override
+  public int startOffset() throws IOException {
+    return -1;
+  }
+
+  @Override
+  public int endOffset() throws IOException {
+    return -1;
+  }
+
+  @Override
+  public BytesRef getPayload() throws IOException {
+    return null;
+  }
+
+  @Override
+  public long cost() {
+    return docFreq;
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.mapcodec;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+
+/**
+ * Where a field's sections are in the segment's .fme, .fde and .fbm files. The
+ * .fme file ends with a directory of these, one per field, so that a field is
+ * opened by slicing the files instead of opening its own.
+ */
+class MapFieldEntry {
+  // Bits of the flags byte
+  static final int HAS_BITMAPS = 1;
+  static final int HAS_TERMS_DICTIONARY = 2;
+
+  final int fieldNumber;
+  final long mapOffset, mapLength;
+  final long dataOffset, dataLength;
+  // -1 and 0 if the field has no bitmaps
+  final long bitmapOffset, bitmapLength;
+  // Whether the segment's BlockTree terms dictionary has the field's terms
+  final boolean hasTermsDictionary;
+
+  MapFieldEntry(int fieldNumber, long mapOffset, long mapLength, long dataOffset,
+      long dataLength, long bitmapOffset, long bitmapLength, boolean hasTermsDictionary) {
+    this.fieldNumber = fieldNumber;
+    this.mapOffset = mapOffset;
+    this.mapLength = mapLength;
+    this.dataOffset = dataOffset;
+    this.dataLength = dataLength;
+    this.bitmapOffset = bitmapOffset;
+    this.bitmapLength = bitmapLength;
+    this.hasTermsDictionary = hasTermsDictionary;
+  }
+
+  boolean hasBitmaps() {
+    return bitmapOffset != -1;
+  }
+
+  void write(DataOutput out) throws IOException {
+    out.writeVInt(fieldNumber);
+    out.writeVLong(mapOffset);
+    out.writeVLong(mapLength);
+    out.writeVLong(dataOffset);
+    out.writeVLong(dataLength);
+    out.writeByte((byte) ((hasBitmaps() ? HAS_BITMAPS : 0)
+        | (hasTermsDictionary ? HAS_TERMS_DICTIONARY : 0)));
+    if (hasBitmaps()) {
+      out.writeVLong(bitmapOffset);
+      out.writeVLong(bitmapLength);
+    }
+  }
+
+  static MapFieldEntry read(DataInput in) throws IOException {
+    int fieldNumber = in.readVInt();
+    long mapOffset = in.readVLong();
+    long mapLength = in.readVLong();
+    long dataOffset = in.readVLong();
+    long dataLength = in.readVLong();
+    byte flags = in.readByte();
+    if ((flags & ~(HAS_BITMAPS | HAS_TERMS_DICTIONARY)) != 0) {
+      throw new CorruptIndexException("Invalid field flags: " + flags, in);
+    }
+    long bitmapOffset = -1;
+    long bitmapLength = 0;
+    if ((flags & HAS_BITMAPS) != 0) {
+      bitmapOffset = in.readVLong();
+      bitmapLength = in.readVLong();
+    }
+    return new MapFieldEntry(fieldNumber, mapOffset, mapLength, dataOffset, dataLength,
+        bitmapOffset, bitmapLength, (flags & HAS_TERMS_DICTIONARY) != 0);
+  }
+}
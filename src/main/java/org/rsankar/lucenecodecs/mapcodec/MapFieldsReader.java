@@ -23,14 +23,22 @@
 package org.rsankar.lucenecodecs.mapcodec;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.codecs.CodecUtil;
 import org.apache.lucene.codecs.FieldsProducer;
 import org.apache.lucene.codecs.PostingsReaderBase;
+import org.apache.lucene.codecs.blocktree.BlockTreeTermsReader;
 import org.apache.lucene.index.BaseTermsEnum;
+import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.ImpactsEnum;
 import org.apache.lucene.index.IndexOptions;
@@ -38,12 +46,33 @@ import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.SegmentReadState;
 import org.apache.lucene.index.SlowImpactsEnum;
 import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermState;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.ByteBuffersDataInput;
 import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
 import org.apache.lucene.util.BytesRef;
-import org.rsankar.lucenecodecs.termmap.RobinHoodHashMap;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.CloseableThreadLocal;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.IntroSorter;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+import org.rsankar.lucenecodecs.termmap.TermMapReader;
+import org.rsankar.lucenecodecs.termmap.TermMapType;
+import org.rsankar.lucenecodecs.termmap.XorFilter;
 
 public class MapFieldsReader extends FieldsProducer {
+  /**
+   * Called by {@link MapTermsEnum#seekExactFingerprints} for every fingerprint
+   * that is found, with its index and the enum positioned on its term.
+   */
+  public interface TermHitVisitor {
+    void visitHit(int index, MapTermsEnum termsEnum) throws IOException;
+  }
+
+  // Batched lookups are probed in table order when there is at least one key
+  // per this many terms
+  static final int SORTED_PROBE_SPACING = 64;
 
   SegmentReadState state;
   PostingsReaderBase reader;
@@ -51,44 +80,133 @@ public class MapFieldsReader extends FieldsProducer {
 
   MapPostingsFormat postingsFormat;
 
-  private final Map<String, MapTerms> termsCache = new HashMap<String, MapTerms>();
+  // One of each per segment, every field is a slice of them
+  private IndexInput mapFile;
+  private IndexInput dataFile;
+  // Only opened if some field saved dense terms as bitmaps
+  private IndexInput bitmapFile;
+  // Only opened if some field has a terms dictionary. It shares the postings
+  // reader, and closes it.
+  private BlockTreeTermsReader termsDictionary;
+
+  // Read from the .fme directory, sorted by field name
+  private final Map<String, MapFieldEntry> fieldEntries = new TreeMap<>();
+
+  // Shared by every searcher thread, so fields are opened at most once
+  private final Map<String, MapTerms> termsCache = new ConcurrentHashMap<String, MapTerms>();
 
   public MapFieldsReader(SegmentReadState state, PostingsReaderBase reader,
-      MapPostingsFormat postingsFormat) {
+      MapPostingsFormat postingsFormat) throws IOException {
     this.state = state;
     this.reader = reader;
     this.segmentName = state.segmentInfo.name;
     this.postingsFormat = postingsFormat;
+
+    boolean success = false;
+    try {
+      this.mapFile = openChecked(
+          MapPostingsFormat.getFieldMapFileName(segmentName, state.segmentSuffix),
+          MapPostingsFormat.FIELD_MAP_CODEC);
+      readDirectory(mapFile);
+      boolean hasBitmaps = false;
+      boolean hasTermsDictionary = false;
+      for (MapFieldEntry entry : fieldEntries.values()) {
+        hasBitmaps |= entry.hasBitmaps();
+        hasTermsDictionary |= entry.hasTermsDictionary;
+      }
+      this.dataFile = openChecked(
+          MapPostingsFormat.getFieldDataFileName(segmentName, state.segmentSuffix),
+          MapPostingsFormat.FIELD_DATA_CODEC);
+      if (hasBitmaps) {
+        this.bitmapFile = openChecked(
+            MapPostingsFormat.getFieldBitmapFileName(segmentName, state.segmentSuffix),
+            MapPostingsFormat.FIELD_BITMAP_CODEC);
+      }
+      if (hasTermsDictionary) {
+        this.termsDictionary = new BlockTreeTermsReader(reader, state,
+            postingsFormat.residency() == MapPostingsFormat.Residency.ON_HEAP
+                ? BlockTreeTermsReader.FSTLoadMode.ON_HEAP
+                : BlockTreeTermsReader.FSTLoadMode.OFF_HEAP);
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(mapFile, dataFile, bitmapFile);
+      }
+    }
+  }
+
+  // Opens the file and checks its header, and that it is long enough to have a
+  // footer. Its checksum is only verified by checkIntegrity().
+  private IndexInput openChecked(String fileName, String codec) throws IOException {
+    IndexInput input = state.directory.openInput(fileName, state.context);
+    boolean success = false;
+    try {
+      CodecUtil.checkIndexHeader(input, codec, MapPostingsFormat.VERSION_START,
+          MapPostingsFormat.VERSION_CURRENT, state.segmentInfo.getId(), state.segmentSuffix);
+      CodecUtil.retrieveChecksum(input);
+      success = true;
+      return input;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(input);
+      }
+    }
+  }
+
+  // Reads the field entries at the end of the .fme file
+  private void readDirectory(IndexInput in) throws IOException {
+    in.seek(in.length() - CodecUtil.footerLength() - Long.BYTES);
+    in.seek(in.readLong());
+    int numFields = in.readVInt();
+    for (int i = 0; i < numFields; ++i) {
+      MapFieldEntry entry = MapFieldEntry.read(in);
+      FieldInfo fieldInfo = state.fieldInfos.fieldInfo(entry.fieldNumber);
+      if (fieldInfo == null) {
+        throw new CorruptIndexException("Invalid field number: " + entry.fieldNumber, in);
+      }
+      if (fieldEntries.put(fieldInfo.name, entry) != null) {
+        throw new CorruptIndexException("Duplicate field: " + fieldInfo.name, in);
+      }
+    }
   }
 
   @Override
   public Terms terms(String field) throws IOException {
-
+    MapFieldEntry entry = fieldEntries.get(field);
+    if (entry == null) {
+      return null;
+    }
     MapTerms terms = termsCache.get(field);
     if (terms == null) {
-      String fileName = MapPostingsFormat.getFieldMapFileName(segmentName, state.segmentSuffix);
       try {
-        IndexInput in = this.state.directory.openInput(fileName, state.context);
-        terms = new MapTerms(field, in);
-        termsCache.put(field, terms);
-      } catch (IOException e) {
-        e.printStackTrace();
-        return null;
+        terms = termsCache.computeIfAbsent(field, f -> {
+          try {
+            return new MapTerms(f, entry);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
       }
     }
     return terms;
-
   }
 
   @Override
   public void close() throws IOException {
-    reader.close();
+    for (MapTerms terms : termsCache.values()) {
+      terms.close();
+    }
+    // The terms dictionary closes the postings reader
+    IOUtils.close(termsDictionary != null ? termsDictionary : reader, mapFile, dataFile,
+        bitmapFile);
   }
 
   @Override
   public Iterator<String> iterator() {
-    // TODO
-    return null;
+    return Collections.unmodifiableSet(fieldEntries.keySet()).iterator();
   }
 
   @Override
@@ -98,57 +216,268 @@ public class MapFieldsReader extends FieldsProducer {
 
   @Override
   public void checkIntegrity() throws IOException {
-    throw new RuntimeException("checkIntegrity() called in MapFieldsReader");
+    CodecUtil.checksumEntireFile(mapFile);
+    CodecUtil.checksumEntireFile(dataFile);
+    if (bitmapFile != null) {
+      CodecUtil.checksumEntireFile(bitmapFile);
+    }
+    // The terms dictionary also checks the postings reader
+    if (termsDictionary != null) {
+      termsDictionary.checkIntegrity();
+    } else {
+      reader.checkIntegrity();
+    }
   }
 
   @Override
   public int size() {
-    throw new RuntimeException("size() called in MapFieldsReader");
+    return fieldEntries.size();
   }
 
-  private class MapTerms extends Terms {
+  public class MapTerms extends Terms {
     private FieldInfo fieldInfo;
 
     private int docCount, termCount;
+    private long sumDocFreq, sumTotalTermFreq;
 
-    private RobinHoodHashMap map;
-
+    private TermMapType mapType;
     private int k, capacity;
-
-    private IndexInput dataFile;
-
-    private MapTerms(String field, IndexInput in) throws IOException {
+    private int hashcodeSizeBytes, fingerprintSizeBytes, valueSizeBytes;
+
+    // Always on heap, null unless the format wrote one for the field
+    private XorFilter filter;
+    // Whether the map keeps whole fingerprints, so that a hit is always the
+    // fingerprint looked up
+    private boolean exactLookups;
+    // Bits a fingerprint of the field can have, all of them if the map
+    // truncates fingerprints anyway
+    private long fingerprintMask = -1L;
+    // Where the fingerprints are listed in the data section, -1 if the map
+    // keeps them in full or the field has a terms dictionary
+    private long fingerprintsFP = -1;
+
+    // Exactly one of these is set, depending on the format's residency
+    private RandomAccessInput heapTable;
+    private IndexInput tableSlice;
+
+    // The field's sections of the segment's files
+    private IndexInput dataSlice;
+    // Only set if dense terms of the field were saved as bitmaps
+    private IndexInput bitmapSlice;
+
+    // The field's terms in the terms dictionary, null if it has none
+    private Terms dictionaryTerms;
+
+    private MapTerms(String field, MapFieldEntry entry) throws IOException {
       this.fieldInfo = state.fieldInfos.fieldInfo(field);
 
+      IndexInput in = mapFile.slice("map " + field, entry.mapOffset, entry.mapLength);
       this.docCount = in.readVInt();
       this.termCount = in.readVInt();
-      int k = in.readVInt();
+      this.sumDocFreq = in.readVLong();
+      this.sumTotalTermFreq = in.readVLong();
+      int mapTypeId = in.readByte();
+      this.mapType = TermMapType.fromId(mapTypeId);
+      if (mapType == null) {
+        throw new CorruptIndexException("Unknown term map type: " + mapTypeId, in);
+      }
+      this.k = in.readVInt();
+      int flags = in.readByte();
+      if ((flags & ~(MapFieldsWriter.MAP_HAS_SKIP_FILTER | MapFieldsWriter.MAP_FULL_FINGERPRINTS
+          | MapFieldsWriter.MAP_HAS_FINGERPRINT_LIST)) != 0) {
+        throw new CorruptIndexException("Invalid map flags: " + flags, in);
+      }
+      if ((flags & MapFieldsWriter.MAP_HAS_FINGERPRINT_LIST) != 0) {
+        this.fingerprintsFP = in.readVLong();
+      }
+      if ((flags & MapFieldsWriter.MAP_HAS_SKIP_FILTER) != 0) {
+        this.filter = XorFilter.read(in);
+      }
 
-      int capacity = in.readVInt();
-      this.k = k;
-      this.capacity = capacity;
-      postingsFormat.setCapacity(capacity);
-      int distSizeBytes = in.readVInt();
-      int fingerprintSizeBytes = in.readVInt();
-      int valueSizeBytes = in.readVInt();
+      this.capacity = in.readVInt();
+      this.hashcodeSizeBytes = in.readVInt();
+      this.fingerprintSizeBytes = in.readVInt();
+      this.valueSizeBytes = in.readVInt();
+      this.exactLookups = (flags & MapFieldsWriter.MAP_FULL_FINGERPRINTS) != 0;
+      if (exactLookups && fingerprintSizeBytes < Long.BYTES) {
+        // The map only compares the bytes it keeps, so wider fingerprints would
+        // match the term with the same low bytes
+        this.fingerprintMask = (1L << (8 * fingerprintSizeBytes)) - 1;
+      }
 
-      // TODO: Switch to off-heap ByteBuffer - use RandomAccessSlice
-      byte arr[] = new byte[capacity * (distSizeBytes + fingerprintSizeBytes + valueSizeBytes)];
-      in.readBytes(arr, 0, arr.length);
-      this.map = new RobinHoodHashMap();
-      map.open(capacity, distSizeBytes, fingerprintSizeBytes, valueSizeBytes, arr);
+      // The map's layout is up to its implementation, it runs until the end of
+      // the section
+      long tableLength = in.length() - in.getFilePointer();
+      if (postingsFormat.residency() == MapPostingsFormat.Residency.ON_HEAP) {
+        byte arr[] = new byte[Math.toIntExact(tableLength)];
+        in.readBytes(arr, 0, arr.length);
+        // Absolute reads on a read-only heap buffer are safe to share between threads
+        this.heapTable = new ByteBuffersDataInput(
+            Collections.singletonList(ByteBuffer.wrap(arr)));
+      } else {
+        // Reads go straight to the file, so nothing is copied at open time
+        this.tableSlice = in.slice("map table", in.getFilePointer(), tableLength);
+      }
 
-      this.dataFile = state.directory.openInput(
-          MapPostingsFormat.getFieldDataFileName(segmentName, state.segmentSuffix), state.context);
+      this.dataSlice = dataFile.slice("data " + field, entry.dataOffset, entry.dataLength);
+      if (entry.hasBitmaps()) {
+        this.bitmapSlice = bitmapFile.slice("bitmaps " + field, entry.bitmapOffset,
+            entry.bitmapLength);
+      }
+      if (entry.hasTermsDictionary) {
+        this.dictionaryTerms = termsDictionary.terms(field);
+        if (dictionaryTerms == null) {
+          throw new CorruptIndexException("Field " + field + " is missing from the terms dictionary",
+              mapFile);
+        }
+      }
     }
 
+    // Each thread's enum for sharedIterator(), so exact queries reuse one enum
+    // and its readers per thread and segment instead of opening new ones
+    private final CloseableThreadLocal<MapTermsEnum> threadEnums = new CloseableThreadLocal<>();
+
+    // Every enum gets its own view of the table, so lookups never share
+    // mutable input state between enums
+    private TermMapReader openMap() throws IOException {
+      RandomAccessInput table = heapTable;
+      if (table == null) {
+        table = randomAccessClone(tableSlice);
+      }
+      TermMapReader map = mapType.newReader();
+      map.open(capacity, hashcodeSizeBytes, fingerprintSizeBytes, valueSizeBytes, table);
+      return map;
+    }
+
+    private MapTermsEnum threadEnum() throws IOException {
+      MapTermsEnum termsEnum = threadEnums.get();
+      if (termsEnum == null) {
+        termsEnum = new MapTermsEnum(this);
+        threadEnums.set(termsEnum);
+      }
+      return termsEnum;
+    }
+
+    /**
+     * Returns a new enum with its own readers. Like any other terms enum, it
+     * can be handed to another thread, as long as one thread uses it at a time.
+     */
     @Override
     public TermsEnum iterator() throws IOException {
-      if (map != null) {
-        return new MapTermsEnum(fieldInfo, map, k, capacity, dataFile);
-      } else {
-        return TermsEnum.EMPTY;
+      return new MapTermsEnum(this);
+    }
+
+    /**
+     * Returns the calling thread's enum over these terms, unpositioned, without
+     * allocating. It is the same enum on every call from the thread, so it is
+     * only valid until the thread's next call: callers that look up one term at
+     * a time per segment, like exact queries, can use it instead of
+     * {@link #iterator()}.
+     */
+    public MapTermsEnum sharedIterator() throws IOException {
+      MapTermsEnum termsEnum = threadEnum();
+      termsEnum.reset();
+      return termsEnum;
+    }
+
+    private void close() {
+      threadEnums.close();
+    }
+
+    /**
+     * Calls the visitor with the fingerprint and map value of every term, read
+     * from the map if it keeps full fingerprints and from the list saved next to
+     * the term states otherwise. Used by merges of fields without a terms
+     * dictionary, which can't enumerate terms.
+     */
+    void forEachTerm(TermMapReader.EntryVisitor visitor) throws IOException {
+      if (fingerprintsFP == -1) {
+        if (exactLookups == false) {
+          throw new IllegalStateException(
+              "Field " + fieldInfo.name + " lists its terms in its terms dictionary");
+        }
+        openMap().forEach(visitor);
+        return;
+      }
+      // The fingerprints are followed by the values, in the same order
+      IndexInput fingerprints = dataSlice.clone();
+      fingerprints.seek(fingerprintsFP);
+      IndexInput values = dataSlice.clone();
+      values.seek(fingerprintsFP + (long) Long.BYTES * termCount);
+      for (int i = 0; i < termCount; ++i) {
+        long fingerprint = fingerprints.readLong();
+        visitor.visit(fingerprint, values.readVLong());
+      }
+    }
+
+    /**
+     * Whether the field also has a terms dictionary, so that its terms can be
+     * enumerated and sought in order.
+     */
+    public boolean hasTermsDictionary() {
+      return dictionaryTerms != null;
+    }
+
+    // The k the Robin Hood map was tuned with, 0 for other maps
+    int k() {
+      return k;
+    }
+
+    int fingerprintSizeBytes() {
+      return fingerprintSizeBytes;
+    }
+
+    int capacity() {
+      return capacity;
+    }
+
+    /**
+     * Bytes of the field's .fde section taken by the list of its fingerprints
+     * and map values, 0 if it has none (see
+     * {@link MapPostingsFormat#usesFullFingerprints}).
+     */
+    public long fingerprintListBytes() {
+      return fingerprintsFP == -1 ? 0 : dataSlice.length() - fingerprintsFP;
+    }
+
+    /**
+     * False if no term of the field has the fingerprint. Only checks its width
+     * and reads the field's skip filter, so callers can rule out a segment
+     * without opening an enum; true if the field has no filter.
+     */
+    public boolean mightContainFingerprint(long fingerprint) {
+      return (fingerprint & ~fingerprintMask) == 0
+          && (filter == null || filter.mightContain(fingerprint));
+    }
+
+    /**
+     * Whether a lookup in the map only finds the term with the fingerprint
+     * looked up. False for {@link TermMapType#ROBIN_HOOD} maps written without
+     * {@link MapPostingsFormat#usesFullFingerprints}, where a lookup of an
+     * absent term can find another term with the same hashcode and low
+     * fingerprint bytes, so that term lookups verify their hits.
+     */
+    public boolean hasExactLookups() {
+      return exactLookups;
+    }
+
+    // The format the terms were opened with, which computes their fingerprints
+    public MapPostingsFormat getPostingsFormat() {
+      return postingsFormat;
+    }
+
+    /**
+     * Like {@link #iterator()}, but returns {@code reuse} if it is an enum
+     * previously obtained from these terms. Callers that keep one enum per thread
+     * can then look terms up without allocating.
+     */
+    public MapTermsEnum iterator(TermsEnum reuse) throws IOException {
+      if (reuse instanceof MapTermsEnum && ((MapTermsEnum) reuse).terms == this) {
+        MapTermsEnum termsEnum = (MapTermsEnum) reuse;
+        termsEnum.reset();
+        return termsEnum;
       }
+      return new MapTermsEnum(this);
     }
 
     @Override
@@ -163,12 +492,12 @@ public class MapFieldsReader extends FieldsProducer {
 
     @Override
     public long getSumTotalTermFreq() throws IOException {
-      throw new UnsupportedOperationException();
+      return sumTotalTermFreq;
     }
 
     @Override
     public long getSumDocFreq() throws IOException {
-      throw new UnsupportedOperationException();
+      return sumDocFreq;
     }
 
     @Override
@@ -191,98 +520,480 @@ public class MapFieldsReader extends FieldsProducer {
     public boolean hasPayloads() {
       return fieldInfo.hasPayloads();
     }
+
+    @Override
+    public TermsEnum intersect(CompiledAutomaton compiled, BytesRef startTerm)
+        throws IOException {
+      if (dictionaryTerms != null) {
+        return dictionaryTerms.intersect(compiled, startTerm);
+      }
+      // The default implementation would take the bounds seekCeil() leaves the
+      // enum on for terms
+      throw new UnsupportedOperationException(
+          "Terms of a map field aren't ordered, intersect needs a terms dictionary");
+    }
+
+    // Without a terms dictionary there is no order to find the bounds in, and
+    // the default implementations would walk the enum forever
+    @Override
+    public BytesRef getMin() throws IOException {
+      if (dictionaryTerms == null) {
+        throw new UnsupportedOperationException("Terms of a map field aren't ordered");
+      }
+      return dictionaryTerms.getMin();
+    }
+
+    @Override
+    public BytesRef getMax() throws IOException {
+      if (dictionaryTerms == null) {
+        throw new UnsupportedOperationException("Terms of a map field aren't ordered");
+      }
+      return dictionaryTerms.getMax();
+    }
   }
 
-  private class MapTermsEnum extends BaseTermsEnum {
-    private FieldInfo fieldInfo;
+  private static RandomAccessInput randomAccessClone(IndexInput in) throws IOException {
+    IndexInput clone = in.clone();
+    if (clone instanceof RandomAccessInput) {
+      return (RandomAccessInput) clone;
+    } else {
+      return clone.randomAccessSlice(0, clone.length());
+    }
+  }
+
+  public class MapTermsEnum extends BaseTermsEnum {
+    private final MapTerms terms;
+    private final FieldInfo fieldInfo;
     private final IndexOptions indexOptions;
+    private final boolean usesHashcode;
     private final int k;
     private final int capacity;
 
-    private RobinHoodHashMap map;
-    private MapFileReader mfr;
-
-    private BlockTermState currentState;
-    private BytesRef currentTerm;
-
-    private MapTermsEnum(FieldInfo fieldInfo, RobinHoodHashMap map, int k, int capacity,
-        IndexInput in) throws IOException {
-      this.fieldInfo = fieldInfo;
+    private final TermMapReader map;
+    private final MapFileReader mfr;
+
+    // Decoded into on every hit, so a lookup doesn't allocate a new state
+    private final MapTermState currentState;
+    private final BlockTermState postingsState;
+    private final BytesRefBuilder currentTerm = new BytesRefBuilder();
+    private boolean positioned;
+    // currentTerm is a bound returned by next() or seekCeil(), which might not
+    // be a term of the field
+    private boolean onBound;
+    // The term was found by fingerprint, so currentTerm doesn't hold it
+    private boolean byFingerprint;
+
+    // On fields with a terms dictionary, every operation but exact lookups goes
+    // to this enum over it, created on first use
+    private TermsEnum dictionaryEnum;
+    // The enum is on the term dictionaryEnum is on, rather than on one the map
+    // found
+    private boolean onDictionaryTerm;
+
+    private MapTermsEnum(MapTerms terms) throws IOException {
+      this.terms = terms;
+      this.fieldInfo = terms.fieldInfo;
       this.indexOptions = fieldInfo.getIndexOptions();
-      this.map = map;
-      this.k = k;
-      this.capacity = capacity;
+      this.usesHashcode = terms.mapType.usesHashcode();
+      this.k = terms.k;
+      this.capacity = terms.capacity;
+
+      // Every enum reads through its own view of the files
+      this.map = terms.openMap();
+      this.mfr = new MapFileReader(randomAccessClone(terms.dataSlice),
+          terms.bitmapSlice != null ? randomAccessClone(terms.bitmapSlice) : null, fieldInfo);
+      this.postingsState = reader.newTermState();
+      this.currentState = new MapTermState(postingsState);
+    }
 
-      this.mfr = new MapFileReader(in);
+    private void reset() {
+      positioned = false;
+      onBound = false;
+      onDictionaryTerm = false;
     }
 
+    private TermsEnum dictionaryEnum() throws IOException {
+      if (dictionaryEnum == null) {
+        dictionaryEnum = terms.dictionaryTerms.iterator();
+      }
+      return dictionaryEnum;
+    }
+
+    /**
+     * Looks the term up in the map. Hits are checked with {@link #verifyHit},
+     * so like the lookups of any other terms enum, this only finds the term
+     * itself, whatever wraps the enum.
+     */
     @Override
     public boolean seekExact(BytesRef text) throws IOException {
       long fingerprint = postingsFormat.getFingerprint(text);
-      int value = map.get(ParameterAnalyzer.getHashcode(fingerprint, k, capacity),
-          fingerprint & 0xff);
+      if (seekExactFingerprint(fingerprint) && verifyHit(fingerprint, text)) {
+        currentTerm.copyBytes(text);
+        byFingerprint = false;
+        return true;
+      }
+      positioned = false;
+      return false;
+    }
+
+    /**
+     * Seeks to the term with the given fingerprint, as computed by the terms'
+     * {@link MapPostingsFormat}. Callers looking up the same term in many
+     * segments can compute it once and skip decoding the term in each one.
+     * Since only the fingerprint is known, {@link #term()} is empty after a hit.
+     * Hits aren't verified: callers that need them exact call
+     * {@link #verifyHit} unless the terms {@link MapTerms#hasExactLookups()}.
+     */
+    public boolean seekExactFingerprint(long fingerprint) throws IOException {
+      long value = terms.mightContainFingerprint(fingerprint)
+          ? map.get(hashcode(fingerprint), fingerprint)
+          : -1;
+      onBound = false;
+      onDictionaryTerm = false;
       if (value != -1) {
-        currentState = mfr.read(value);
-        currentTerm = text;
+        mfr.read(value, currentState);
+        currentTerm.clear();
+        positioned = true;
+        byFingerprint = true;
         return true;
       } else {
-        currentTerm = null;
+        positioned = false;
         return false;
       }
     }
 
+    /**
+     * Looks up count fingerprints at once, calling the visitor with this enum
+     * positioned on the term of each one that is found (with an empty
+     * {@link #term()}). When the keys are dense enough in the map, they are
+     * probed in order of their home slots so the table is read front to back,
+     * and term states are always read in file order once every key has been
+     * probed, so hits are visited in no particular order.
+     */
+    public void seekExactFingerprints(long[] fingerprints, int count, TermHitVisitor visitor)
+        throws IOException {
+      // Keys the skip filter rules out are never probed
+      long[] order = new long[count];
+      int numProbes = 0;
+      for (int i = 0; i < count; ++i) {
+        if (terms.mightContainFingerprint(fingerprints[i])) {
+          order[numProbes++] = i;
+        }
+      }
+      // Sorting costs O(count log count) but saves little when the probes are
+      // spread over much more of the table than a page each
+      boolean sortProbes = (long) numProbes * SORTED_PROBE_SPACING >= terms.termCount;
+      if (sortProbes) {
+        for (int i = 0; i < numProbes; ++i) {
+          long fingerprint = fingerprints[(int) order[i]];
+          order[i] |= (long) map.homeSlot(hashcode(fingerprint), fingerprint) << 32;
+        }
+        Arrays.sort(order, 0, numProbes);
+      }
+
+      // Each hit is the index of its fingerprint, sorted by its map value,
+      // which grows with the pointer to the state it references
+      long[] hitValues = new long[numProbes];
+      long[] hitIndexes = order;
+      int numHits = 0;
+      for (int i = 0; i < numProbes; ++i) {
+        int index = (int) order[i];
+        long fingerprint = fingerprints[index];
+        long value = map.get(hashcode(fingerprint), fingerprint);
+        if (value != -1) {
+          hitValues[numHits] = value;
+          hitIndexes[numHits++] = index;
+        }
+      }
+      sortHits(hitValues, hitIndexes, numHits);
+      onBound = false;
+      onDictionaryTerm = false;
+      byFingerprint = true;
+      try {
+        for (int i = 0; i < numHits; ++i) {
+          if (i == 0 || hitValues[i] != hitValues[i - 1]) {
+            mfr.read(hitValues[i], currentState);
+          }
+          currentTerm.clear();
+          positioned = true;
+          visitor.visitHit((int) hitIndexes[i], this);
+        }
+      } finally {
+        positioned = false;
+      }
+    }
+
+    /**
+     * Whether the term a lookup of the fingerprint found really is term, whose
+     * fingerprint it is, for callers of the fingerprint lookups that must not
+     * act on a false positive. Maps with exact lookups only find terms with the
+     * fingerprint. A {@link TermMapType#ROBIN_HOOD} map without full
+     * fingerprints can also find a term with the same hashcode and low
+     * fingerprint bytes, so the fingerprint is looked up in the field's full
+     * fingerprints, which are saved in order in the .fde file: a binary search
+     * reading one long per step. Fields with a terms dictionary don't save
+     * them, and look term up in the dictionary instead.
+     */
+    public boolean verifyHit(long fingerprint, BytesRef term) throws IOException {
+      if (terms.exactLookups) {
+        return true;
+      }
+      if (terms.fingerprintsFP == -1) {
+        return dictionaryEnum().seekExact(term);
+      }
+      long low = 0;
+      long high = terms.termCount - 1;
+      while (low <= high) {
+        long mid = (low + high) >>> 1;
+        long midFingerprint = mfr.in.readLong(terms.fingerprintsFP + mid * Long.BYTES);
+        if (midFingerprint < fingerprint) {
+          low = mid + 1;
+        } else if (midFingerprint > fingerprint) {
+          high = mid - 1;
+        } else {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    // Positions the enum on the term with the given map value, as listed by
+    // MapTerms.forEachTerm
+    void seekExactValue(long value) throws IOException {
+      mfr.read(value, currentState);
+      currentTerm.clear();
+      positioned = true;
+      byFingerprint = true;
+      onBound = false;
+      onDictionaryTerm = false;
+    }
+
+    private void sortHits(long[] values, long[] indexes, int numHits) {
+      new IntroSorter() {
+        long pivot;
+
+        @Override
+        protected void setPivot(int i) {
+          pivot = values[i];
+        }
+
+        @Override
+        protected int comparePivot(int j) {
+          return Long.compare(pivot, values[j]);
+        }
+
+        @Override
+        protected int compare(int i, int j) {
+          return Long.compare(values[i], values[j]);
+        }
+
+        @Override
+        protected void swap(int i, int j) {
+          long value = values[i];
+          values[i] = values[j];
+          values[j] = value;
+          long index = indexes[i];
+          indexes[i] = indexes[j];
+          indexes[j] = index;
+        }
+      }.sort(0, numHits);
+    }
+
+    private int hashcode(long fingerprint) {
+      return usesHashcode ? ParameterAnalyzer.getHashcode(fingerprint, k, capacity) : 0;
+    }
+
+    @Override
+    public void seekExact(BytesRef target, TermState otherState) throws IOException {
+      if (otherState instanceof MapTermState == false && terms.dictionaryTerms != null) {
+        // The state came from the terms dictionary
+        dictionaryEnum().seekExact(target, otherState);
+        positioned = false;
+        onDictionaryTerm = true;
+        return;
+      }
+      // The state came from termState() on a hit, so there is no need to probe
+      // the map again, only to decode the value it found
+      MapTermState state = (MapTermState) otherState;
+      if (state.postingsState == null) {
+        mfr.read(state.value, currentState);
+      } else {
+        currentState.copyFrom(state);
+      }
+      currentTerm.copyBytes(target);
+      positioned = true;
+      byFingerprint = false;
+      onBound = false;
+      onDictionaryTerm = false;
+    }
+
+    @Override
+    public TermState termState() throws IOException {
+      if (onDictionaryTerm) {
+        return dictionaryEnum.termState();
+      }
+      // Just the map value, which seekExact decodes again, so that saving the
+      // state of every segment's hit, as TermQuery does, copies no postings state
+      if (currentState.value != -1) {
+        return MapTermState.forValue(currentState.value);
+      }
+      return currentState.clone();
+    }
+
     @Override
     public BytesRef term() throws IOException {
-      return currentTerm;
+      if (onDictionaryTerm) {
+        return dictionaryEnum.term();
+      }
+      return positioned || onBound ? currentTerm.get() : null;
     }
 
     @Override
     public int docFreq() throws IOException {
-      if (currentState != null)
-        return currentState.docFreq;
+      if (onDictionaryTerm) {
+        return dictionaryEnum.docFreq();
+      }
+      if (positioned)
+        return postingsState.docFreq;
       else
         return -1;
     }
 
     @Override
     public long totalTermFreq() throws IOException {
-      if (currentState != null) {
+      if (onDictionaryTerm) {
+        return dictionaryEnum.totalTermFreq();
+      }
+      if (positioned) {
         if (indexOptions == IndexOptions.DOCS)
-          return currentState.docFreq;
+          return postingsState.docFreq;
         else
-          return currentState.totalTermFreq;
+          return postingsState.totalTermFreq;
       } else
         return -1;
     }
 
     @Override
     public PostingsEnum postings(PostingsEnum reuse, int flags) throws IOException {
-      return reader.postings(fieldInfo, currentState, reuse, flags);
+      if (onDictionaryTerm) {
+        return dictionaryEnum.postings(reuse, flags);
+      }
+      if (positioned == false) {
+        // A bound is only a term if a lookup finds it
+        if (onBound == false || seekExact(BytesRef.deepCopyOf(currentTerm.get())) == false) {
+          return mfr.emptyPostings();
+        }
+      }
+      if (currentState.pulsedFP != -1 || currentState.bitmapFP != -1) {
+        return mfr.postings(currentState, reuse);
+      }
+      return reader.postings(fieldInfo, postingsState, reuse, flags);
     }
 
     @Override
     public ImpactsEnum impacts(int flags) throws IOException {
-      return new SlowImpactsEnum(postings(null, flags));
+      if (onDictionaryTerm) {
+        return dictionaryEnum.impacts(flags);
+      }
+      if (positioned == false) {
+        return new SlowImpactsEnum(postings(null, flags));
+      }
+      if (currentState.impactFP != -1) {
+        return mfr.impacts(currentState, postings(null, flags));
+      }
+      if (currentState.pulsedFP != -1 || currentState.bitmapFP != -1) {
+        return new SlowImpactsEnum(postings(null, flags));
+      }
+      // Terms with skip data have per-block impacts
+      return reader.impacts(fieldInfo, postingsState, flags);
     }
 
+    /**
+     * On a field with a terms dictionary, moves to the dictionary's next term,
+     * after the one the map found if the enum is on one. Otherwise terms aren't
+     * stored, so they can't be enumerated, but sorted terms can still be walked
+     * the way IndexWriter applies deleted terms, whoever wraps the enum: next()
+     * on an unpositioned enum returns the empty term, a bound no term sorts
+     * before, and {@link #seekCeil} then looks each term up exactly. Any other
+     * call throws.
+     */
     @Override
     public BytesRef next() throws IOException {
-      throw new UnsupportedOperationException();
+      if (terms.dictionaryTerms != null) {
+        return nextFromDictionary();
+      }
+      if (positioned || onBound) {
+        throw new UnsupportedOperationException("Terms of a map field can't be enumerated");
+      }
+      currentTerm.clear();
+      onBound = true;
+      return currentTerm.get();
     }
 
+    private BytesRef nextFromDictionary() throws IOException {
+      TermsEnum dictionary = dictionaryEnum();
+      BytesRef term;
+      if (positioned) {
+        // The dictionary has to catch up with the term the map found
+        if (byFingerprint) {
+          throw new UnsupportedOperationException(
+              "Can't move on from a term that was looked up by fingerprint");
+        }
+        positioned = false;
+        SeekStatus status = dictionary.seekCeil(currentTerm.get());
+        if (status == SeekStatus.END) {
+          term = null;
+        } else if (status == SeekStatus.FOUND) {
+          term = dictionary.next();
+        } else {
+          term = dictionary.term();
+        }
+      } else {
+        term = dictionary.next();
+      }
+      onDictionaryTerm = term != null;
+      return term;
+    }
+
+    /**
+     * On a field with a terms dictionary, seeks the dictionary. Otherwise there
+     * is no order to find the ceiling in, so this is {@link #seekExact(BytesRef)}.
+     * If text isn't found, the enum is left on text as a
+     * bound with no postings, which is all that a caller walking sorted terms
+     * (see {@link #next()}) compares the next one with.
+     */
     @Override
     public SeekStatus seekCeil(BytesRef text) throws IOException {
-      throw new UnsupportedOperationException();
+      if (terms.dictionaryTerms != null) {
+        positioned = false;
+        SeekStatus status = dictionaryEnum().seekCeil(text);
+        onDictionaryTerm = status != SeekStatus.END;
+        return status;
+      }
+      if (seekExact(text)) {
+        return SeekStatus.FOUND;
+      }
+      currentTerm.copyBytes(text);
+      onBound = true;
+      return SeekStatus.NOT_FOUND;
     }
 
     @Override
     public long ord() throws IOException {
+      if (onDictionaryTerm) {
+        return dictionaryEnum.ord();
+      }
       throw new UnsupportedOperationException();
     }
 
     @Override
     public void seekExact(long ord) throws IOException {
-      throw new UnsupportedOperationException();
+      if (terms.dictionaryTerms == null) {
+        throw new UnsupportedOperationException();
+      }
+      dictionaryEnum().seekExact(ord);
+      positioned = false;
+      onDictionaryTerm = true;
     }
   }
 
@@ -23,23 +23,62 @@
 package org.rsankar.lucenecodecs.mapcodec;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 
 import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.codecs.CodecUtil;
 import org.apache.lucene.codecs.FieldsConsumer;
+import org.apache.lucene.codecs.FieldsProducer;
 import org.apache.lucene.codecs.NormsProducer;
 import org.apache.lucene.codecs.PostingsWriterBase;
+import org.apache.lucene.codecs.blocktree.BlockTreeTermsWriter;
 import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.FieldInfos;
 import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.MappedMultiFields;
+import org.apache.lucene.index.MergeState;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.ReaderSlice;
 import org.apache.lucene.index.SegmentWriteState;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.DataOutput;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefArray;
+import org.apache.lucene.util.Counter;
 import org.apache.lucene.util.FixedBitSet;
-import org.rsankar.lucenecodecs.termmap.RobinHoodHashMap;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.InPlaceMergeSorter;
+import org.rsankar.lucenecodecs.mapcodec.MapFieldsReader.MapTerms;
+import org.rsankar.lucenecodecs.termmap.TermMapType;
+import org.rsankar.lucenecodecs.termmap.TermMapWriter;
+import org.rsankar.lucenecodecs.termmap.XorFilter;
 
+/**
+ * Writes every map field of a segment into one .fme file of maps, one .fde
+ * file of term states and, if any field needs it, one .fbm file of bitmaps.
+ * Each field's part of a file is a contiguous section; the .fme file ends with
+ * a directory of {@link MapFieldEntry}s followed by the directory's file
+ * pointer, then the footer. Fields that use a terms dictionary are also
+ * written to the segment's BlockTree .tim and .tip files.
+ */
 public class MapFieldsWriter extends FieldsConsumer {
+  // Fraction of BucketizedHashMap slots that are filled
+  static final double BUCKETIZED_LOAD_FACTOR = 0.85;
+
+  // Bits of the flags byte in a field's map section
+  static final int MAP_HAS_SKIP_FILTER = 1;
+  // Every slot keeps its whole fingerprint, so a hit is always the key looked up
+  static final int MAP_FULL_FINGERPRINTS = 2;
+  // The field's fingerprints are listed in its .fde section, see finish()
+  static final int MAP_HAS_FINGERPRINT_LIST = 4;
 
   private SegmentWriteState state;
   private PostingsWriterBase writer;
@@ -47,39 +86,69 @@ public class MapFieldsWriter extends FieldsConsumer {
 
   private MapPostingsFormat postingsFormat;
 
+  private IndexOutput mapOut;
+  private IndexOutput dataOut;
+  // Created for the first field with bitmaps
+  private IndexOutput bitmapOut;
+  private final List<MapFieldEntry> fieldEntries = new ArrayList<>();
+
+  // Created for the first field with a terms dictionary, which writes the
+  // field's postings through sharedWriter
+  private BlockTreeTermsWriter termsDictionary;
+  private final SharedPostingsWriter sharedWriter = new SharedPostingsWriter();
+
   public MapFieldsWriter(SegmentWriteState state, PostingsWriterBase writer,
-      MapPostingsFormat postingsFormat) {
+      MapPostingsFormat postingsFormat) throws IOException {
     this.state = state;
     this.writer = writer;
     this.segmentName = state.segmentInfo.name;
     this.postingsFormat = postingsFormat;
+
+    boolean success = false;
+    try {
+      this.mapOut = createOutput(
+          MapPostingsFormat.getFieldMapFileName(segmentName, state.segmentSuffix),
+          MapPostingsFormat.FIELD_MAP_CODEC);
+      this.dataOut = createOutput(
+          MapPostingsFormat.getFieldDataFileName(segmentName, state.segmentSuffix),
+          MapPostingsFormat.FIELD_DATA_CODEC);
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(mapOut, dataOut);
+      }
+    }
+  }
+
+  private IndexOutput createOutput(String fileName, String codec) throws IOException {
+    IndexOutput out = state.directory.createOutput(fileName, state.context);
+    boolean success = false;
+    try {
+      CodecUtil.writeIndexHeader(out, codec, MapPostingsFormat.VERSION_CURRENT,
+          state.segmentInfo.getId(), state.segmentSuffix);
+      success = true;
+      return out;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(out);
+      }
+    }
   }
 
   @Override
   public void write(Fields fields, NormsProducer norms) throws IOException {
     FieldInfos fieldInfos = state.fieldInfos;
     for (String field : fields) {
-      FixedBitSet docsSeen = new FixedBitSet(state.segmentInfo.maxDoc());
       Terms terms = fields.terms(field);
       if (terms == null) {
         continue;
       }
-      ParameterAnalyzer analyzer = new ParameterAnalyzer(terms, postingsFormat);
-      int termCount = analyzer.termCount;
-      int capacity = analyzer.capacity;
-      postingsFormat.setCapacity(capacity);
-      int distSizeBytes = 1; // if not, ParameterAnalyzer will throw exception
-      int fingerprintSizeBytes = 1; // if not, ParameterAnalyzer will throw exception
-      int valueSizeBytes = 4; // TODO: optimize this
-      RobinHoodHashMap map = new RobinHoodHashMap();
-      map.create(capacity, distSizeBytes, fingerprintSizeBytes, valueSizeBytes);
       FieldInfo fieldInfo = fieldInfos.fieldInfo(field);
-      writer.setField(fieldInfo);
-      String fieldDataFileName = MapPostingsFormat.getFieldDataFileName(segmentName,
-          state.segmentSuffix);
-
-      MapFileWriter mfw = new MapFileWriter(
-          state.directory.createOutput(fieldDataFileName, state.context));
+      if (postingsFormat.usesTermsDictionary(fieldInfo)) {
+        writeWithTermsDictionary(fieldInfo, terms, norms, null, 0);
+        continue;
+      }
+      FieldWriter fieldWriter = new FieldWriter(fieldInfo, false);
 
       TermsEnum termsEnum = terms.iterator();
       while (true) {
@@ -87,35 +156,484 @@ public class MapFieldsWriter extends FieldsConsumer {
         if (term == null) {
           break;
         }
+        fieldWriter.writeTerm(postingsFormat.getFingerprint(term), term, termsEnum, norms);
+      }
+      fieldWriter.finish(null, 0);
+    }
+
+  }
+
+  // Writes the field's terms to the terms dictionary, which hands the state of
+  // each term to the field's map as its postings are written
+  private void writeWithTermsDictionary(FieldInfo fieldInfo, Terms terms, NormsProducer norms,
+      int[] hintKs, int hintFingerprintSizeBytes) throws IOException {
+    if (termsDictionary == null) {
+      termsDictionary = new BlockTreeTermsWriter(state, sharedWriter,
+          BlockTreeTermsWriter.DEFAULT_MIN_BLOCK_SIZE, BlockTreeTermsWriter.DEFAULT_MAX_BLOCK_SIZE);
+    }
+    FieldWriter fieldWriter = new FieldWriter(fieldInfo, true);
+    sharedWriter.fieldWriter = fieldWriter;
+    try {
+      termsDictionary.write(new Fields() {
+        @Override
+        public Iterator<String> iterator() {
+          return Collections.singleton(fieldInfo.name).iterator();
+        }
+
+        @Override
+        public Terms terms(String field) {
+          return fieldInfo.name.equals(field) ? terms : null;
+        }
+
+        @Override
+        public int size() {
+          return 1;
+        }
+      }, norms);
+    } finally {
+      sharedWriter.fieldWriter = null;
+    }
+    fieldWriter.finish(hintKs, hintFingerprintSizeBytes);
+  }
 
-        long fingerprint = postingsFormat.getFingerprint(term);
+  /**
+   * Map fields can't enumerate their terms, so instead of merging through
+   * {@link #write}, the fingerprint and map value of every term of every
+   * source are listed straight from the source maps and sorted by fingerprint.
+   * Each fingerprint is then written once, with the postings of all the
+   * sources that have it and docIDs mapped through the MergeState. Sources
+   * written with another format are enumerated and fingerprinted as usual.
+   * Robin Hood maps are tuned starting from the ks the sources were tuned with.
+   * Fields with a terms dictionary are merged in term order like with any
+   * other format, as long as every source can enumerate their terms.
+   */
+  @Override
+  public void merge(MergeState mergeState, NormsProducer norms) throws IOException {
+    int numSources = mergeState.fieldsProducers.length;
+    // Only built if some field is merged in term order
+    Fields mergedFields = null;
+    for (FieldInfo fieldInfo : mergeState.mergeFieldInfos) {
+      if (fieldInfo.getIndexOptions() == IndexOptions.NONE) {
+        continue;
+      }
+
+      if (postingsFormat.usesTermsDictionary(fieldInfo)
+          && canEnumerateTerms(mergeState, fieldInfo)) {
+        if (mergedFields == null) {
+          mergedFields = mergedFields(mergeState);
+        }
+        Terms terms = mergedFields.terms(fieldInfo.name);
+        if (terms != null) {
+          int[] hintKs = new int[numSources];
+          int numHintKs = 0;
+          int hintFingerprintSizeBytes = 0;
+          for (FieldsProducer producer : mergeState.fieldsProducers) {
+            Terms sourceTerms = producer == null ? null : producer.terms(fieldInfo.name);
+            if (sourceTerms instanceof MapTerms && ((MapTerms) sourceTerms).k() != 0) {
+              hintKs[numHintKs++] = ((MapTerms) sourceTerms).k();
+              hintFingerprintSizeBytes = Math.max(hintFingerprintSizeBytes,
+                  ((MapTerms) sourceTerms).fingerprintSizeBytes());
+            }
+          }
+          writeWithTermsDictionary(fieldInfo, terms, norms, Arrays.copyOf(hintKs, numHintKs),
+              hintFingerprintSizeBytes);
+        }
+        continue;
+      }
 
-        BlockTermState bts = writer.writeTerm(term, termsEnum, docsSeen, norms);
+      MergedTermsEnum.Source[] sources = new MergedTermsEnum.Source[numSources];
+      // Every term of every source, as fingerprint, source and the source's
+      // reference to the term
+      long[] fingerprints = new long[16];
+      int[] sourceIndexes = new int[16];
+      long[] refs = new long[16];
+      int numEntries = 0;
+      int[] hintKs = new int[numSources];
+      int numHintKs = 0;
+      int hintFingerprintSizeBytes = 0;
+      boolean hasTerms = false;
 
-        int value = mfw.saveToFile(bts);
+      for (int i = 0; i < numSources; ++i) {
+        FieldsProducer producer = mergeState.fieldsProducers[i];
+        Terms terms = producer == null ? null : producer.terms(fieldInfo.name);
+        if (terms == null) {
+          continue;
+        }
+        hasTerms = true;
+        int sourceIndex = i;
+        if (terms instanceof MapTerms) {
+          MapTerms mapTerms = (MapTerms) terms;
+          sources[i] = new MergedTermsEnum.MapSource(mapTerms.iterator(null));
+          if (mapTerms.k() != 0) {
+            hintKs[numHintKs++] = mapTerms.k();
+            hintFingerprintSizeBytes = Math.max(hintFingerprintSizeBytes,
+                mapTerms.fingerprintSizeBytes());
+          }
+          int start = numEntries;
+          int size = Math.toIntExact(mapTerms.size());
+          fingerprints = ArrayUtil.grow(fingerprints, start + size);
+          sourceIndexes = ArrayUtil.growExact(sourceIndexes, fingerprints.length);
+          refs = ArrayUtil.growExact(refs, fingerprints.length);
+          long[] fps = fingerprints;
+          int[] srcs = sourceIndexes;
+          long[] values = refs;
+          int[] count = { start };
+          mapTerms.forEachTerm((fingerprint, value) -> {
+            fps[count[0]] = fingerprint;
+            srcs[count[0]] = sourceIndex;
+            values[count[0]++] = value;
+          });
+          numEntries = count[0];
+        } else {
+          BytesRefArray sourceTerms = new BytesRefArray(Counter.newCounter());
+          TermsEnum termsEnum = terms.iterator();
+          for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+            if (numEntries == fingerprints.length) {
+              fingerprints = ArrayUtil.grow(fingerprints, numEntries + 1);
+              sourceIndexes = ArrayUtil.growExact(sourceIndexes, fingerprints.length);
+              refs = ArrayUtil.growExact(refs, fingerprints.length);
+            }
+            fingerprints[numEntries] = postingsFormat.getFingerprint(term);
+            sourceIndexes[numEntries] = sourceIndex;
+            refs[numEntries++] = sourceTerms.append(term);
+          }
+          sources[i] = new MergedTermsEnum.TermsSource(terms.iterator(), sourceTerms);
+        }
+      }
+      if (hasTerms == false) {
+        continue;
+      }
 
-        map.put(analyzer.getHashcode(fingerprint), fingerprint & 0xff, value);
+      sortEntries(fingerprints, sourceIndexes, refs, numEntries);
 
-        // System.out.println("Debug: " + map.get(analyzer.getHashcode(fingerprint),
-        // fingerprint & 0xff) + " " + Long.toHexString(fingerprint));
+      FieldWriter fieldWriter = new FieldWriter(fieldInfo, false);
+      MergedTermsEnum termsEnum = new MergedTermsEnum(sources, mergeState);
+      BytesRef emptyTerm = new BytesRef();
+      for (int start = 0, end; start < numEntries; start = end) {
+        long fingerprint = fingerprints[start];
+        termsEnum.reset();
+        for (end = start; end < numEntries && fingerprints[end] == fingerprint; ++end) {
+          // A source only has one term per fingerprint, the one its map keeps
+          if (end + 1 == numEntries || fingerprints[end + 1] != fingerprint
+              || sourceIndexes[end + 1] != sourceIndexes[end]) {
+            termsEnum.add(sourceIndexes[end], refs[end]);
+          }
+        }
+        fieldWriter.writeTerm(fingerprint, emptyTerm, termsEnum, norms);
       }
+      fieldWriter.finish(Arrays.copyOf(hintKs, numHintKs), hintFingerprintSizeBytes);
+    }
+  }
 
-      mfw.close();
+  // Whether every source has the field's terms in order: map fields only do if
+  // they were written with a terms dictionary
+  private static boolean canEnumerateTerms(MergeState mergeState, FieldInfo fieldInfo)
+      throws IOException {
+    for (FieldsProducer producer : mergeState.fieldsProducers) {
+      Terms terms = producer == null ? null : producer.terms(fieldInfo.name);
+      if (terms instanceof MapTerms && ((MapTerms) terms).hasTermsDictionary() == false) {
+        return false;
+      }
+    }
+    return true;
+  }
 
-      String fieldMapFileName = MapPostingsFormat.getFieldMapFileName(segmentName,
-          state.segmentSuffix);
-      IndexOutput out = state.directory.createOutput(fieldMapFileName, state.context);
-      out.writeVInt(docsSeen.cardinality());
-      out.writeVInt(termCount);
-      out.writeVInt(analyzer.k);
-      map.save(out);
-      out.close();
+  // The sources' fields as one, with docIDs mapped through the MergeState,
+  // like FieldsConsumer.merge passes to write()
+  private static Fields mergedFields(MergeState mergeState) {
+    int numSources = mergeState.fieldsProducers.length;
+    Fields[] fields = new Fields[numSources];
+    ReaderSlice[] slices = new ReaderSlice[numSources];
+    int docBase = 0;
+    for (int i = 0; i < numSources; ++i) {
+      fields[i] = mergeState.fieldsProducers[i];
+      slices[i] = new ReaderSlice(docBase, mergeState.maxDocs[i], i);
+      docBase += mergeState.maxDocs[i];
     }
+    return new MappedMultiFields(mergeState, new MultiFields(fields, slices));
+  }
 
+  // Sorts the entries by fingerprint, then by source, keeping entries of the
+  // same source in the order they were listed
+  private static void sortEntries(long[] fingerprints, int[] sourceIndexes, long[] refs,
+      int numEntries) {
+    new InPlaceMergeSorter() {
+      @Override
+      protected int compare(int i, int j) {
+        int cmp = Long.compare(fingerprints[i], fingerprints[j]);
+        return cmp != 0 ? cmp : Integer.compare(sourceIndexes[i], sourceIndexes[j]);
+      }
+
+      @Override
+      protected void swap(int i, int j) {
+        long fingerprint = fingerprints[i];
+        fingerprints[i] = fingerprints[j];
+        fingerprints[j] = fingerprint;
+        int sourceIndex = sourceIndexes[i];
+        sourceIndexes[i] = sourceIndexes[j];
+        sourceIndexes[j] = sourceIndex;
+        long ref = refs[i];
+        refs[i] = refs[j];
+        refs[j] = ref;
+      }
+    }.sort(0, numEntries);
+  }
+
+  private static void sortByFingerprint(long[] fingerprints, long[] values, int count) {
+    new InPlaceMergeSorter() {
+      @Override
+      protected int compare(int i, int j) {
+        return Long.compare(fingerprints[i], fingerprints[j]);
+      }
+
+      @Override
+      protected void swap(int i, int j) {
+        long fingerprint = fingerprints[i];
+        fingerprints[i] = fingerprints[j];
+        fingerprints[j] = fingerprint;
+        long value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+      }
+    }.sort(0, count);
+  }
+
+  // Writes one field's sections: its term states (and bitmaps) as terms are
+  // added, then its map once every term is known
+  private class FieldWriter {
+    final FieldInfo fieldInfo;
+    final boolean hasTermsDictionary;
+    final boolean hasBitmaps;
+    final long dataOffset;
+    final long bitmapOffset;
+    final MapFileWriter mfw;
+    // The terms dictionary collects the docs of fields that have one, so this
+    // is replaced with its set as it writes terms
+    FixedBitSet docsSeen;
+
+    // The map is built once every term is written, when the widths it needs
+    // are known
+    long[] fingerprints = new long[16];
+    long[] values = new long[16];
+    int termCount = 0;
+    long maxValue = 0;
+    long fingerprintBits = 0;
+
+    // With a terms dictionary, every term's postings go to the postings writer
+    FieldWriter(FieldInfo fieldInfo, boolean hasTermsDictionary) throws IOException {
+      this.fieldInfo = fieldInfo;
+      this.hasTermsDictionary = hasTermsDictionary;
+      this.docsSeen = new FixedBitSet(state.segmentInfo.maxDoc());
+      writer.setField(fieldInfo);
+
+      this.hasBitmaps = hasTermsDictionary == false && MapFileWriter.canUseBitmaps(fieldInfo)
+          && postingsFormat.usesBitmapPostings(fieldInfo);
+      if (hasBitmaps && bitmapOut == null) {
+        bitmapOut = createOutput(
+            MapPostingsFormat.getFieldBitmapFileName(segmentName, state.segmentSuffix),
+            MapPostingsFormat.FIELD_BITMAP_CODEC);
+      }
+      this.dataOffset = dataOut.getFilePointer();
+      this.bitmapOffset = hasBitmaps ? bitmapOut.getFilePointer() : -1;
+      this.mfw = new MapFileWriter(dataOut, fieldInfo,
+          hasTermsDictionary ? 0 : postingsFormat.pulsingThreshold(),
+          hasBitmaps ? bitmapOut : null, state.segmentInfo.maxDoc());
+    }
+
+    void writeTerm(long fingerprint, BytesRef term, TermsEnum termsEnum, NormsProducer norms)
+        throws IOException {
+      long value = mfw.writeTerm(term, termsEnum, writer, docsSeen, norms);
+      if (value != -1) {
+        add(fingerprint, value);
+      }
+    }
+
+    // Adds a term the terms dictionary wrote the postings of
+    void addTermState(long fingerprint, BlockTermState bts, TermsEnum termsEnum,
+        NormsProducer norms) throws IOException {
+      add(fingerprint, mfw.addTermState(bts, termsEnum, norms));
+    }
+
+    private void add(long fingerprint, long value) {
+      if (termCount == fingerprints.length) {
+        fingerprints = ArrayUtil.grow(fingerprints, termCount + 1);
+        values = ArrayUtil.growExact(values, fingerprints.length);
+      }
+      fingerprints[termCount] = fingerprint;
+      values[termCount] = value;
+      ++termCount;
+      maxValue = Math.max(maxValue, value);
+      fingerprintBits |= fingerprint;
+    }
+
+    // hintKs are the ks of the segments being merged, null when flushing
+    void finish(int[] hintKs, int hintFingerprintSizeBytes) throws IOException {
+      if (hasTermsDictionary && termCount == 0) {
+        // Like the terms dictionary, which leaves out fields without terms
+        return;
+      }
+      // The layout is recorded per field, so small fields, like those of most
+      // NRT flushes, can skip building a tuned map
+      TermMapType mapType = termCount <= postingsFormat.sortedArrayMaxTerms(fieldInfo)
+          ? TermMapType.SORTED_ARRAY
+          : postingsFormat.getTermMapType(fieldInfo);
+      // Robin Hood slots only keep the fingerprint bytes that tell apart keys
+      // with the same hashcode, unless lookups have to be exact
+      boolean fullFingerprints = mapType.storesFullFingerprints()
+          || postingsFormat.usesFullFingerprints(fieldInfo);
+      // Only the Robin Hood map needs (k, capacity) tuned to the field's terms
+      ParameterAnalyzer analyzer = null;
+      int capacity;
+      int hashcodeSizeBytes;
+      int fingerprintSizeBytes;
+      if (mapType.usesHashcode()) {
+        analyzer = new ParameterAnalyzer(Arrays.copyOf(fingerprints, termCount), hintKs,
+            hintFingerprintSizeBytes, postingsFormat.parameterAnalysisMaxCandidates(fieldInfo),
+            postingsFormat.parameterAnalysisBudgetMillis(fieldInfo), state.infoStream,
+            postingsFormat.parameterAnalysisPool());
+        capacity = analyzer.capacity;
+        hashcodeSizeBytes = 1; // if not, ParameterAnalyzer will throw exception
+        fingerprintSizeBytes = analyzer.fingerprintSizeBytes;
+        if (fullFingerprints) {
+          fingerprintSizeBytes = Math.max(fingerprintSizeBytes, bytesNeeded(fingerprintBits));
+        }
+      } else {
+        capacity = mapType == TermMapType.BUCKETIZED
+            ? (int) Math.ceil(termCount / BUCKETIZED_LOAD_FACTOR)
+            : termCount;
+        hashcodeSizeBytes = 0;
+        // Keep every byte that any fingerprint uses, so misses are exact
+        fingerprintSizeBytes = bytesNeeded(fingerprintBits);
+      }
+      int valueSizeBytes = mapType.valueSizeBytes(maxValue);
+      TermMapWriter map = mapType.newWriter();
+      map.create(capacity, hashcodeSizeBytes, fingerprintSizeBytes, valueSizeBytes);
+      for (int i = 0; i < termCount; ++i) {
+        int hashcode = analyzer != null ? analyzer.getHashcode(fingerprints[i]) : 0;
+        map.put(hashcode, fingerprints[i], values[i]);
+      }
+
+      // Maps that don't keep full fingerprints can't list them for merges or
+      // check their hits, so unless a terms dictionary does both, they are saved
+      // after the term states: the fingerprints in order, so that hits can be
+      // checked with a binary search, then the values in the same order. That
+      // is 8 bytes and a vlong per term.
+      long fingerprintsFP = -1;
+      if (fullFingerprints == false && hasTermsDictionary == false) {
+        fingerprintsFP = dataOut.getFilePointer() - dataOffset;
+        sortByFingerprint(fingerprints, values, termCount);
+        for (int i = 0; i < termCount; ++i) {
+          dataOut.writeLong(fingerprints[i]);
+        }
+        for (int i = 0; i < termCount; ++i) {
+          dataOut.writeVLong(values[i]);
+        }
+      }
+
+      XorFilter filter = postingsFormat.usesSkipFilter(fieldInfo)
+          ? XorFilter.build(fingerprints, termCount)
+          : null;
+
+      long mapOffset = mapOut.getFilePointer();
+      mapOut.writeVInt(docsSeen.cardinality());
+      mapOut.writeVInt(termCount);
+      mapOut.writeVLong(mfw.sumDocFreq);
+      mapOut.writeVLong(mfw.sumTotalTermFreq);
+      mapOut.writeByte((byte) mapType.id());
+      mapOut.writeVInt(analyzer != null ? analyzer.k : 0);
+      mapOut.writeByte((byte) ((filter != null ? MAP_HAS_SKIP_FILTER : 0)
+          | (fullFingerprints ? MAP_FULL_FINGERPRINTS : 0)
+          | (fingerprintsFP != -1 ? MAP_HAS_FINGERPRINT_LIST : 0)));
+      if (fingerprintsFP != -1) {
+        mapOut.writeVLong(fingerprintsFP);
+      }
+      if (filter != null) {
+        filter.save(mapOut);
+      }
+      map.save(mapOut);
+
+      fieldEntries.add(new MapFieldEntry(fieldInfo.number, mapOffset,
+          mapOut.getFilePointer() - mapOffset, dataOffset, dataOut.getFilePointer() - dataOffset,
+          bitmapOffset, hasBitmaps ? bitmapOut.getFilePointer() - bitmapOffset : 0,
+          hasTermsDictionary));
+    }
+  }
+
+  /**
+   * The postings writer the terms dictionary writes through. It is the map's
+   * own postings writer, which also adds the state of every term to the map of
+   * the field being written, so the term's postings are only written once.
+   */
+  private class SharedPostingsWriter extends PostingsWriterBase {
+    FieldWriter fieldWriter;
+
+    @Override
+    public void init(IndexOutput termsOut, SegmentWriteState state) throws IOException {
+      writer.init(termsOut, state);
+    }
+
+    @Override
+    public BlockTermState writeTerm(BytesRef term, TermsEnum termsEnum, FixedBitSet docsSeen,
+        NormsProducer norms) throws IOException {
+      BlockTermState bts = writer.writeTerm(term, termsEnum, docsSeen, norms);
+      if (bts != null) {
+        fieldWriter.docsSeen = docsSeen;
+        fieldWriter.addTermState(postingsFormat.getFingerprint(term), bts, termsEnum, norms);
+      }
+      return bts;
+    }
+
+    @Override
+    public void encodeTerm(long[] longs, DataOutput out, FieldInfo fieldInfo,
+        BlockTermState state, boolean absolute) throws IOException {
+      writer.encodeTerm(longs, out, fieldInfo, state, absolute);
+    }
+
+    @Override
+    public int setField(FieldInfo fieldInfo) {
+      return writer.setField(fieldInfo);
+    }
+
+    @Override
+    public void close() {
+      // The postings writer is closed with the MapFieldsWriter
+    }
+  }
+
+  // Bytes needed to store the given bits, at least 1
+  static int bytesNeeded(long bits) {
+    return Math.max(1, (Long.SIZE - Long.numberOfLeadingZeros(bits) + 7) / 8);
   }
 
   @Override
   public void close() throws IOException {
-    writer.close();
+    if (mapOut == null) {
+      return;
+    }
+    boolean success = false;
+    try {
+      long directoryFP = mapOut.getFilePointer();
+      mapOut.writeVInt(fieldEntries.size());
+      for (MapFieldEntry entry : fieldEntries) {
+        entry.write(mapOut);
+      }
+      mapOut.writeLong(directoryFP);
+      CodecUtil.writeFooter(mapOut);
+      CodecUtil.writeFooter(dataOut);
+      if (bitmapOut != null) {
+        CodecUtil.writeFooter(bitmapOut);
+      }
+      success = true;
+    } finally {
+      // The terms dictionary writes its files when closed, before the postings
+      // writer it shares finishes the postings
+      if (success) {
+        IOUtils.close(termsDictionary, mapOut, dataOut, bitmapOut, writer);
+      } else {
+        IOUtils.closeWhileHandlingException(termsDictionary, mapOut, dataOut, bitmapOut, writer);
+      }
+      mapOut = dataOut = bitmapOut = null;
+      termsDictionary = null;
+    }
   }
 }
\ No newline at end of file
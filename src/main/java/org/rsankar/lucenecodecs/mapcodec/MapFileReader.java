@@ -26,17 +26,140 @@ import java.io.IOException;
 
 import org.apache.lucene.codecs.BlockTermState;
 import org.apache.lucene.codecs.lucene50.BlockTermStateHelper;
-import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.ImpactsEnum;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.BitUtil;
 
 public class MapFileReader {
-  IndexInput in;
+  RandomAccessInput in;
+  // The .fbm file, null if the field has no bitmaps
+  RandomAccessInput bitmaps;
+  FieldInfo fieldInfo;
+  boolean hasFreqs;
 
-  public MapFileReader(IndexInput in) {
+  public MapFileReader(RandomAccessInput in, RandomAccessInput bitmaps, FieldInfo fieldInfo) {
     this.in = in;
+    this.bitmaps = bitmaps;
+    this.fieldInfo = fieldInfo;
+    this.hasFreqs = fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS) >= 0;
   }
 
-  // Returns BlockTermState object encoded at given index in the file
-  public BlockTermState read(int index) throws IOException {
-    return BlockTermStateHelper.readFromFile(in, index);
+  // Decodes the term state for the given map value into reuse, reading the
+  // file only if the state isn't inlined in the value
+  public void read(long value, MapTermState reuse) throws IOException {
+    BlockTermState postingsState = reuse.postingsState;
+    reuse.value = value;
+    long payload = value >>> MapFileWriter.KIND_BITS;
+    switch ((int) value & MapFileWriter.KIND_MASK) {
+      case MapFileWriter.KIND_SINGLETON:
+        BlockTermStateHelper.setSingleton(postingsState, (int) payload);
+        reuse.pulsedFP = -1;
+        reuse.impactFP = -1;
+        reuse.bitmapFP = -1;
+        break;
+      case MapFileWriter.KIND_PULSED:
+        readPulsed(payload, reuse);
+        reuse.bitmapFP = -1;
+        break;
+      case MapFileWriter.KIND_BITMAP:
+        readBitmap(payload, reuse);
+        break;
+      default:
+        long end = BlockTermStateHelper.readFromFile(in, payload, postingsState, fieldInfo);
+        reuse.pulsedFP = -1;
+        reuse.bitmapFP = -1;
+        reuse.impactFP = MapFileWriter.storesImpact(fieldInfo, postingsState) ? end : -1;
+        break;
+    }
+  }
+
+  // Reads the header MapFileWriter saves before pulsed postings
+  private void readPulsed(long pos, MapTermState reuse) throws IOException {
+    BlockTermState postingsState = reuse.postingsState;
+    int docFreq = (int) readVLong(pos);
+    pos += vLongLength(docFreq);
+    postingsState.docFreq = docFreq;
+    if (hasFreqs) {
+      long extraFreqs = readVLong(pos);
+      pos += vLongLength(extraFreqs);
+      postingsState.totalTermFreq = docFreq + extraFreqs;
+    } else {
+      postingsState.totalTermFreq = -1;
+    }
+    int docsLength = (int) readVLong(pos);
+    pos += vLongLength(docsLength);
+    reuse.pulsedFP = pos;
+    reuse.impactFP = hasFreqs ? pos + docsLength : -1;
+  }
+
+  private void readBitmap(long pos, MapTermState reuse) throws IOException {
+    if (bitmaps == null) {
+      throw new CorruptIndexException("Bitmap term in a field without bitmaps", in.toString());
+    }
+    int docFreq = (int) readVLong(pos);
+    pos += vLongLength(docFreq);
+    reuse.postingsState.docFreq = docFreq;
+    reuse.postingsState.totalTermFreq = -1;
+    reuse.bitmapFP = readVLong(pos);
+    reuse.pulsedFP = -1;
+    reuse.impactFP = -1;
+  }
+
+  // Postings without any docs
+  public PostingsEnum emptyPostings() {
+    return new PulsedPostingsEnum(in, hasFreqs).reset(0, 0);
+  }
+
+  // Postings of a term that was pulsed or saved as a bitmap, i.e.
+  // state.pulsedFP != -1 or state.bitmapFP != -1
+  public PostingsEnum postings(MapTermState state, PostingsEnum reuse) throws IOException {
+    if (state.bitmapFP != -1) {
+      BitmapPostingsEnum postings;
+      if (reuse instanceof BitmapPostingsEnum && ((BitmapPostingsEnum) reuse).canReuse(bitmaps)) {
+        postings = (BitmapPostingsEnum) reuse;
+      } else {
+        postings = new BitmapPostingsEnum(bitmaps);
+      }
+      return postings.reset(state.bitmapFP, state.postingsState.docFreq);
+    }
+    PulsedPostingsEnum postings;
+    if (reuse instanceof PulsedPostingsEnum && ((PulsedPostingsEnum) reuse).canReuse(in)) {
+      postings = (PulsedPostingsEnum) reuse;
+    } else {
+      postings = new PulsedPostingsEnum(in, hasFreqs);
+    }
+    return postings.reset(state.pulsedFP, state.postingsState.docFreq);
+  }
+
+  // Wraps the term's postings with the impact saved by MapFileWriter
+  public ImpactsEnum impacts(MapTermState state, PostingsEnum postings) throws IOException {
+    long pos = state.impactFP;
+    int maxFreq = (int) readVLong(pos);
+    pos += vLongLength(maxFreq);
+    long minNorm = BitUtil.zigZagDecode(readVLong(pos));
+    return new TermImpactsEnum(postings, maxFreq, minNorm);
+  }
+
+  private long readVLong(long pos) throws IOException {
+    long value = 0;
+    for (int shift = 0;; shift += 7) {
+      byte b = in.readByte(pos++);
+      value |= (b & 0x7fL) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  private static int vLongLength(long value) {
+    int length = 1;
+    while ((value >>>= 7) != 0) {
+      ++length;
+    }
+    return length;
   }
 }
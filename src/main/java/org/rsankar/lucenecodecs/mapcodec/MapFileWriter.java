@@ -23,28 +23,320 @@
 package org.rsankar.lucenecodecs.mapcodec;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.codecs.NormsProducer;
+import org.apache.lucene.codecs.PostingsWriterBase;
 import org.apache.lucene.codecs.lucene50.BlockTermStateHelper;
+import org.apache.lucene.codecs.lucene50.Lucene50PostingsFormat;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.ByteBuffersDataOutput;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 
+// Writes a field's section of the segment's .fde (and .fbm) file. Pointers in
+// map values and in the sections are relative to the start of the section.
 public class MapFileWriter {
+  // The low bits of every map value say where the term state is stored
+  static final int KIND_BITS = 2;
+  static final int KIND_MASK = (1 << KIND_BITS) - 1;
+  // The rest of the value is a pointer to the term state in the .fde section
+  static final int KIND_FILE = 0;
+  // The rest of the value is the term's only docID, the state isn't written
+  static final int KIND_SINGLETON = 1;
+  // The rest of the value is a pointer to the term's postings, which are
+  // written in the .fde section instead of the .doc file
+  static final int KIND_PULSED = 2;
+  // The rest of the value is a pointer to the term's docFreq and where its
+  // bitmap is saved in the .fbm section
+  static final int KIND_BITMAP = 3;
+
   IndexOutput out;
+  // Where the field's sections start
+  private final long startFP;
+  private final long bitmapStartFP;
   int index;
+  FieldInfo fieldInfo;
+  private PostingsEnum postings;
+  // Singletons can only be inlined if the docID is all there is to the state
+  boolean inlineSingletons;
+  // Terms with at most this many docs are pulsed, 0 if none are
+  int pulsingThreshold;
+  // Where dense terms are saved, null if the field has no bitmaps
+  IndexOutput bitmapOut;
+  // Terms with at least this many docs are dense
+  int bitmapMinDocFreq;
+  boolean hasFreqs;
+  long sumDocFreq;
+  long sumTotalTermFreq;
+
+  // The postings of the current term, when it is small enough to buffer
+  private int[] docs = new int[16];
+  private int[] freqs = new int[16];
+  private long[] words;
+  private final ByteBuffersDataOutput pulsedDocs = ByteBuffersDataOutput
+      .newResettableInstance();
 
-  public MapFileWriter(IndexOutput out) {
+  public MapFileWriter(IndexOutput out, FieldInfo fieldInfo, int pulsingThreshold,
+      IndexOutput bitmapOut, int maxDoc) {
     this.out = out;
     this.index = 0;
+    this.fieldInfo = fieldInfo;
+    this.inlineSingletons = fieldInfo.getIndexOptions() == IndexOptions.DOCS;
+    this.hasFreqs = fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS) >= 0;
+    // Positions, payloads and offsets stay with the postings writer
+    this.pulsingThreshold = canPulse(fieldInfo) ? pulsingThreshold : 0;
+    this.startFP = out.getFilePointer();
+    this.bitmapOut = bitmapOut;
+    this.bitmapStartFP = bitmapOut != null ? bitmapOut.getFilePointer() : 0;
+    this.bitmapMinDocFreq = Math.max(Lucene50PostingsFormat.BLOCK_SIZE + 1, maxDoc >>> 7);
+  }
+
+  static boolean canPulse(FieldInfo fieldInfo) {
+    return fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS) <= 0;
+  }
+
+  static boolean canUseBitmaps(FieldInfo fieldInfo) {
+    return fieldInfo.getIndexOptions() == IndexOptions.DOCS;
+  }
+
+  // Writes the term and returns its map value, or -1 if it has no docs (which
+  // happens when merging terms whose docs were all deleted). Terms with few
+  // enough docs are pulsed, dense terms are saved as bitmaps, every other term
+  // goes through the postings writer. Values are longs, and the maps are only
+  // as wide as the largest one needs, so sections of any size can be pointed
+  // into.
+  public long writeTerm(BytesRef term, TermsEnum termsEnum, PostingsWriterBase writer,
+      FixedBitSet docsSeen, NormsProducer norms) throws IOException {
+    // docFreq isn't known up front, so the docs are buffered to find it out
+    int limit = bitmapOut != null ? Integer.MAX_VALUE : pulsingThreshold;
+    if (limit > 0) {
+      int docFreq = bufferPostings(termsEnum, limit);
+      if (docFreq == 0) {
+        return -1;
+      }
+      if (docFreq != -1 && docFreq <= pulsingThreshold) {
+        return savePulsed(docFreq, docsSeen, norms);
+      }
+      if (bitmapOut != null && docFreq >= bitmapMinDocFreq) {
+        return saveBitmap(docFreq, docsSeen);
+      }
+    }
+    BlockTermState bts = writer.writeTerm(term, termsEnum, docsSeen, norms);
+    if (bts == null) {
+      return -1;
+    }
+    return addTermState(bts, termsEnum, norms);
+  }
+
+  // Adds a term whose postings the postings writer already wrote, returning
+  // its map value. Terms dictionaries write terms this way, so that their
+  // postings are shared with the map.
+  public long addTermState(BlockTermState bts, TermsEnum termsEnum, NormsProducer norms)
+      throws IOException {
+    sumDocFreq += bts.docFreq;
+    // DOCS-only fields have no freqs, so every doc counts once
+    sumTotalTermFreq += hasFreqs ? bts.totalTermFreq : bts.docFreq;
+    return saveToFile(bts, termsEnum, norms);
+  }
+
+  // Returns the map value for the term state: the state itself if it fits in
+  // the value, otherwise a pointer to where it is saved in the file. The
+  // term's impact is saved after the state when the field needs one.
+  public long saveToFile(BlockTermState bts, TermsEnum termsEnum, NormsProducer norms)
+      throws IOException {
+    if (inlineSingletons) {
+      int docID = BlockTermStateHelper.getSingletonDocID(bts);
+      if (docID != -1) {
+        return ((long) docID << KIND_BITS) | KIND_SINGLETON;
+      }
+    }
+    long location = sectionFilePointer();
+    BlockTermStateHelper.writeToFile(out, bts, fieldInfo);
+    if (storesImpact(fieldInfo, bts)) {
+      writeImpact(bufferPostings(termsEnum, bts.docFreq), norms);
+    }
+    return (location << KIND_BITS) | KIND_FILE;
+  }
+
+  // Saves the buffered postings after a header of vint docFreq, vlong
+  // totalTermFreq - docFreq (if the field has freqs) and vint length of the
+  // docs, so readers can find the impact saved after them. Docs are delta
+  // coded like in the .doc file: with freqs, the low bit of each delta says
+  // the freq is 1, otherwise the freq follows.
+  private long savePulsed(int docFreq, FixedBitSet docsSeen, NormsProducer norms)
+      throws IOException {
+    if (inlineSingletons && docFreq == 1) {
+      docsSeen.set(docs[0]);
+      ++sumDocFreq;
+      ++sumTotalTermFreq;
+      return ((long) docs[0] << KIND_BITS) | KIND_SINGLETON;
+    }
+    pulsedDocs.reset();
+    long totalTermFreq = 0;
+    int lastDoc = 0;
+    for (int i = 0; i < docFreq; ++i) {
+      int delta = docs[i] - lastDoc;
+      lastDoc = docs[i];
+      docsSeen.set(docs[i]);
+      if (hasFreqs) {
+        totalTermFreq += freqs[i];
+        if (freqs[i] == 1) {
+          pulsedDocs.writeVInt((delta << 1) | 1);
+        } else {
+          pulsedDocs.writeVInt(delta << 1);
+          pulsedDocs.writeVInt(freqs[i]);
+        }
+      } else {
+        pulsedDocs.writeVInt(delta);
+      }
+    }
+    sumDocFreq += docFreq;
+    sumTotalTermFreq += hasFreqs ? totalTermFreq : docFreq;
+
+    long location = sectionFilePointer();
+    out.writeVInt(docFreq);
+    if (hasFreqs) {
+      out.writeVLong(totalTermFreq - docFreq);
+    }
+    out.writeVInt(Math.toIntExact(pulsedDocs.size()));
+    pulsedDocs.copyTo(out);
+    if (hasFreqs) {
+      writeImpact(docFreq, norms);
+    }
+    return (location << KIND_BITS) | KIND_PULSED;
+  }
+
+  // Saves the buffered docs in the .fbm section as containers of 2^16 docs,
+  // Roaring-style: a container is an array of the low 16 bits of its docs,
+  // or a bitmap of 1024 longs once that is smaller. The containers start with
+  // a directory of int numContainers then for each one int key (the high bits
+  // of its docs), int cardinality and long file pointer to its data.
+  private long saveBitmap(int docFreq, FixedBitSet docsSeen) throws IOException {
+    long bitmapFP = bitmapOut.getFilePointer() - bitmapStartFP;
+    int numContainers = 0;
+    for (int i = 0; i < docFreq; ++i) {
+      if (i == 0 || (docs[i] >>> 16) != (docs[i - 1] >>> 16)) {
+        ++numContainers;
+      }
+    }
+    bitmapOut.writeInt(numContainers);
+    long dataFP = bitmapFP + Integer.BYTES
+        + (long) numContainers * BitmapPostingsEnum.DIRECTORY_ENTRY_BYTES;
+    for (int start = 0, end; start < docFreq; start = end) {
+      end = containerEnd(start, docFreq);
+      int cardinality = end - start;
+      bitmapOut.writeInt(docs[start] >>> 16);
+      bitmapOut.writeInt(cardinality);
+      bitmapOut.writeLong(dataFP);
+      dataFP += cardinality > BitmapPostingsEnum.ARRAY_MAX_CARDINALITY
+          ? BitmapPostingsEnum.BITMAP_WORDS * Long.BYTES
+          : cardinality * Short.BYTES;
+    }
+    for (int start = 0, end; start < docFreq; start = end) {
+      end = containerEnd(start, docFreq);
+      if (end - start > BitmapPostingsEnum.ARRAY_MAX_CARDINALITY) {
+        if (words == null) {
+          words = new long[BitmapPostingsEnum.BITMAP_WORDS];
+        }
+        Arrays.fill(words, 0L);
+        for (int i = start; i < end; ++i) {
+          int low = docs[i] & 0xFFFF;
+          words[low >>> 6] |= 1L << low;
+        }
+        for (long word : words) {
+          bitmapOut.writeLong(word);
+        }
+      } else {
+        for (int i = start; i < end; ++i) {
+          bitmapOut.writeShort((short) docs[i]);
+        }
+      }
+    }
+    for (int i = 0; i < docFreq; ++i) {
+      docsSeen.set(docs[i]);
+    }
+    sumDocFreq += docFreq;
+    sumTotalTermFreq += docFreq;
+
+    long location = sectionFilePointer();
+    out.writeVInt(docFreq);
+    out.writeVLong(bitmapFP);
+    return (location << KIND_BITS) | KIND_BITMAP;
+  }
+
+  // End of the container that the buffered doc at start is in
+  private int containerEnd(int start, int docFreq) {
+    int key = docs[start] >>> 16;
+    int end = start + 1;
+    while (end < docFreq && (docs[end] >>> 16) == key) {
+      ++end;
+    }
+    return end;
+  }
+
+  private long sectionFilePointer() {
+    return out.getFilePointer() - startFP;
+  }
+
+  /**
+   * Lucene50PostingsReader only has impacts for terms with skip data, so every
+   * other term of a field with freqs gets one impact bounding all its docs.
+   */
+  static boolean storesImpact(FieldInfo fieldInfo, BlockTermState bts) {
+    return fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS) >= 0
+        && bts.docFreq <= Lucene50PostingsFormat.BLOCK_SIZE;
   }
 
-  // Returns pointer to location in file where data is stored
-  public int saveToFile(BlockTermState bts) throws IOException {
-    int location = (int) out.getFilePointer();
-    BlockTermStateHelper.writeToFile(out, bts);
-    return location;
+  // Buffers the term's docs and freqs, returning how many there are or -1 if
+  // there are more than limit
+  private int bufferPostings(TermsEnum termsEnum, int limit) throws IOException {
+    postings = termsEnum.postings(postings, hasFreqs ? PostingsEnum.FREQS : PostingsEnum.NONE);
+    int count = 0;
+    for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings
+        .nextDoc()) {
+      if (count == limit) {
+        return -1;
+      }
+      if (count == docs.length) {
+        docs = ArrayUtil.grow(docs, count + 1);
+        freqs = ArrayUtil.growExact(freqs, docs.length);
+      }
+      docs[count] = doc;
+      freqs[count] = hasFreqs ? postings.freq() : 1;
+      ++count;
+    }
+    return count;
   }
 
-  public void close() throws IOException {
-    out.close();
+  // Saves the highest freq and the lowest norm (unsigned, like Lucene compares
+  // them) over the buffered docs
+  private void writeImpact(int docFreq, NormsProducer norms) throws IOException {
+    NumericDocValues normValues = null;
+    if (fieldInfo.hasNorms() && norms != null) {
+      normValues = norms.getNorms(fieldInfo);
+    }
+    int maxFreq = 0;
+    long minNorm = -1L;
+    for (int i = 0; i < docFreq; ++i) {
+      maxFreq = Math.max(maxFreq, freqs[i]);
+      long norm = 1L;
+      if (normValues != null && normValues.advanceExact(docs[i])) {
+        norm = normValues.longValue();
+      }
+      if (Long.compareUnsigned(norm, minNorm) < 0) {
+        minNorm = norm;
+      }
+    }
+    out.writeVInt(maxFreq);
+    out.writeZLong(minNorm);
   }
 }
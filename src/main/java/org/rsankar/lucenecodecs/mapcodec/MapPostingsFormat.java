@@ -23,6 +23,7 @@
 package org.rsankar.lucenecodecs.mapcodec;
 
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.lucene.codecs.FieldsConsumer;
 import org.apache.lucene.codecs.FieldsProducer;
@@ -31,30 +32,106 @@ import org.apache.lucene.codecs.PostingsReaderBase;
 import org.apache.lucene.codecs.PostingsWriterBase;
 import org.apache.lucene.codecs.lucene50.Lucene50PostingsReader;
 import org.apache.lucene.codecs.lucene50.Lucene50PostingsWriter;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.SegmentReadState;
 import org.apache.lucene.index.SegmentWriteState;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.rsankar.lucenecodecs.field.IndexedLongField;
+import org.rsankar.lucenecodecs.termmap.TermMapType;
 
 public abstract class MapPostingsFormat extends PostingsFormat {
   public static final String FIELD_MAP_EXTENSION = "fme";
   public static final String FIELD_DATA_EXTENSION = "fde";
+  public static final String FIELD_BITMAP_EXTENSION = "fbm";
 
-  private int capacity;
+  static final String FIELD_MAP_CODEC = "MapPostingsFormatMap";
+  static final String FIELD_DATA_CODEC = "MapPostingsFormatData";
+  static final String FIELD_BITMAP_CODEC = "MapPostingsFormatBitmap";
+  static final int VERSION_START = 0;
+  static final int VERSION_CURRENT = VERSION_START;
+
+  /**
+   * Where the term maps live once a segment is opened. OFF_HEAP reads the map
+   * straight out of the directory (page cache when using MMapDirectory) so
+   * opening is O(1); ON_HEAP copies each map into a heap array when opened.
+   */
+  public enum Residency {
+    OFF_HEAP, ON_HEAP
+  }
+
+  /**
+   * Pulsing is off by default: every term with more than one doc has its
+   * postings in the .doc file.
+   */
+  public static final int DEFAULT_PULSING_THRESHOLD = 0;
+
+  /**
+   * Up to about this many terms, a lookup in a sorted array is as fast as in
+   * the hash maps, since the whole array stays in cache.
+   */
+  public static final int DEFAULT_SORTED_ARRAY_MAX_TERMS = 1024;
+
+  /**
+   * Robin Hood parameter analysis of large fields keeps the best of the first
+   * this many promising candidates, instead of searching on.
+   */
+  public static final int DEFAULT_PARAMETER_ANALYSIS_MAX_CANDIDATES = 32;
+
+  private final Residency residency;
+  private final int pulsingThreshold;
 
   public MapPostingsFormat(String name) {
+    this(name, Residency.OFF_HEAP);
+  }
+
+  protected MapPostingsFormat(String name, Residency residency) {
+    this(name, residency, DEFAULT_PULSING_THRESHOLD);
+  }
+
+  /**
+   * Terms of DOCS or DOCS_AND_FREQS fields with at most pulsingThreshold docs
+   * are pulsed: their postings are saved next to the term state in the .fde
+   * file, so reading them doesn't need a seek into the .doc file.
+   */
+  protected MapPostingsFormat(String name, Residency residency, int pulsingThreshold) {
     super(name);
+    if (pulsingThreshold < 0) {
+      throw new IllegalArgumentException(
+          "pulsingThreshold must be >= 0, got " + pulsingThreshold);
+    }
+    this.residency = residency;
+    this.pulsingThreshold = pulsingThreshold;
   }
 
   @Override
   public FieldsConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
     PostingsWriterBase pw = new Lucene50PostingsWriter(state);
-    return new MapFieldsWriter(state, pw, this);
+    boolean success = false;
+    try {
+      FieldsConsumer ret = new MapFieldsWriter(state, pw, this);
+      success = true;
+      return ret;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(pw);
+      }
+    }
   }
 
   @Override
   public FieldsProducer fieldsProducer(SegmentReadState state) throws IOException {
     PostingsReaderBase pr = new Lucene50PostingsReader(state);
-    return new MapFieldsReader(state, pr, this);
+    boolean success = false;
+    try {
+      FieldsProducer ret = new MapFieldsReader(state, pr, this);
+      success = true;
+      return ret;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(pr);
+      }
+    }
   }
 
   static String getFieldMapFileName(String segmentName, String segmentSuffix) {
@@ -65,13 +142,132 @@ public abstract class MapPostingsFormat extends PostingsFormat {
     return segmentName + "_" + segmentSuffix + "." + FIELD_DATA_EXTENSION;
   }
 
-  public void setCapacity(int capacity) {
-    this.capacity = capacity;
+  static String getFieldBitmapFileName(String segmentName, String segmentSuffix) {
+    return segmentName + "_" + segmentSuffix + "." + FIELD_BITMAP_EXTENSION;
+  }
+
+  public Residency residency() {
+    return this.residency;
+  }
+
+  public int pulsingThreshold() {
+    return this.pulsingThreshold;
+  }
+
+  /**
+   * The term map layout to write a field with. The layout is recorded in the
+   * field's section of the .fme file, so segments written with different
+   * choices are all readable and this can be changed without reindexing.
+   */
+  public TermMapType getTermMapType(FieldInfo fieldInfo) {
+    return TermMapType.ROBIN_HOOD;
   }
 
-  public int capacity() {
-    return this.capacity;
+  /**
+   * Fields of a segment with at most this many terms are written as a
+   * {@link TermMapType#SORTED_ARRAY} instead of with
+   * {@link #getTermMapType(FieldInfo)}'s layout. The array is built by sorting
+   * the fingerprints, with nothing to tune, so small flushes don't pay for the
+   * Robin Hood parameter analysis. Return 0 to always use getTermMapType.
+   */
+  public int sortedArrayMaxTerms(FieldInfo fieldInfo) {
+    return DEFAULT_SORTED_ARRAY_MAX_TERMS;
+  }
+
+  /**
+   * How many (capacity, k) pairs the parameter analysis of a large
+   * {@link TermMapType#ROBIN_HOOD} field verifies on all of its terms, most
+   * promising first, before keeping the best valid one. This bounds flush and
+   * merge times without making the chosen pair depend on the machine. The
+   * analysis always runs until it has found a valid pair.
+   */
+  public int parameterAnalysisMaxCandidates(FieldInfo fieldInfo) {
+    return DEFAULT_PARAMETER_ANALYSIS_MAX_CANDIDATES;
+  }
+
+  /**
+   * If not 0, the parameter analysis of a {@link TermMapType#ROBIN_HOOD} field
+   * also stops after this long, with the best valid pair it has verified. This
+   * bounds its time on any machine, but since how far it gets then depends on
+   * the machine's speed and load, segments with the same terms can be written
+   * with different maps. They are all read the same way, as the parameters
+   * are recorded per field. 0 by default.
+   */
+  public long parameterAnalysisBudgetMillis(FieldInfo fieldInfo) {
+    return 0;
+  }
+
+  /**
+   * The pool the parameter analysis of {@link TermMapType#ROBIN_HOOD} fields
+   * evaluates candidates on. By default every format in the JVM shares one
+   * with a thread per core, so concurrent flushes and merges don't start more
+   * threads than there are cores. The pool's parallelism doesn't change which
+   * pair is chosen.
+   */
+  public ForkJoinPool parameterAnalysisPool() {
+    return ParameterAnalyzer.sharedPool();
+  }
+
+  /**
+   * Whether a {@link TermMapType#ROBIN_HOOD} field keeps its whole fingerprints
+   * in the map's slots instead of just the bytes that tell apart keys with the
+   * same hashcode. Lookups of absent terms then never match a slot, at the
+   * cost of wider slots. Otherwise, unless the field has a terms dictionary to
+   * check hits and list terms for merges, the field's sorted fingerprints and
+   * their map values are also saved in the .fde file, about 12 bytes per term
+   * (8 bytes and a vlong), and term lookups that match a slot are checked
+   * against them. The other layouts always keep whole fingerprints.
+   */
+  public boolean usesFullFingerprints(FieldInfo fieldInfo) {
+    return false;
+  }
+
+  /**
+   * Whether dense terms of a DOCS field are stored as bitmaps in the .fbm file
+   * instead of in the .doc file. A term is dense if at least 1/128th of the
+   * segment's docs have it, like Lucene's DocIdSetBuilder picks a bit set, so
+   * filtering on it intersects bitmaps instead of decoding blocks. Ignored for
+   * fields with freqs.
+   */
+  public boolean usesBitmapPostings(FieldInfo fieldInfo) {
+    return false;
+  }
+
+  /**
+   * Whether the field's .fme file also gets an xor filter over its
+   * fingerprints, which is loaded on heap (about 1.23 bytes per term) when the
+   * field is opened. Exact lookups check it before probing the map, so a lookup
+   * of a term a segment doesn't have reads none of its map 255 times out of
+   * 256. Worth it for fields looked up across many segments, like primary keys.
+   */
+  public boolean usesSkipFilter(FieldInfo fieldInfo) {
+    return false;
+  }
+
+  /**
+   * Whether the field also gets a BlockTree terms dictionary (.tim and .tip
+   * files) over the same postings. Exact lookups still go to the map, but every
+   * other TermsEnum operation goes to the dictionary, so the field's terms can
+   * be enumerated and sought in order by prefix and range queries, CheckIndex
+   * and merges. Terms of such a field are neither pulsed nor saved as bitmaps,
+   * since the dictionary needs all their postings in the .doc file. A merge with
+   * a segment written without the dictionary writes the field without one. A
+   * {@link TermMapType#ROBIN_HOOD} field without full fingerprints checks its
+   * hits in the dictionary, so it doesn't save its fingerprints in the .fde
+   * file (see {@link #usesFullFingerprints}).
+   */
+  public boolean usesTermsDictionary(FieldInfo fieldInfo) {
+    return false;
   }
 
   public abstract long getFingerprint(BytesRef term);
+
+  /**
+   * Fingerprint of the term an {@link IndexedLongField} indexes for value.
+   * Must agree with {@link #getFingerprint(BytesRef)}; formats of long fields
+   * should override it so that looking up a long doesn't have to encode it.
+   */
+  public long getFingerprint(long value) {
+    return getFingerprint(IndexedLongField.longToBytesRef(value));
+  }
 }
\ No newline at end of file
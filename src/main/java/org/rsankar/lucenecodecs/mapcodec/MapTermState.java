@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.mapcodec;
+
+import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.index.TermState;
+
+/**
+ * Term state of a MapTermsEnum: the map value the term was found with, the
+ * postings reader's state decoded from it, plus where the term's pulsed
+ * postings and impact are stored in the .fde file and its bitmap in the .fbm
+ * file (-1 if it has none). States returned by termState() only keep the value,
+ * with a null postingsState, and are decoded again when an enum seeks to them.
+ */
+public final class MapTermState extends TermState {
+  BlockTermState postingsState;
+  long value = -1;
+  long pulsedFP = -1;
+  long impactFP = -1;
+  long bitmapFP = -1;
+
+  MapTermState(BlockTermState postingsState) {
+    this.postingsState = postingsState;
+  }
+
+  static MapTermState forValue(long value) {
+    MapTermState state = new MapTermState(null);
+    state.value = value;
+    return state;
+  }
+
+  @Override
+  public void copyFrom(TermState other) {
+    MapTermState state = (MapTermState) other;
+    if (state.postingsState == null) {
+      postingsState = null;
+    } else if (postingsState == null) {
+      postingsState = (BlockTermState) state.postingsState.clone();
+    } else {
+      postingsState.copyFrom(state.postingsState);
+    }
+    value = state.value;
+    pulsedFP = state.pulsedFP;
+    impactFP = state.impactFP;
+    bitmapFP = state.bitmapFP;
+  }
+
+  @Override
+  public MapTermState clone() {
+    MapTermState clone = (MapTermState) super.clone();
+    if (postingsState != null) {
+      clone.postingsState = (BlockTermState) postingsState.clone();
+    }
+    return clone;
+  }
+
+  @Override
+  public String toString() {
+    return postingsState + " value=" + value + " pulsedFP=" + pulsedFP + " impactFP="
+        + impactFP + " bitmapFP=" + bitmapFP;
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.mapcodec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.BaseTermsEnum;
+import org.apache.lucene.index.DocIDMerger;
+import org.apache.lucene.index.ImpactsEnum;
+import org.apache.lucene.index.MergeState;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefArray;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.rsankar.lucenecodecs.mapcodec.MapFieldsReader.MapTermsEnum;
+
+/**
+ * The term MapFieldsWriter is merging: its postings are those of the term in
+ * every source segment that has it, with docIDs mapped to the merged segment
+ * and deleted docs left out. Only postings() is supported, which is all that
+ * MapFileWriter and the postings writer read.
+ */
+final class MergedTermsEnum extends BaseTermsEnum {
+
+  // A source segment's terms, each known by a long reference
+  interface Source {
+    PostingsEnum postings(long ref, PostingsEnum reuse, int flags) throws IOException;
+  }
+
+  // References are map values
+  static final class MapSource implements Source {
+    private final MapTermsEnum termsEnum;
+
+    MapSource(MapTermsEnum termsEnum) {
+      this.termsEnum = termsEnum;
+    }
+
+    @Override
+    public PostingsEnum postings(long ref, PostingsEnum reuse, int flags) throws IOException {
+      termsEnum.seekExactValue(ref);
+      return termsEnum.postings(reuse, flags);
+    }
+  }
+
+  // References are indexes of the terms, which were read from a format that
+  // can enumerate them
+  static final class TermsSource implements Source {
+    private final TermsEnum termsEnum;
+    private final BytesRefArray terms;
+    private final BytesRefBuilder spare = new BytesRefBuilder();
+
+    TermsSource(TermsEnum termsEnum, BytesRefArray terms) {
+      this.termsEnum = termsEnum;
+      this.terms = terms;
+    }
+
+    @Override
+    public PostingsEnum postings(long ref, PostingsEnum reuse, int flags) throws IOException {
+      BytesRef term = terms.get(spare, (int) ref);
+      if (termsEnum.seekExact(term) == false) {
+        throw new IllegalStateException("Term " + term + " disappeared from " + termsEnum);
+      }
+      return termsEnum.postings(reuse, flags);
+    }
+  }
+
+  private final Source[] sources;
+  private final boolean needsIndexSort;
+  // One per source, reused for every term
+  private final PostingsSub[] subs;
+  private final List<PostingsSub> termSubs = new ArrayList<>();
+
+  // The sources that have the current term, with their references to it
+  private int[] termSources = new int[4];
+  private long[] termRefs = new long[4];
+  private int numTermSources;
+
+  MergedTermsEnum(Source[] sources, MergeState mergeState) {
+    this.sources = sources;
+    this.needsIndexSort = mergeState.needsIndexSort;
+    this.subs = new PostingsSub[sources.length];
+    for (int i = 0; i < sources.length; ++i) {
+      subs[i] = new PostingsSub(mergeState.docMaps[i]);
+    }
+  }
+
+  // Starts a new term, which sources are then added to in increasing order
+  void reset() {
+    numTermSources = 0;
+  }
+
+  void add(int source, long ref) {
+    if (numTermSources == termSources.length) {
+      termSources = ArrayUtil.grow(termSources, numTermSources + 1);
+      termRefs = ArrayUtil.growExact(termRefs, termSources.length);
+    }
+    termSources[numTermSources] = source;
+    termRefs[numTermSources++] = ref;
+  }
+
+  @Override
+  public PostingsEnum postings(PostingsEnum reuse, int flags) throws IOException {
+    termSubs.clear();
+    long cost = 0;
+    for (int i = 0; i < numTermSources; ++i) {
+      PostingsSub sub = subs[termSources[i]];
+      sub.postings = sources[termSources[i]].postings(termRefs[i], sub.postings, flags);
+      cost += sub.postings.cost();
+      termSubs.add(sub);
+    }
+    MergedPostingsEnum postings = reuse instanceof MergedPostingsEnum
+        ? (MergedPostingsEnum) reuse
+        : new MergedPostingsEnum();
+    postings.reset(DocIDMerger.of(termSubs, needsIndexSort), cost);
+    return postings;
+  }
+
+  private static final class PostingsSub extends DocIDMerger.Sub {
+    PostingsEnum postings;
+
+    PostingsSub(MergeState.DocMap docMap) {
+      super(docMap);
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      return postings.nextDoc();
+    }
+  }
+
+  private static final class MergedPostingsEnum extends PostingsEnum {
+    private DocIDMerger<PostingsSub> merger;
+    private PostingsSub current;
+    private int doc;
+    private long cost;
+
+    void reset(DocIDMerger<PostingsSub> merger, long cost) {
+      this.merger = merger;
+      this.current = null;
+      this.doc = -1;
+      this.cost = cost;
+    }
+
+    @Override
+    public int docID() {
+      return doc;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      current = merger.next();
+      doc = current == null ? NO_MORE_DOCS : current.mappedDocID;
+      return doc;
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      return slowAdvance(target);
+    }
+
+    @Override
+    public int freq() throws IOException {
+      return current.postings.freq();
+    }
+
+    @Override
+    public int nextPosition() throws IOException {
+      return current.postings.nextPosition();
+    }
+
+    @Override
+    public int startOffset() throws IOException {
+      return current.postings.startOffset();
+    }
+
+    @Override
+    public int endOffset() throws IOException {
+      return current.postings.endOffset();
+    }
+
+    @Override
+    public BytesRef getPayload() throws IOException {
+      return current.postings.getPayload();
+    }
+
+    @Override
+    public long cost() {
+      return cost;
+    }
+  }
+
+  @Override
+  public ImpactsEnum impacts(int flags) throws IOException {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public SeekStatus seekCeil(BytesRef text) throws IOException {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void seekExact(long ord) throws IOException {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public BytesRef term() throws IOException {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public long ord() throws IOException {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public int docFreq() throws IOException {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public long totalTermFreq() throws IOException {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public BytesRef next() throws IOException {
+    throw new UnsupportedOperationException();
+  }
+}
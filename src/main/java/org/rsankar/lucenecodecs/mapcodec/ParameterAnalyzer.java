@@ -22,180 +22,434 @@
 
 package org.rsankar.lucenecodecs.mapcodec;
 
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-
-import org.apache.lucene.index.Terms;
-import org.apache.lucene.index.TermsEnum;
-import org.apache.lucene.util.BytesRef;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import org.apache.lucene.util.InfoStream;
+
+/**
+ * Picks the capacity p and multiplier k of a Robin Hood map's hash function.
+ * Candidates come from a grid of primes just above the minimum capacity and a
+ * fixed set of ks. A candidate is valid if no probe is longer than
+ * MAX_HIT_DIST slots and keys that share a hashcode can be told apart by their
+ * low fingerprint bytes; the best one needs the fewest fingerprint bytes, then
+ * has the lowest average probe length.
+ *
+ * Fields with fewer than 4 * SAMPLE_SIZE terms verify every candidate on all
+ * of their fingerprints. Larger fields first score every candidate on a sample
+ * of them, then verify candidates in order of their score, up to the first
+ * valid one with 1 byte fingerprints, or up to maxCandidates of them once one
+ * was valid. Which candidates are verified only depends on the fingerprints,
+ * so the same terms always get the same parameters, whatever the pool's
+ * parallelism, unless a time budget cuts the search short.
+ */
 public class ParameterAnalyzer {
   public static final int EXTRA_SPACE_PERCENT = 50;
 
+  // Shared by every flush and merge in the JVM that isn't given a pool, so
+  // concurrent analyses queue up for the same cores instead of each starting
+  // its own threads
+  private static final ForkJoinPool SHARED_POOL = new ForkJoinPool(
+      Runtime.getRuntime().availableProcessors());
+
+  // Widest fingerprint a Robin Hood slot is allowed to store
+  public static final int MAX_FINGERPRINT_SIZE_BYTES = 8;
+
+  // Probes of a tuned map are shorter than this
+  static final int MAX_HIT_DIST = 15;
+
+  static final int[] K_CHOICES = { 100, 104, 108, 112, 116, 120, 124, 128, 132, 136, 140 };
+  // Capacities tried with the ks of a merge's sources
+  static final int HINT_CAPACITIES = 3;
+
+  // Fields with at least 4 times this many terms are scored on a sample first
+  static final int SAMPLE_SIZE = 1 << 16;
+
+  // InfoStream component of the analysis' messages
+  static final String INFO_STREAM_COMPONENT = "MAP";
+
+  private final InfoStream infoStream;
+  private final ForkJoinPool pool;
+  // Scratch tables of the workers. A worker takes one for its candidates and
+  // puts it back, so an analysis allocates a table per concurrent worker
+  // rather than one per candidate.
+  private final ConcurrentLinkedQueue<Scratch> scratches = new ConcurrentLinkedQueue<>();
+
   int k;
   int capacity;
   int termCount;
+  // Bytes of each fingerprint the map has to store to tell keys with the same
+  // hashcode apart
+  int fingerprintSizeBytes;
 
-  public ParameterAnalyzer(Terms terms, MapPostingsFormat postingsFormat) throws IOException {
+  public ParameterAnalyzer(long[] fp) {
+    this(fp, null, 0);
+  }
 
-    long startTime = System.nanoTime();
-    System.out.println("Starting parameter analysis (may take a while)...");
+  public ParameterAnalyzer(long[] fp, int[] hintKs, int hintFingerprintSizeBytes) {
+    this(fp, hintKs, hintFingerprintSizeBytes,
+        MapPostingsFormat.DEFAULT_PARAMETER_ANALYSIS_MAX_CANDIDATES, 0, InfoStream.NO_OUTPUT);
+  }
+
+  /**
+   * Merges pass the ks their source segments were tuned with. Those are tried
+   * first, on the HINT_CAPACITIES smallest capacities and with fingerprints of
+   * up to hintFingerprintSizeBytes bytes, so the merged map is no wider than
+   * its sources'. The full grid is only searched if none of them works.
+   *
+   * If budgetMillis isn't 0, the best valid candidate verified after that long
+   * is used, so the result also depends on how fast the machine is. The
+   * analysis only runs over the budget until it has found a valid candidate.
+   */
+  public ParameterAnalyzer(long[] fp, int[] hintKs, int hintFingerprintSizeBytes,
+      int maxCandidates, long budgetMillis, InfoStream infoStream) {
+    this(fp, hintKs, hintFingerprintSizeBytes, maxCandidates, budgetMillis, infoStream,
+        SHARED_POOL);
+  }
+
+  /** Runs the analysis on the given pool instead of the shared one. */
+  public ParameterAnalyzer(long[] fp, int[] hintKs, int hintFingerprintSizeBytes,
+      int maxCandidates, long budgetMillis, InfoStream infoStream, ForkJoinPool pool) {
 
-    this.termCount = countTerms(terms);
+    long startTime = System.nanoTime();
+    long deadline = budgetMillis == 0 ? Long.MAX_VALUE : startTime + budgetMillis * 1000000;
+    this.infoStream = infoStream;
+    this.pool = pool;
+    this.termCount = fp.length;
+    message("starting parameter analysis of " + termCount + " fingerprints");
 
     int minCapacity = (int) (termCount * ((100 + EXTRA_SPACE_PERCENT) / 100.0));
     int[] pChoices = Primes.next20Primes(minCapacity);
-    int[] kChoices = { 100, 104, 108, 112, 116, 120, 124, 128, 132, 136, 140 };
 
-    int[] hash = new int[pChoices[pChoices.length - 1]];
-    long[] fp = new long[termCount];
+    boolean found = false;
+    if (hintKs != null && hintKs.length > 0) {
+      found = search(Arrays.copyOf(pChoices, HINT_CAPACITIES), hintKs, fp,
+          Math.min(hintFingerprintSizeBytes, MAX_FINGERPRINT_SIZE_BYTES), maxCandidates,
+          deadline);
+    }
+    if (!found) {
+      found = search(pChoices, K_CHOICES, fp, MAX_FINGERPRINT_SIZE_BYTES, maxCandidates,
+          deadline);
+    }
 
-    TermsEnum te = terms.iterator();
-    for (int i = 0; i < termCount; ++i) {
-      fp[i] = postingsFormat.getFingerprint(te.next());
+    if (!found) {
+      throw new RuntimeException("Error running parameter analysis: no (p,k) pair found.");
     }
+    long elapsed = System.nanoTime() - startTime;
+    message("parameter analysis finished in " + elapsed / 1000000 + "ms. k=" + k + ", capacity="
+        + capacity + ", fingerprintSizeBytes=" + fingerprintSizeBytes);
+  }
 
-    int bestP = 0;
-    int bestK = 0;
-    double bestAvgHistDist = 0;
+  /** The pool analyses run on unless they are given one. */
+  public static ForkJoinPool sharedPool() {
+    return SHARED_POOL;
+  }
 
-    int count = 1;
+  private void message(String message) {
+    if (infoStream.isEnabled(INFO_STREAM_COMPONENT)) {
+      infoStream.message(INFO_STREAM_COMPONENT, message);
+    }
+  }
+
+  // Sets capacity, k and fingerprintSizeBytes to the best (p, k) pair of the
+  // grid that was verified, returning false if none works with up to
+  // maxFingerprintSizeBytes bytes
+  private boolean search(int[] pChoices, int[] kChoices, long[] fp,
+      int maxFingerprintSizeBytes, int maxCandidates, long deadline) {
     int totalPairs = pChoices.length * kChoices.length;
-    for (int p : pChoices) {
-      for (int k : kChoices) {
-        double val = analyzeParameters(p, k, hash, fp, count, totalPairs);
-        count++;
-        if (val == -1) {
-          continue;
-        } else {
-          if (bestP == 0) {
-            bestP = p;
-            bestK = k;
-            bestAvgHistDist = val;
-          } else {
-            if (val < bestAvgHistDist) {
-              bestP = p;
-              bestK = k;
-              bestAvgHistDist = val;
-            }
-          }
+    int maxP = pChoices[pChoices.length - 1];
+    int workers = numWorkers(maxP);
+
+    int[] order = rank(pChoices, kChoices, fp);
+    Candidate[] results = new Candidate[totalPairs];
+    Candidate best = null;
+    int verified = 0;
+    boolean done = false;
+    while (!done && verified < totalPairs) {
+      int to = Math.min(verified + workers, totalPairs);
+      pool.invoke(new Evaluation(pChoices, kChoices, fp, fp.length, maxP, maxFingerprintSizeBytes,
+          order, results, verified, to, 1, scratches));
+      // Results are taken in order up to where a single threaded search would
+      // stop, so that the number of workers doesn't change the outcome
+      for (int i = verified; i < to && !done; ++i) {
+        Candidate c = results[i];
+        if (c != null) {
+          message((i + 1) + "/" + totalPairs + ": (" + pChoices[c.index / kChoices.length] + ","
+              + kChoices[c.index % kChoices.length] + ") - avgHitDist: " + c.avgHitDist
+              + ", fingerprintSizeBytes: " + c.fingerprintSizeBytes);
         }
+        best = Candidate.better(best, c);
+        // The rest scored worse on the sample, and can't be narrower than 1 byte
+        done = order != null && best != null
+            && (i + 1 >= maxCandidates || best.fingerprintSizeBytes == 1);
       }
+      verified = to;
+      done |= best != null && System.nanoTime() >= deadline;
+    }
+    if (best == null) {
+      return false;
     }
 
-    this.capacity = bestP;
-    this.k = bestK;
+    this.capacity = pChoices[best.index / kChoices.length];
+    this.k = kChoices[best.index % kChoices.length];
+    this.fingerprintSizeBytes = best.fingerprintSizeBytes;
+    return true;
+  }
 
-    if (bestP == 0) {
-      throw new RuntimeException("Error running parameter analyzer: no (p,k) pair found.");
+  // Grid positions ordered by their average probe length on a sample of the
+  // fingerprints, or null to verify them in grid order when the field is
+  // small enough to verify every candidate on all of it
+  private int[] rank(int[] pChoices, int[] kChoices, long[] fp) {
+    int totalPairs = pChoices.length * kChoices.length;
+    if (fp.length < 4 * SAMPLE_SIZE) {
+      return null;
     }
-    long elapsed = System.nanoTime() - startTime;
-    System.out.println("Parameter analysis finished in " + elapsed / 1000000 + "ms. k=" + k
-        + ", capacity=" + capacity);
 
-    /*
-     * Potential parameters (1672501, 128) or (1500269,116);
-     */
+    // Selection sampling, seeded so that the same terms get the same map
+    long[] sample = new long[SAMPLE_SIZE];
+    Random random = new Random(fp.length);
+    for (int i = 0, n = 0; n < SAMPLE_SIZE; ++i) {
+      if (random.nextInt(fp.length - i) < SAMPLE_SIZE - n) {
+        sample[n++] = fp[i];
+      }
+    }
+
+    // Every full table slot is scaled down to the sample's table, so the
+    // sample sees the same clusters
+    int maxSampleCapacity = (int) ((long) pChoices[pChoices.length - 1] * SAMPLE_SIZE
+        / fp.length) + 1;
+    Candidate[] scores = new Candidate[totalPairs];
+    Integer[] order = new Integer[totalPairs];
+    for (int i = 0; i < totalPairs; ++i) {
+      order[i] = i;
+    }
+    int workers = numWorkers(maxSampleCapacity);
+    pool.invoke(new Evaluation(pChoices, kChoices, sample, fp.length, maxSampleCapacity, 0, null,
+        scores, 0, totalPairs, (totalPairs + workers - 1) / workers, scratches));
+    // Candidates whose sample probes were too long go last, in grid order,
+    // since the sample only estimates them
+    Arrays.sort(order, (a, b) -> {
+      double sa = scores[a] == null ? Double.MAX_VALUE : scores[a].avgHitDist;
+      double sb = scores[b] == null ? Double.MAX_VALUE : scores[b].avgHitDist;
+      return sa != sb ? Double.compare(sa, sb) : Integer.compare(a, b);
+    });
+    int[] ranked = new int[totalPairs];
+    for (int i = 0; i < totalPairs; ++i) {
+      ranked[i] = order[i];
+    }
+    return ranked;
+  }
+
+  // Every worker needs its own scratch table of maxP slots, so don't run more
+  // workers than a quarter of the heap can hold
+  private int numWorkers(int maxP) {
+    long scratchBytes = (long) maxP * (Integer.BYTES + Byte.BYTES);
+    long budget = Runtime.getRuntime().maxMemory() / 4;
+    return (int) Math.max(1, Math.min(pool.getParallelism(), budget / scratchBytes));
+  }
+
+  // A table of at least as many slots as the largest one it is used for
+  private static final class Scratch {
+    final int[] slots;
+    final byte[] dists;
+
+    Scratch(int tableSize) {
+      this.slots = new int[tableSize];
+      this.dists = new byte[tableSize];
+    }
   }
 
-  // Conditions: lastByteCollision = 0, maxHitDist < 15
+  private static final class Candidate {
+    // Position in the (p, k) grid, which breaks ties the same way a sequential scan would
+    final int index;
+    final double avgHitDist;
+    final int fingerprintSizeBytes;
+
+    Candidate(int index, double avgHitDist, int fingerprintSizeBytes) {
+      this.index = index;
+      this.avgHitDist = avgHitDist;
+      this.fingerprintSizeBytes = fingerprintSizeBytes;
+    }
+
+    static Candidate better(Candidate a, Candidate b) {
+      if (a == null || b == null) {
+        return a == null ? b : a;
+      }
+      if (b.fingerprintSizeBytes != a.fingerprintSizeBytes) {
+        return b.fingerprintSizeBytes < a.fingerprintSizeBytes ? b : a;
+      }
+      if (b.avgHitDist < a.avgHitDist
+          || (b.avgHitDist == a.avgHitDist && b.index < a.index)) {
+        return b;
+      }
+      return a;
+    }
+  }
+
+  // Evaluates the grid positions order[from, to) (or from to to, if order is
+  // null) into results[from, to), leaving null for candidates that aren't
+  // valid. Each leaf evaluates up to chunkSize candidates one after another on
+  // a scratch table it takes from scratches, allocating one if none is free
+  // or big enough. fp may be a sample of termCount fingerprints, and
+  // with maxFingerprintSizeBytes 0 only the probe lengths are scored.
+  private static final class Evaluation extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int[] pChoices;
+    private final int[] kChoices;
+    private final long[] fp;
+    private final int termCount;
+    private final int maxTableSize;
+    private final int maxFingerprintSizeBytes;
+    private final int[] order;
+    private final Candidate[] results;
+    private final int from, to, chunkSize;
+    private final ConcurrentLinkedQueue<Scratch> scratches;
+
+    Evaluation(int[] pChoices, int[] kChoices, long[] fp, int termCount, int maxTableSize,
+        int maxFingerprintSizeBytes, int[] order, Candidate[] results, int from, int to,
+        int chunkSize, ConcurrentLinkedQueue<Scratch> scratches) {
+      this.pChoices = pChoices;
+      this.kChoices = kChoices;
+      this.fp = fp;
+      this.termCount = termCount;
+      this.maxTableSize = maxTableSize;
+      this.maxFingerprintSizeBytes = maxFingerprintSizeBytes;
+      this.order = order;
+      this.results = results;
+      this.from = from;
+      this.to = to;
+      this.chunkSize = chunkSize;
+      this.scratches = scratches;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > chunkSize) {
+        int mid = from + (to - from) / 2;
+        invokeAll(split(from, mid), split(mid, to));
+        return;
+      }
+
+      Scratch scratch = scratches.poll();
+      if (scratch == null || scratch.slots.length < maxTableSize) {
+        // A smaller table left over from scoring a sample is dropped
+        scratch = new Scratch(maxTableSize);
+      }
+      try {
+        for (int i = from; i < to; ++i) {
+          int index = order == null ? i : order[i];
+          int p = pChoices[index / kChoices.length];
+          int k = kChoices[index % kChoices.length];
+          // A sample goes in a table with the same load
+          int tableSize = (int) ((long) p * fp.length / termCount);
+          results[i] = evaluate(index, p, k, tableSize, scratch.slots, scratch.dists, fp,
+              maxFingerprintSizeBytes);
+        }
+      } finally {
+        scratches.offer(scratch);
+      }
+    }
+
+    private Evaluation split(int from, int to) {
+      return new Evaluation(pChoices, kChoices, fp, termCount, maxTableSize,
+          maxFingerprintSizeBytes, order, results, from, to, chunkSize, scratches);
+    }
+  }
+
+  // Conditions: fingerprints of keys with the same hashcode differ in their
+  // low fingerprintSizeBytes bytes, maxHitDist < MAX_HIT_DIST
   // If conditions not met, return -1, else return avgHitDist
-  public double analyzeParameters(int p, int k, int[] hash, long[] fp, int count, int totalPairs) {
-    double avgHitDist; // of steps for search on avg
-    int maxHitDist;
+  public static double analyzeParameters(int p, int k, int[] slots, byte[] dists, long[] fp,
+      int fingerprintSizeBytes) {
+    Candidate c = evaluate(0, p, k, p, slots, dists, fp, fingerprintSizeBytes);
+    return c == null ? -1 : c.avgHitDist;
+  }
 
-    for (int i = 0; i < p; ++i) {
-      hash[i] = 0;
+  // Inserts the keys into a Robin Hood table of tableSize slots the way
+  // RobinHoodHashMap does, home slots being (p, k) hashcodes scaled down to
+  // the table. slots holds 1 + the index in fp of each slot's key (0 if
+  // empty), and dists how far the key is from its home slot.
+  private static Candidate evaluate(int index, int p, int k, int tableSize, int[] slots,
+      byte[] dists, long[] fp, int maxFingerprintSizeBytes) {
+    if (tableSize < fp.length) {
+      return null;
     }
+    Arrays.fill(slots, 0, tableSize, 0);
+    long totalHitDist = 0;
     for (int i = 0; i < fp.length; ++i) {
-      int hashVal = getHashcode(fp[i], k, p);
-      int index = hashVal;
+      int key = i + 1;
+      int slot = getHashcode(fp[i], k, p);
+      if (tableSize != p) {
+        slot = (int) ((long) slot * tableSize / p);
+      }
+      int dist = 0;
       for (;;) {
-        if (hash[index] == 0) {
-          hash[index] = hashVal;
+        if (slots[slot] == 0) {
+          slots[slot] = key;
+          dists[slot] = (byte) dist;
+          totalHitDist += dist;
           break;
         }
-        int dist = index - hashVal;
-        if (dist < 0) {
-          dist += p;
+        if (dists[slot] < dist) {
+          int existingKey = slots[slot];
+          int existingDist = dists[slot];
+          slots[slot] = key;
+          dists[slot] = (byte) dist;
+          totalHitDist += dist - existingDist;
+          key = existingKey;
+          dist = existingDist;
         }
-        int existingDist = index - hash[index];
-        if (existingDist < 0) {
-          existingDist += p;
+        // A key only moves further from its home slot, so once one is
+        // MAX_HIT_DIST away the candidate can't be valid
+        if (++dist >= MAX_HIT_DIST) {
+          return null;
         }
-        if (existingDist < dist) {
-          int existingHashVal = hash[index];
-          hash[index] = hashVal;
-          hashVal = existingHashVal;
+        if (++slot == tableSize) {
+          slot = 0;
         }
-        index = (index + 1) % p;
       }
     }
-    double totalHitDist = 0.0;
-    maxHitDist = 0;
-    int hitCount = 0;
-    for (int i = 0; i < p; ++i) {
-      if (hash[i] != 0) {
-        int hitDist = i - hash[i];
-        if (hitDist < 0) {
-          hitDist += p;
-        }
-        totalHitDist += hitDist;
-        if (hitDist > maxHitDist) {
-          maxHitDist = hitDist;
-        }
-        ++hitCount;
-      }
+    double avgHitDist = (double) totalHitDist / fp.length;
+    if (maxFingerprintSizeBytes == 0) {
+      return new Candidate(index, avgHitDist, 0);
     }
-    avgHitDist = totalHitDist / hitCount;
 
-    System.out.println(count + "/" + totalPairs + ": (" + p + "," + k + ") - maxHitDist: "
-        + maxHitDist + ", avgHitDist: " + avgHitDist + ", lastByteCollisions: "
-        + countLastByteCollisions(p, k, hash, fp));
-    if (maxHitDist < 15 && countLastByteCollisions(p, k, hash, fp) == 0) {
-      return avgHitDist;
-    } else {
-      return -1;
+    int fingerprintSizeBytes = minFingerprintSizeBytes(tableSize, slots, dists, fp);
+    if (fingerprintSizeBytes > maxFingerprintSizeBytes) {
+      return null;
     }
+    return new Candidate(index, avgHitDist, fingerprintSizeBytes);
   }
 
-  public int countLastByteCollisions(int p, int k, int[] hash, long[] fp) {
+  // Keys with the same hashcode are next to each other in a Robin Hood table,
+  // so runs of slots with the same home slot are all that has to be compared.
+  // Returns the number of low bytes that tells every two of them apart, which
+  // is MAX_FINGERPRINT_SIZE_BYTES + 1 if two keys have the same fingerprint.
+  private static int minFingerprintSizeBytes(int p, int[] slots, byte[] dists, long[] fp) {
+    int fingerprintSizeBytes = 1;
     for (int i = 0; i < p; ++i) {
-      hash[i] = 0;
-    }
-    Map<Integer, List<Long>> reverseHash = new HashMap<>();
-    for (int i = 0; i < fp.length; ++i) {
-      int hashVal = getHashcode(fp[i], k, p);
-      ++hash[hashVal];
-      List<Long> rhList = reverseHash.get(hashVal);
-      if (rhList == null) {
-        rhList = new ArrayList<>();
-        reverseHash.put(hashVal, rhList);
+      if (slots[i] == 0) {
+        continue;
       }
-      rhList.add(fp[i]);
-    }
-    int lastByteCollisions = 0;
-    for (int i = 0; i < p; ++i) {
-      if (hash[i] >= 2) {
-        // There is a collision
-        List<Long> rhList = reverseHash.get(i);
-        Set<Long> s = new HashSet<>();
-        for (long l : rhList) {
-          // Add last byte to a set
-          s.add(l & 0xffL);
+      long fingerprint = fp[slots[i] - 1];
+      for (int j = i + 1, dist = dists[i] + 1; dist < MAX_HIT_DIST; ++j, ++dist) {
+        if (j == p) {
+          j = 0;
         }
-        if (s.size() < rhList.size()) {
-          // Set is smaller than list - so last byte was same for multiple entries
-          ++lastByteCollisions;
+        if (slots[j] == 0 || dists[j] != dist) {
+          break;
         }
+        // The lowest differing byte is the last one that has to be stored
+        long diff = fingerprint ^ fp[slots[j] - 1];
+        fingerprintSizeBytes = Math.max(fingerprintSizeBytes,
+            Long.numberOfTrailingZeros(diff) / 8 + 1);
       }
     }
-    return lastByteCollisions;
+    return fingerprintSizeBytes;
   }
 
   public static int getHashcode(long fingerprint, int k, int capacity) {
@@ -206,18 +460,4 @@ public class ParameterAnalyzer {
     return getHashcode(fingerprint, k, capacity);
   }
 
-  private static int countTerms(Terms t) throws IOException {
-    TermsEnum te = t.iterator();
-    int count = 0;
-    while (true) {
-      BytesRef term = te.next();
-      if (term == null) {
-        break;
-      }
-      ++count;
-    }
-
-    return count;
-  }
-
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.mapcodec;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * PostingsEnum over the docs (and freqs) of a pulsed term, decoded straight
+ * from the .fde file in the format MapFileWriter saves them. Pulsed lists are
+ * short, so advance is a linear scan.
+ */
+final class PulsedPostingsEnum extends PostingsEnum {
+  private final RandomAccessInput in;
+  private final boolean hasFreqs;
+  private long pos;
+  private int docFreq;
+  private int upto;
+  private int doc;
+  private int freq;
+
+  PulsedPostingsEnum(RandomAccessInput in, boolean hasFreqs) {
+    this.in = in;
+    this.hasFreqs = hasFreqs;
+  }
+
+  boolean canReuse(RandomAccessInput in) {
+    return this.in == in;
+  }
+
+  PulsedPostingsEnum reset(long docsFP, int docFreq) {
+    this.pos = docsFP;
+    this.docFreq = docFreq;
+    this.upto = 0;
+    this.doc = -1;
+    this.freq = 1;
+    return this;
+  }
+
+  @Override
+  public int docID() {
+    return doc;
+  }
+
+  @Override
+  public int nextDoc() throws IOException {
+    if (upto == docFreq) {
+      return doc = NO_MORE_DOCS;
+    }
+    // Deltas of the first doc are from 0
+    int lastDoc = upto == 0 ? 0 : doc;
+    ++upto;
+    int code = readVInt();
+    if (hasFreqs) {
+      doc = lastDoc + (code >>> 1);
+      freq = (code & 1) != 0 ? 1 : readVInt();
+    } else {
+      doc = lastDoc + code;
+    }
+    return doc;
+  }
+
+  @Override
+  public int advance(int target) throws IOException {
+    int next;
+    do {
+      next = nextDoc();
+    } while (next < target);
+    return next;
+  }
+
+  @Override
+  public int freq() throws IOException {
+    return freq;
+  }
+
+  @Override
+  public int nextPosition() throws IOException {
+    return -1;
+  }
+
+  @Override
+  public int startOffset() throws IOException {
+    return -1;
+  }
+
+  @Override
+  public int endOffset() throws IOException {
+    return -1;
+  }
+
+  @Override
+  public BytesRef getPayload() throws IOException {
+    return null;
+  }
+
+  @Override
+  public long cost() {
+    return docFreq;
+  }
+
+  private int readVInt() throws IOException {
+    int value = 0;
+    for (int shift = 0;; shift += 7) {
+      byte b = in.readByte(pos++);
+      value |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.mapcodec;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.index.Impact;
+import org.apache.lucene.index.Impacts;
+import org.apache.lucene.index.ImpactsEnum;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * ImpactsEnum for a postings list without skip data, reporting one impact that
+ * bounds every document of the term. Unlike SlowImpactsEnum, whose bound is
+ * infinite, this lets block-max WAND skip terms that can't be competitive.
+ */
+final class TermImpactsEnum extends ImpactsEnum {
+  private final PostingsEnum delegate;
+  private final Impacts impacts;
+
+  TermImpactsEnum(PostingsEnum delegate, int maxFreq, long minNorm) {
+    this.delegate = delegate;
+    List<Impact> impactList = Collections.singletonList(new Impact(maxFreq, minNorm));
+    this.impacts = new Impacts() {
+      @Override
+      public int numLevels() {
+        return 1;
+      }
+
+      @Override
+      public int getDocIdUpTo(int level) {
+        return DocIdSetIterator.NO_MORE_DOCS;
+      }
+
+      @Override
+      public List<Impact> getImpacts(int level) {
+        return impactList;
+      }
+    };
+  }
+
+  @Override
+  public void advanceShallow(int target) throws IOException {
+  }
+
+  @Override
+  public Impacts getImpacts() throws IOException {
+    return impacts;
+  }
+
+  @Override
+  public int freq() throws IOException {
+    return delegate.freq();
+  }
+
+  @Override
+  public int nextPosition() throws IOException {
+    return delegate.nextPosition();
+  }
+
+  @Override
+  public int startOffset() throws IOException {
+    return delegate.startOffset();
+  }
+
+  @Override
+  public int endOffset() throws IOException {
+    return delegate.endOffset();
+  }
+
+  @Override
+  public BytesRef getPayload() throws IOException {
+    return delegate.getPayload();
+  }
+
+  @Override
+  public int docID() {
+    return delegate.docID();
+  }
+
+  @Override
+  public int nextDoc() throws IOException {
+    return delegate.nextDoc();
+  }
+
+  @Override
+  public int advance(int target) throws IOException {
+    return delegate.advance(target);
+  }
+
+  @Override
+  public long cost() {
+    return delegate.cost();
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.rsankar.lucenecodecs.search;
+
+import org.rsankar.lucenecodecs.mapcodec.MapPostingsFormat;
+
+/**
+ * Fingerprints of a query's longs, computed by the format of the segment
+ * being searched. Segments of one field are almost always read by the same
+ * format instance, so they are computed by the first segment and then reused.
+ */
+final class FingerprintCache {
+  private final long[] values;
+  private volatile Entry entry;
+
+  FingerprintCache(long[] values) {
+    this.values = values;
+  }
+
+  // Must not be modified
+  long[] get(MapPostingsFormat format) {
+    Entry e = entry;
+    if (e == null || e.format != format) {
+      long[] fingerprints = new long[values.length];
+      for (int i = 0; i < values.length; ++i) {
+        fingerprints[i] = format.getFingerprint(values[i]);
+      }
+      e = new Entry(format, fingerprints);
+      entry = e;
+    }
+    return e.fingerprints;
+  }
+
+  private static final class Entry {
+    final MapPostingsFormat format;
+    final long[] fingerprints;
+
+    Entry(MapPostingsFormat format, long[] fingerprints) {
+      this.format = format;
+      this.fingerprints = fingerprints;
+    }
+  }
+}
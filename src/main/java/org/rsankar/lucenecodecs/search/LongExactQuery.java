@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.rsankar.lucenecodecs.search;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.ConstantScoreScorer;
+import org.apache.lucene.search.ConstantScoreWeight;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.rsankar.lucenecodecs.field.IndexedLongField;
+import org.rsankar.lucenecodecs.mapcodec.MapFieldsReader.MapTerms;
+import org.rsankar.lucenecodecs.mapcodec.MapFieldsReader.MapTermsEnum;
+import org.rsankar.lucenecodecs.mapcodec.MapPostingsFormat;
+
+/**
+ * Constant score query for the docs with the given value in an
+ * {@link IndexedLongField}. On segments written with a
+ * {@link MapPostingsFormat}, the value's fingerprint is computed once per query
+ * and looked up in each segment directly with the thread's shared enum, without
+ * building the term's BytesRef or opening an enum. Other segments fall back to
+ * a regular term lookup.
+ */
+public class LongExactQuery extends Query {
+  private final String field;
+  private final long value;
+
+  public LongExactQuery(String field, long value) {
+    this.field = field;
+    this.value = value;
+  }
+
+  public String getField() {
+    return field;
+  }
+
+  public long getValue() {
+    return value;
+  }
+
+  @Override
+  public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost)
+      throws IOException {
+    return new ConstantScoreWeight(this, boost) {
+      private final FingerprintCache fingerprints = new FingerprintCache(new long[] { value });
+
+      @Override
+      public Scorer scorer(LeafReaderContext context) throws IOException {
+        Terms terms = context.reader().terms(field);
+        if (terms == null) {
+          return null;
+        }
+        TermsEnum termsEnum;
+        if (terms instanceof MapTerms) {
+          MapTerms mapTerms = (MapTerms) terms;
+          long fingerprint = fingerprints.get(mapTerms.getPostingsFormat())[0];
+          // Most segments don't have the value, skip them before opening an enum
+          if (mapTerms.mightContainFingerprint(fingerprint) == false) {
+            return null;
+          }
+          // The scorer only needs the enum until it has the postings
+          MapTermsEnum mapTermsEnum = mapTerms.sharedIterator();
+          // Like PrimaryKeyLookup, a hit of another term with the same hashcode
+          // and low fingerprint bytes isn't a match
+          if (mapTermsEnum.seekExactFingerprint(fingerprint) == false
+              || mapTermsEnum.verifyHit(fingerprint,
+                  IndexedLongField.longToBytesRef(value)) == false) {
+            return null;
+          }
+          termsEnum = mapTermsEnum;
+        } else {
+          termsEnum = terms.iterator();
+          if (termsEnum.seekExact(IndexedLongField.longToBytesRef(value)) == false) {
+            return null;
+          }
+        }
+        PostingsEnum postings = termsEnum.postings(null, PostingsEnum.NONE);
+        return new ConstantScoreScorer(this, score(), scoreMode, postings);
+      }
+
+      @Override
+      public boolean isCacheable(LeafReaderContext ctx) {
+        return true;
+      }
+
+      @Override
+      public void extractTerms(Set<Term> terms) {
+        terms.add(new Term(field, IndexedLongField.longToBytesRef(value)));
+      }
+    };
+  }
+
+  @Override
+  public void visit(QueryVisitor visitor) {
+    if (visitor.acceptField(field)) {
+      visitor.visitLeaf(this);
+    }
+  }
+
+  @Override
+  public String toString(String field) {
+    StringBuilder buffer = new StringBuilder();
+    if (this.field.equals(field) == false) {
+      buffer.append(this.field).append(':');
+    }
+    return buffer.append(value).toString();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return sameClassAs(other) && field.equals(((LongExactQuery) other).field)
+        && value == ((LongExactQuery) other).value;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (31 * classHash() + field.hashCode()) + Long.hashCode(value);
+  }
+}
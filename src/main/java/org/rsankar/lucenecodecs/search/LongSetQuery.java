@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.rsankar.lucenecodecs.search;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.ConstantScoreScorer;
+import org.apache.lucene.search.ConstantScoreWeight;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.DocIdSetBuilder;
+import org.rsankar.lucenecodecs.field.IndexedLongField;
+import org.rsankar.lucenecodecs.mapcodec.MapFieldsReader.MapTerms;
+import org.rsankar.lucenecodecs.mapcodec.MapFieldsReader.TermHitVisitor;
+import org.rsankar.lucenecodecs.mapcodec.MapFieldsReader.MapTermsEnum;
+
+/**
+ * Constant score query for the docs with any of the given values in an
+ * {@link IndexedLongField}. Small sets are rewritten to a disjunction of
+ * {@link LongExactQuery}s, which doesn't have to read every matching doc up
+ * front. Larger sets are looked up in a batch in each segment (see
+ * {@link MapTermsEnum#seekExactFingerprints}) and the postings of every hit
+ * are ORed into one doc id set per segment, sparse or a bit set depending on
+ * how many docs match.
+ */
+public class LongSetQuery extends Query {
+  // Like TermInSetQuery, scoring a few clauses lazily beats collecting them
+  static final int BOOLEAN_REWRITE_THRESHOLD = 16;
+
+  private final String field;
+  // Sorted, without duplicates
+  private final long[] values;
+  private final int hashCode;
+
+  public LongSetQuery(String field, long... values) {
+    this.field = field;
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    int count = 0;
+    for (int i = 0; i < sorted.length; ++i) {
+      if (i == 0 || sorted[i] != sorted[i - 1]) {
+        sorted[count++] = sorted[i];
+      }
+    }
+    this.values = Arrays.copyOf(sorted, count);
+    this.hashCode = 31 * (31 * classHash() + field.hashCode()) + Arrays.hashCode(this.values);
+  }
+
+  public String getField() {
+    return field;
+  }
+
+  // The set's values in ascending order
+  public long[] getValues() {
+    return values.clone();
+  }
+
+  @Override
+  public Query rewrite(IndexReader reader) throws IOException {
+    if (values.length == 0) {
+      return new MatchNoDocsQuery("Empty set of values");
+    }
+    if (values.length <= BOOLEAN_REWRITE_THRESHOLD) {
+      BooleanQuery.Builder builder = new BooleanQuery.Builder();
+      for (long value : values) {
+        builder.add(new LongExactQuery(field, value), Occur.SHOULD);
+      }
+      return new ConstantScoreQuery(builder.build());
+    }
+    return super.rewrite(reader);
+  }
+
+  @Override
+  public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost)
+      throws IOException {
+    return new ConstantScoreWeight(this, boost) {
+      private final FingerprintCache fingerprints = new FingerprintCache(values);
+
+      @Override
+      public Scorer scorer(LeafReaderContext context) throws IOException {
+        LeafReader reader = context.reader();
+        Terms terms = reader.terms(field);
+        if (terms == null) {
+          return null;
+        }
+        DocIdSetBuilder builder = new DocIdSetBuilder(reader.maxDoc(), terms);
+        if (terms instanceof MapTerms) {
+          MapTerms mapTerms = (MapTerms) terms;
+          long[] fps = fingerprints.get(mapTerms.getPostingsFormat());
+          mapTerms.sharedIterator().seekExactFingerprints(fps, fps.length,
+              new PostingsCollector(builder, fps, values));
+        } else {
+          TermsEnum termsEnum = terms.iterator();
+          BytesRef term = new BytesRef(new byte[Long.BYTES]);
+          PostingsEnum postings = null;
+          for (long value : values) {
+            IndexedLongField.longToBytes(value, term.bytes);
+            if (termsEnum.seekExact(term)) {
+              postings = termsEnum.postings(postings, PostingsEnum.NONE);
+              builder.add(postings);
+            }
+          }
+        }
+        return new ConstantScoreScorer(this, score(), scoreMode, builder.build().iterator());
+      }
+
+      @Override
+      public boolean isCacheable(LeafReaderContext ctx) {
+        return true;
+      }
+
+      @Override
+      public void extractTerms(Set<Term> terms) {
+        for (long value : values) {
+          terms.add(new Term(field, IndexedLongField.longToBytesRef(value)));
+        }
+      }
+    };
+  }
+
+  // ORs the postings of every hit into the builder, reusing one enum. Like
+  // LongExactQuery, it skips hits of another term than the fingerprint's.
+  private static final class PostingsCollector implements TermHitVisitor {
+    private final DocIdSetBuilder builder;
+    private final long[] fingerprints;
+    private final long[] values;
+    private final BytesRef term = new BytesRef(new byte[Long.BYTES]);
+    private PostingsEnum postings;
+
+    PostingsCollector(DocIdSetBuilder builder, long[] fingerprints, long[] values) {
+      this.builder = builder;
+      this.fingerprints = fingerprints;
+      this.values = values;
+    }
+
+    @Override
+    public void visitHit(int index, MapTermsEnum termsEnum) throws IOException {
+      IndexedLongField.longToBytes(values[index], term.bytes);
+      if (termsEnum.verifyHit(fingerprints[index], term) == false) {
+        return;
+      }
+      postings = termsEnum.postings(postings, PostingsEnum.NONE);
+      builder.add(postings);
+    }
+  }
+
+  @Override
+  public void visit(QueryVisitor visitor) {
+    if (visitor.acceptField(field)) {
+      visitor.visitLeaf(this);
+    }
+  }
+
+  @Override
+  public String toString(String field) {
+    StringBuilder buffer = new StringBuilder();
+    if (this.field.equals(field) == false) {
+      buffer.append(this.field).append(':');
+    }
+    buffer.append('{');
+    for (int i = 0; i < values.length; ++i) {
+      if (i > 0) {
+        buffer.append(' ');
+      }
+      buffer.append(values[i]);
+    }
+    return buffer.append('}').toString();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return sameClassAs(other) && field.equals(((LongSetQuery) other).field)
+        && Arrays.equals(values, ((LongSetQuery) other).values);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+}
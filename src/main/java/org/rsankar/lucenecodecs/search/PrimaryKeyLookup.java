@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.rsankar.lucenecodecs.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.rsankar.lucenecodecs.field.IndexedLongField;
+import org.rsankar.lucenecodecs.mapcodec.MapFieldsReader.MapTerms;
+import org.rsankar.lucenecodecs.mapcodec.MapFieldsReader.MapTermsEnum;
+import org.rsankar.lucenecodecs.mapcodec.MapFieldsReader.TermHitVisitor;
+import org.rsankar.lucenecodecs.mapcodec.MapPostingsFormat;
+
+/**
+ * Finds the live doc with a primary key stored in an {@link IndexedLongField},
+ * and optionally its version from a numeric doc values field. Segments are
+ * checked newest first, since recently updated keys live there, and the
+ * lookup stops at the first live doc. The terms enums of every segment are
+ * opened once and reused, so a lookup on map fields doesn't allocate. Hits in
+ * maps without exact lookups are verified (see {@link MapTermsEnum#verifyHit}),
+ * so a key never resolves to the doc of another key.
+ *
+ * Instances aren't thread safe: open one per thread and reader.
+ */
+public class PrimaryKeyLookup {
+  private final String versionField;
+  private final Leaf[] leaves;
+  private final BytesRef term = new BytesRef(new byte[Long.BYTES]);
+  private long version = -1;
+
+  public PrimaryKeyLookup(IndexReader reader, String idField) throws IOException {
+    this(reader, idField, null);
+  }
+
+  public PrimaryKeyLookup(IndexReader reader, String idField, String versionField)
+      throws IOException {
+    this.versionField = versionField;
+    List<LeafReaderContext> contexts = new ArrayList<>(reader.leaves());
+    contexts.sort((a, b) -> Long.compare(generation(b), generation(a)));
+    List<Leaf> leaves = new ArrayList<>();
+    for (LeafReaderContext context : contexts) {
+      Terms terms = context.reader().terms(idField);
+      if (terms != null) {
+        leaves.add(new Leaf(context, terms));
+      }
+    }
+    this.leaves = leaves.toArray(new Leaf[0]);
+  }
+
+  // Segments are named after an increasing counter, so later segments have
+  // newer docs. Other leaves keep their order.
+  private static long generation(LeafReaderContext context) {
+    LeafReader reader = FilterLeafReader.unwrap(context.reader());
+    if (reader instanceof SegmentReader) {
+      String name = ((SegmentReader) reader).getSegmentInfo().info.name;
+      return Long.parseLong(name.substring(1), Character.MAX_RADIX);
+    }
+    return context.ord;
+  }
+
+  /**
+   * Returns the docID (in the whole reader) of the live doc with the given
+   * key, or -1 if there is none.
+   */
+  public int lookup(long id) throws IOException {
+    version = -1;
+    MapPostingsFormat format = null;
+    long fingerprint = 0;
+    IndexedLongField.longToBytes(id, term.bytes);
+    for (Leaf leaf : leaves) {
+      TermsEnum termsEnum;
+      if (leaf.mapTermsEnum != null) {
+        // Segments usually share a format, so the fingerprint is reused
+        if (leaf.format != format) {
+          format = leaf.format;
+          fingerprint = format.getFingerprint(id);
+        }
+        if (leaf.mapTermsEnum.seekExactFingerprint(fingerprint) == false
+            || leaf.mapTermsEnum.verifyHit(fingerprint, term) == false) {
+          continue;
+        }
+        termsEnum = leaf.mapTermsEnum;
+      } else {
+        if (leaf.termsEnum.seekExact(term) == false) {
+          continue;
+        }
+        termsEnum = leaf.termsEnum;
+      }
+      int doc = leaf.firstLiveDoc(termsEnum);
+      if (doc != DocIdSetIterator.NO_MORE_DOCS) {
+        version = leaf.version(doc);
+        return leaf.docBase + doc;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Version of the doc found by the last {@link #lookup(long)}, or -1 if none
+   * was found or it has no version.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Looks up the first count keys at once, setting docIDs[i] to the docID of
+   * the live doc with key ids[i] or -1, and versions[i] (if versions isn't
+   * null) to its version. On map fields, each segment is probed for all the
+   * keys it still has to resolve in one batch. Returns how many were found.
+   */
+  public int lookup(long[] ids, int count, int[] docIDs, long[] versions) throws IOException {
+    Arrays.fill(docIDs, 0, count, -1);
+    if (versions != null) {
+      Arrays.fill(versions, 0, count, -1L);
+    }
+    int[] pending = new int[count];
+    for (int i = 0; i < count; ++i) {
+      pending[i] = i;
+    }
+    int numPending = count;
+    long[] fingerprints = null;
+    MapPostingsFormat format = null;
+    BatchVisitor visitor = new BatchVisitor(ids, pending, docIDs, versions);
+
+    for (int l = 0; l < leaves.length && numPending > 0; ++l) {
+      Leaf leaf = leaves[l];
+      if (leaf.mapTermsEnum != null) {
+        if (fingerprints == null) {
+          fingerprints = new long[count];
+        }
+        if (leaf.format != format) {
+          format = leaf.format;
+          for (int i = 0; i < numPending; ++i) {
+            fingerprints[i] = format.getFingerprint(ids[pending[i]]);
+          }
+        }
+        visitor.leaf = leaf;
+        visitor.fingerprints = fingerprints;
+        leaf.mapTermsEnum.seekExactFingerprints(fingerprints, numPending, visitor);
+      } else {
+        for (int i = 0; i < numPending; ++i) {
+          IndexedLongField.longToBytes(ids[pending[i]], term.bytes);
+          if (leaf.termsEnum.seekExact(term)) {
+            visitor.leaf = leaf;
+            visitor.visitHit(i, leaf.termsEnum);
+          }
+        }
+      }
+
+      // Keep the keys (and their fingerprints) that are still not found
+      int remaining = 0;
+      for (int i = 0; i < numPending; ++i) {
+        if (docIDs[pending[i]] == -1) {
+          if (fingerprints != null) {
+            fingerprints[remaining] = fingerprints[i];
+          }
+          pending[remaining++] = pending[i];
+        }
+      }
+      numPending = remaining;
+    }
+    return count - numPending;
+  }
+
+  private static final class BatchVisitor implements TermHitVisitor {
+    private final long[] ids;
+    private final int[] pending;
+    private final int[] docIDs;
+    private final long[] versions;
+    private final BytesRef term = new BytesRef(new byte[Long.BYTES]);
+    Leaf leaf;
+    // The fingerprints the leaf's map was probed with, to verify hits
+    long[] fingerprints;
+
+    BatchVisitor(long[] ids, int[] pending, int[] docIDs, long[] versions) {
+      this.ids = ids;
+      this.pending = pending;
+      this.docIDs = docIDs;
+      this.versions = versions;
+    }
+
+    @Override
+    public void visitHit(int index, MapTermsEnum termsEnum) throws IOException {
+      IndexedLongField.longToBytes(ids[pending[index]], term.bytes);
+      if (termsEnum.verifyHit(fingerprints[index], term)) {
+        visitHit(index, (TermsEnum) termsEnum);
+      }
+    }
+
+    void visitHit(int index, TermsEnum termsEnum) throws IOException {
+      int doc = leaf.firstLiveDoc(termsEnum);
+      if (doc != DocIdSetIterator.NO_MORE_DOCS) {
+        int key = pending[index];
+        docIDs[key] = leaf.docBase + doc;
+        if (versions != null) {
+          versions[key] = leaf.version(doc);
+        }
+      }
+    }
+  }
+
+  private final class Leaf {
+    final LeafReader reader;
+    final int docBase;
+    final Bits liveDocs;
+    // Set for segments written with a MapPostingsFormat, termsEnum otherwise
+    final MapTermsEnum mapTermsEnum;
+    final MapPostingsFormat format;
+    final TermsEnum termsEnum;
+    PostingsEnum postings;
+    NumericDocValues versionValues;
+
+    Leaf(LeafReaderContext context, Terms terms) throws IOException {
+      this.reader = context.reader();
+      this.docBase = context.docBase;
+      this.liveDocs = reader.getLiveDocs();
+      if (terms instanceof MapTerms) {
+        this.mapTermsEnum = ((MapTerms) terms).iterator(null);
+        this.format = ((MapTerms) terms).getPostingsFormat();
+        this.termsEnum = null;
+      } else {
+        this.mapTermsEnum = null;
+        this.format = null;
+        this.termsEnum = terms.iterator();
+      }
+    }
+
+    int firstLiveDoc(TermsEnum termsEnum) throws IOException {
+      postings = termsEnum.postings(postings, PostingsEnum.NONE);
+      for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings
+          .nextDoc()) {
+        if (liveDocs == null || liveDocs.get(doc)) {
+          return doc;
+        }
+      }
+      return DocIdSetIterator.NO_MORE_DOCS;
+    }
+
+    long version(int doc) throws IOException {
+      if (versionField == null) {
+        return -1;
+      }
+      // Doc values only move forward, so lookups of earlier docs start over
+      if (versionValues == null || versionValues.docID() > doc) {
+        versionValues = reader.getNumericDocValues(versionField);
+        if (versionValues == null) {
+          return -1;
+        }
+      }
+      return versionValues.advanceExact(doc) ? versionValues.longValue() : -1;
+    }
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.termmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import org.apache.lucene.store.ByteBuffersDataInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RandomAccessInput;
+
+/**
+ * Hash map whose probe unit is a 64 byte bucket of 32 16-bit tags, so a lookup
+ * usually reads one cache line of tags plus, on a tag match, one slot in a
+ * parallel array of fingerprints and values. Tags are compared four at a time
+ * with SWAR arithmetic on 64-bit words. A bucket that is full overflows into
+ * the next one, and a probe stops at the first bucket with an empty lane.
+ *
+ * Like PerfectHashMap, the hashcode passed to put/get is ignored: the home
+ * bucket and the tag are taken from different bits of a hash of the full
+ * fingerprint. The low fingerprintSizeBytes bytes of the fingerprint are kept
+ * in the slot to reject tag matches that belong to other keys.
+ *
+ * The saved buckets start at a file offset that is a multiple of 64, so a
+ * bucket is one cache line when the file is memory mapped on its own. Lucene's
+ * compound files place sub-files without aligning them, and on-heap tables
+ * are copied into a byte array, so buckets of those can straddle two lines.
+ */
+public class BucketizedHashMap implements TermMapReader, TermMapWriter {
+  static final int BUCKET_SIZE_BYTES = 64;
+  static final int TAG_SIZE_BYTES = 2;
+  static final int SLOTS_PER_BUCKET = BUCKET_SIZE_BYTES / TAG_SIZE_BYTES;
+  static final int LANES_PER_WORD = Long.BYTES / TAG_SIZE_BYTES;
+  static final int LANE_SIZE_BITS = TAG_SIZE_BYTES * Byte.SIZE;
+
+  private static final long LANE_ONES = 0x0001000100010001L;
+  private static final long LANE_LOW_BITS = 0x7fff7fff7fff7fffL;
+
+  private int capacity;
+  private int numBuckets;
+
+  private int fingerprintSizeBytes;
+  private int valueSizeBytes;
+  private int slotSizeBytes;
+  private long fingerprintMask;
+  // Where the tag buckets and the slots start in the input
+  private long bucketsPos;
+  private long slotsPos;
+
+  // Only set while building the map
+  private ByteBuffer buffer;
+  // All lookups go through absolute reads on this input
+  private RandomAccessInput input;
+
+  // Saved as the number of padding bytes and the padding, then the tag buckets,
+  // then fingerprint + value for every slot. The capacity is rounded up to a
+  // whole number of buckets.
+  public void create(int capacity, int hashcodeSizeBytes, int fingerprintSizeBytes,
+      int valueSizeBytes) {
+    setSizes(capacity, fingerprintSizeBytes, valueSizeBytes, 0);
+    this.buffer = ByteBuffer.allocateDirect(
+        Math.toIntExact(slotsPos + (long) this.capacity * slotSizeBytes));
+    this.input = new ByteBuffersDataInput(Collections.singletonList(buffer));
+  }
+
+  private void setSizes(int capacity, int fingerprintSizeBytes, int valueSizeBytes,
+      long bucketsPos) {
+    if (fingerprintSizeBytes < 1 || fingerprintSizeBytes > 8) {
+      throw new IllegalArgumentException("Fingerprint size must be between 1 and 8 bytes");
+    }
+    if (valueSizeBytes < 1 || valueSizeBytes > 8) {
+      throw new IllegalArgumentException("Value size must be between 1 and 8 bytes");
+    }
+    this.numBuckets = Math.max(1, (capacity + SLOTS_PER_BUCKET - 1) / SLOTS_PER_BUCKET);
+    this.capacity = numBuckets * SLOTS_PER_BUCKET;
+    this.fingerprintSizeBytes = fingerprintSizeBytes;
+    this.valueSizeBytes = valueSizeBytes;
+    this.slotSizeBytes = fingerprintSizeBytes + valueSizeBytes;
+    this.fingerprintMask = fingerprintSizeBytes == 8 ? -1L
+        : (1L << (8 * fingerprintSizeBytes)) - 1;
+    this.bucketsPos = bucketsPos;
+    this.slotsPos = bucketsPos + (long) numBuckets * BUCKET_SIZE_BYTES;
+  }
+
+  // Returns value for the fingerprint, -1 if not in map
+  public long get(int hashcode, long fingerprint) throws IOException {
+    long slot = find(fingerprint);
+    if (slot < 0) {
+      return -1;
+    }
+    return readLong(slotsPos + slot * slotSizeBytes + fingerprintSizeBytes, valueSizeBytes);
+  }
+
+  // Probes start at the key's bucket
+  public int homeSlot(int hashcode, long fingerprint) {
+    return bucket(hash(fingerprint));
+  }
+
+  public void put(int hashcode, long fingerprint, long value) throws IOException {
+    if (value < 0) {
+      throw new IllegalArgumentException("Values must not be negative");
+    }
+    long slot = find(fingerprint);
+    if (slot >= 0) {
+      // If duplicate key, overwrite old value
+      writeLong(slotsPos + slot * slotSizeBytes + fingerprintSizeBytes, value, valueSizeBytes);
+      return;
+    }
+    // find() returns -(first empty slot) - 1 for keys that aren't in the map
+    slot = -slot - 1;
+    if (slot >= capacity) {
+      throw new IllegalStateException("Map is full");
+    }
+    long h = hash(fingerprint);
+    buffer.putShort((int) (bucketsPos + slot * TAG_SIZE_BYTES), (short) tag(h));
+    long pos = slotsPos + slot * slotSizeBytes;
+    writeLong(pos, fingerprint & fingerprintMask, fingerprintSizeBytes);
+    writeLong(pos + fingerprintSizeBytes, value, valueSizeBytes);
+  }
+
+  /**
+   * Returns the slot holding the fingerprint, or -(slot) - 1 where slot is the
+   * first empty one on the probe sequence (capacity if the map is full).
+   */
+  private long find(long fingerprint) throws IOException {
+    long h = hash(fingerprint);
+    long tagWord = tag(h) * LANE_ONES;
+    long expected = fingerprint & fingerprintMask;
+    int bucket = bucket(h);
+    for (int probes = 0; probes < numBuckets; ++probes) {
+      long firstSlot = (long) bucket * SLOTS_PER_BUCKET;
+      for (int w = 0; w < BUCKET_SIZE_BYTES / Long.BYTES; ++w) {
+        long wordSlot = firstSlot + w * LANES_PER_WORD;
+        long word = input.readLong(bucketsPos + wordSlot * TAG_SIZE_BYTES);
+        long matches = zeroLanes(word ^ tagWord);
+        while (matches != 0) {
+          int lane = laneOf(matches);
+          long slot = wordSlot + lane;
+          if (readLong(slotsPos + slot * slotSizeBytes, fingerprintSizeBytes) == expected) {
+            return slot;
+          }
+          matches &= ~(Long.MIN_VALUE >>> (lane * LANE_SIZE_BITS));
+        }
+        long empty = zeroLanes(word);
+        if (empty != 0) {
+          // Buckets fill lane by lane, so the rest of the probe sequence is empty
+          return -(wordSlot + laneOf(empty)) - 1;
+        }
+      }
+      bucket = bucket + 1 == numBuckets ? 0 : bucket + 1;
+    }
+    return -(long) capacity - 1;
+  }
+
+  // Sets the high bit of every 16-bit lane of x that is zero, and no others
+  private static long zeroLanes(long x) {
+    long y = (x & LANE_LOW_BITS) + LANE_LOW_BITS;
+    return ~(y | x | LANE_LOW_BITS);
+  }
+
+  // Index of the first lane flagged in mask. Words are read big-endian, so
+  // the most significant lane holds the word's first slot.
+  private static int laneOf(long mask) {
+    return Long.numberOfLeadingZeros(mask) / LANE_SIZE_BITS;
+  }
+
+  // Tags are never 0, which marks an empty lane
+  private int bucket(long hash) {
+    return (int) (((hash >>> 32) * numBuckets) >>> 32);
+  }
+
+  private static long tag(long hash) {
+    long tag = hash & 0xffff;
+    return tag == 0 ? 1 : tag;
+  }
+
+  // murmur3 fmix64 of the fingerprint
+  static long hash(long fingerprint) {
+    long h = fingerprint;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  // Slots with a tag are filled
+  public void forEach(EntryVisitor visitor) throws IOException {
+    for (long slot = 0; slot < capacity; ++slot) {
+      if (input.readShort(bucketsPos + slot * TAG_SIZE_BYTES) != 0) {
+        long pos = slotsPos + slot * slotSizeBytes;
+        visitor.visit(readLong(pos, fingerprintSizeBytes),
+            readLong(pos + fingerprintSizeBytes, valueSizeBytes));
+      }
+    }
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  private void writeLong(long pos, long val, int numBytes) {
+    for (int i = 0; i < numBytes; ++i) {
+      buffer.put((int) (pos + i), (byte) (val >>> ((numBytes - 1 - i) * 8)));
+    }
+  }
+
+  private long readLong(long pos, int numBytes) throws IOException {
+    long result = (input.readByte(pos) & 0xff);
+    for (int i = 1; i < numBytes; ++i) {
+      result <<= 8;
+      result |= (input.readByte(pos + i) & 0xff);
+    }
+    return result;
+  }
+
+  public void save(IndexOutput out) throws IOException {
+    out.writeVInt(capacity);
+    out.writeVInt(0); // no hashcode is stored
+    out.writeVInt(fingerprintSizeBytes);
+    out.writeVInt(valueSizeBytes);
+    // The count itself takes a byte
+    int padding = (int) (-(out.getFilePointer() + 1) & (BUCKET_SIZE_BYTES - 1));
+    out.writeByte((byte) padding);
+    for (int i = 0; i < padding; ++i) {
+      out.writeByte((byte) 0);
+    }
+    buffer.position(0);
+    for (int i = 0; i < buffer.capacity(); ++i) {
+      out.writeByte(buffer.get());
+    }
+  }
+
+  public void open(int capacity, int hashcodeSizeBytes, int fingerprintSizeBytes,
+      int valueSizeBytes, RandomAccessInput input) throws IOException {
+    setSizes(capacity, fingerprintSizeBytes, valueSizeBytes, 1 + input.readByte(0));
+    this.buffer = null;
+    this.input = input;
+  }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.termmap;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.InPlaceMergeSorter;
+
+/**
+ * Term map built on a minimal perfect hash of the fingerprints (BBHash style).
+ * Each level is a bit array of GAMMA bits per remaining key. A key lands on the
+ * level where its hash is the only one to hit a bit, and its slot is the rank of
+ * that bit. Building is linear in the number of keys, needs no parameter search,
+ * and the hash function takes roughly 3.5 bits per key. A lookup hashes the
+ * fingerprint once per level it has to check and reads exactly one slot.
+ *
+ * Unlike RobinHoodHashMap, the hashcode passed to put/get is ignored: the map
+ * hashes the full fingerprint itself. Each slot stores the low
+ * fingerprintSizeBytes bytes of its fingerprint next to the value, so that
+ * fingerprints that aren't in the map are rejected (exactly if all 8 bytes are
+ * kept).
+ */
+public class PerfectHashMap implements TermMapReader, TermMapWriter {
+  static final int GAMMA = 2;
+  // Keys still colliding after this many levels go to a small sorted fallback array
+  static final int MAX_LEVELS = 32;
+  // Rank is sampled once per RANK_BLOCK_WORDS words of the level bit arrays
+  static final int RANK_BLOCK_WORDS = 8;
+  // Slots written to the output at once when building
+  static final int SLOTS_PER_PAGE = 4096;
+
+  private int capacity;
+  private int fingerprintSizeBytes;
+  private int valueSizeBytes;
+  private int slotSizeBytes;
+  private long fingerprintMask;
+
+  // Keys buffered by put() until the hash function is built
+  private long[] keys;
+  private long[] values;
+  private int size;
+
+  private RandomAccessInput input;
+  private long inputLength;
+
+  private int numLevels;
+  private long[] levelStartBit;
+  private long[] levelNumBits;
+  private long wordsPos;
+  private long ranksPos;
+  private int numFallback;
+  private long fallbackPos;
+  private long slotsPos;
+
+  // capacity is the expected number of keys, the map grows past it if needed
+  public void create(int capacity, int hashcodeSizeBytes, int fingerprintSizeBytes,
+      int valueSizeBytes) {
+    this.capacity = 0;
+    setSizes(fingerprintSizeBytes, valueSizeBytes);
+    this.keys = new long[Math.max(capacity, 1)];
+    this.values = new long[Math.max(capacity, 1)];
+    this.size = 0;
+    this.input = null;
+  }
+
+  public void put(int hashcode, long fingerprint, long value) {
+    if (keys == null) {
+      throw new IllegalStateException("Map was opened for reading");
+    }
+    if (value < 0) {
+      throw new IllegalArgumentException("Values must not be negative");
+    }
+    if (size == keys.length) {
+      keys = ArrayUtil.grow(keys, size + 1);
+      values = ArrayUtil.growExact(values, keys.length);
+    }
+    keys[size] = fingerprint;
+    values[size] = value;
+    ++size;
+    // Anything built so far no longer covers every key
+    input = null;
+  }
+
+  // Returns value for the fingerprint, -1 if not in map
+  public long get(int hashcode, long fingerprint) throws IOException {
+    if (input == null) {
+      build();
+    }
+    long slot = slotOf(fingerprint);
+    if (slot == -1) {
+      return -1;
+    }
+    long pos = slotsPos + slot * slotSizeBytes;
+    if (readLong(pos, fingerprintSizeBytes) != (fingerprint & fingerprintMask)) {
+      return -1;
+    }
+    return readLong(pos + fingerprintSizeBytes, valueSizeBytes);
+  }
+
+  // Most keys are placed by the first level, whose bits are ranked in the
+  // same order as their slots
+  public int homeSlot(int hashcode, long fingerprint) throws IOException {
+    if (input == null) {
+      build();
+    }
+    if (numLevels == 0) {
+      return 0;
+    }
+    return (int) (reduce(hash(fingerprint, 0), levelNumBits[0]) >>> 6);
+  }
+
+  public void forEach(EntryVisitor visitor) throws IOException {
+    if (input == null) {
+      build();
+    }
+    for (long slot = 0; slot < capacity; ++slot) {
+      long pos = slotsPos + slot * slotSizeBytes;
+      visitor.visit(readLong(pos, fingerprintSizeBytes),
+          readLong(pos + fingerprintSizeBytes, valueSizeBytes));
+    }
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public void save(IndexOutput out) throws IOException {
+    if (input == null) {
+      build();
+    }
+    out.writeVInt(capacity);
+    out.writeVInt(0); // no hashcode is stored
+    out.writeVInt(fingerprintSizeBytes);
+    out.writeVInt(valueSizeBytes);
+    for (long i = 0; i < inputLength; ++i) {
+      out.writeByte(input.readByte(i));
+    }
+  }
+
+  public void open(int capacity, int hashcodeSizeBytes, int fingerprintSizeBytes,
+      int valueSizeBytes, RandomAccessInput input) throws IOException {
+    this.capacity = capacity;
+    setSizes(fingerprintSizeBytes, valueSizeBytes);
+    this.keys = null;
+    this.values = null;
+    load(input);
+  }
+
+  private void setSizes(int fingerprintSizeBytes, int valueSizeBytes) {
+    if (fingerprintSizeBytes < 1 || fingerprintSizeBytes > 8) {
+      throw new IllegalArgumentException("Fingerprint size must be between 1 and 8 bytes");
+    }
+    if (valueSizeBytes < 1 || valueSizeBytes > 8) {
+      throw new IllegalArgumentException("Value size must be between 1 and 8 bytes");
+    }
+    this.fingerprintSizeBytes = fingerprintSizeBytes;
+    this.valueSizeBytes = valueSizeBytes;
+    this.slotSizeBytes = fingerprintSizeBytes + valueSizeBytes;
+    this.fingerprintMask = fingerprintSizeBytes == 8 ? -1L
+        : (1L << (8 * fingerprintSizeBytes)) - 1;
+  }
+
+  /*
+   * Serialized layout, all big-endian: [int numKeys] [int numLevels]
+   * [long numBits] * numLevels, [long words]... [int rank samples]... [int
+   * numFallback] [long fallback fingerprints, sorted]... [slots]...
+   */
+  private void load(RandomAccessInput in) throws IOException {
+    this.input = in;
+    long pos = 0;
+    this.capacity = in.readInt(pos);
+    pos += Integer.BYTES;
+    this.numLevels = in.readInt(pos);
+    pos += Integer.BYTES;
+    this.levelStartBit = new long[numLevels];
+    this.levelNumBits = new long[numLevels];
+    long totalBits = 0;
+    for (int level = 0; level < numLevels; ++level) {
+      levelStartBit[level] = totalBits;
+      levelNumBits[level] = in.readLong(pos);
+      totalBits += levelNumBits[level];
+      pos += Long.BYTES;
+    }
+    long numWords = totalBits >>> 6;
+    this.wordsPos = pos;
+    pos += numWords * Long.BYTES;
+    this.ranksPos = pos;
+    pos += numRankSamples(numWords) * Integer.BYTES;
+    this.numFallback = in.readInt(pos);
+    pos += Integer.BYTES;
+    this.fallbackPos = pos;
+    pos += (long) numFallback * Long.BYTES;
+    this.slotsPos = pos;
+    this.inputLength = pos + (long) capacity * slotSizeBytes;
+  }
+
+  private long slotOf(long fingerprint) throws IOException {
+    for (int level = 0; level < numLevels; ++level) {
+      long bit = levelStartBit[level] + reduce(hash(fingerprint, level), levelNumBits[level]);
+      long word = input.readLong(wordsPos + (bit >>> 6) * Long.BYTES);
+      if ((word & (1L << bit)) != 0) {
+        return rank(bit, word);
+      }
+    }
+    // Binary search the keys that no level could place
+    int lo = 0, hi = numFallback - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      long key = input.readLong(fallbackPos + (long) mid * Long.BYTES);
+      if (key < fingerprint) {
+        lo = mid + 1;
+      } else if (key > fingerprint) {
+        hi = mid - 1;
+      } else {
+        return capacity - numFallback + mid;
+      }
+    }
+    return -1;
+  }
+
+  // Number of set bits before the given bit, across all levels
+  private long rank(long bit, long word) throws IOException {
+    long wordIndex = bit >>> 6;
+    long block = wordIndex / RANK_BLOCK_WORDS;
+    long rank = input.readInt(ranksPos + block * Integer.BYTES) & 0xffffffffL;
+    for (long w = block * RANK_BLOCK_WORDS; w < wordIndex; ++w) {
+      rank += Long.bitCount(input.readLong(wordsPos + w * Long.BYTES));
+    }
+    return rank + Long.bitCount(word & ((1L << bit) - 1));
+  }
+
+  private void build() throws IOException {
+    // Stable sort by fingerprint, so the last put of a duplicate wins
+    new InPlaceMergeSorter() {
+      @Override
+      protected int compare(int i, int j) {
+        return Long.compare(keys[i], keys[j]);
+      }
+
+      @Override
+      protected void swap(int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        long value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+      }
+    }.sort(0, size);
+    int numKeys = 0;
+    long[] sortedKeys = new long[size];
+    long[] sortedValues = new long[size];
+    for (int i = 0; i < size; ++i) {
+      if (numKeys > 0 && sortedKeys[numKeys - 1] == keys[i]) {
+        sortedValues[numKeys - 1] = values[i];
+      } else {
+        sortedKeys[numKeys] = keys[i];
+        sortedValues[numKeys] = values[i];
+        ++numKeys;
+      }
+    }
+
+    long[][] levels = new long[MAX_LEVELS][];
+    int levelCount = 0;
+    long[] remaining = Arrays.copyOf(sortedKeys, numKeys);
+    int numRemaining = numKeys;
+    while (numRemaining > 0 && levelCount < MAX_LEVELS) {
+      long numBits = Math.max(64, ((long) GAMMA * numRemaining + 63) & ~63L);
+      long[] bits = new long[(int) (numBits >>> 6)];
+      long[] collisions = new long[bits.length];
+      for (int i = 0; i < numRemaining; ++i) {
+        long bit = reduce(hash(remaining[i], levelCount), numBits);
+        int w = (int) (bit >>> 6);
+        if ((bits[w] & (1L << bit)) != 0) {
+          collisions[w] |= 1L << bit;
+        } else {
+          bits[w] |= 1L << bit;
+        }
+      }
+      for (int w = 0; w < bits.length; ++w) {
+        bits[w] &= ~collisions[w];
+      }
+      int next = 0;
+      for (int i = 0; i < numRemaining; ++i) {
+        long bit = reduce(hash(remaining[i], levelCount), numBits);
+        if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+          remaining[next++] = remaining[i];
+        }
+      }
+      numRemaining = next;
+      levels[levelCount++] = bits;
+    }
+    // remaining is still sorted, since collisions are removed in order
+    long[] fallback = Arrays.copyOf(remaining, numRemaining);
+
+    ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+    out.writeInt(numKeys);
+    out.writeInt(levelCount);
+    long numWords = 0;
+    for (int level = 0; level < levelCount; ++level) {
+      out.writeLong((long) levels[level].length * 64);
+      numWords += levels[level].length;
+    }
+    int[] rankSamples = new int[(int) numRankSamples(numWords)];
+    long rank = 0;
+    long w = 0;
+    for (int level = 0; level < levelCount; ++level) {
+      for (long word : levels[level]) {
+        if (w % RANK_BLOCK_WORDS == 0) {
+          rankSamples[(int) (w / RANK_BLOCK_WORDS)] = (int) rank;
+        }
+        out.writeLong(word);
+        rank += Long.bitCount(word);
+        ++w;
+      }
+    }
+    for (int sample : rankSamples) {
+      out.writeInt(sample);
+    }
+    out.writeInt(fallback.length);
+    for (long key : fallback) {
+      out.writeLong(key);
+    }
+
+    // Find the key of every slot, then append the slots to the structure in
+    // order, a page at a time: a map of 200M keys has over 2GB of slots
+    this.capacity = numKeys;
+    load(out.toDataInput());
+    int[] keyAtSlot = new int[numKeys];
+    for (int i = 0; i < numKeys; ++i) {
+      keyAtSlot[(int) slotOf(sortedKeys[i])] = i;
+    }
+    byte[] page = new byte[SLOTS_PER_PAGE * slotSizeBytes];
+    for (int start = 0; start < numKeys; start += SLOTS_PER_PAGE) {
+      int count = Math.min(SLOTS_PER_PAGE, numKeys - start);
+      for (int i = 0; i < count; ++i) {
+        int key = keyAtSlot[start + i];
+        int pos = i * slotSizeBytes;
+        writeLong(page, pos, sortedKeys[key] & fingerprintMask, fingerprintSizeBytes);
+        writeLong(page, pos + fingerprintSizeBytes, sortedValues[key], valueSizeBytes);
+      }
+      out.writeBytes(page, 0, count * slotSizeBytes);
+    }
+    load(out.toDataInput());
+  }
+
+  private static long numRankSamples(long numWords) {
+    return (numWords + RANK_BLOCK_WORDS - 1) / RANK_BLOCK_WORDS;
+  }
+
+  // murmur3 fmix64 of the fingerprint, seeded per level
+  static long hash(long fingerprint, int level) {
+    long h = fingerprint + (level + 1) * 0x9E3779B97F4A7C15L;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  // Maps a hash onto [0, n) without a division
+  private static long reduce(long hash, long n) {
+    return ((hash >>> 32) * n) >>> 32;
+  }
+
+  private long readLong(long pos, int numBytes) throws IOException {
+    long result = (input.readByte(pos) & 0xff);
+    for (int i = 1; i < numBytes; ++i) {
+      result <<= 8;
+      result |= (input.readByte(pos + i) & 0xff);
+    }
+    return result;
+  }
+
+  private static void writeLong(byte[] bytes, int pos, long val, int numBytes) {
+    for (int i = 0; i < numBytes; ++i) {
+      bytes[pos + i] = (byte) (val >>> ((numBytes - 1 - i) * 8));
+    }
+  }
+}
@@ -24,8 +24,11 @@ package org.rsankar.lucenecodecs.termmap;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Collections;
 
+import org.apache.lucene.store.ByteBuffersDataInput;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RandomAccessInput;
 
 public class RobinHoodHashMap implements TermMapReader, TermMapWriter {
 
@@ -35,14 +38,19 @@ public class RobinHoodHashMap implements TermMapReader, TermMapWriter {
   private int fingerprintSizeBytes;
   private int valueSizeBytes;
   private int totalSizeBytes;
+  // Only the low fingerprintSizeBytes bytes of a fingerprint are stored
+  private long fingerprintMask;
 
+  // Only set while building the map
   private ByteBuffer buffer;
+  // All lookups go through absolute reads on this input
+  private RandomAccessInput input;
 
   // Saved as dist + fingerprint + value ( last bit of value corresponds to
   // empty-0 or not-1)
   // All sizes in # of bytes
-  // hashcode and value size must be less than 4, fingerprint size must be less
-  // than 8
+  // hashcode size must be less than 4, value and fingerprint size must be
+  // less than 8
   // Hashcode + fingerprint together uniquely identify a key
   public void create(int capacity, int distSizeBytes, int fingerprintSizeBytes,
       int valueSizeBytes) {
@@ -52,29 +60,27 @@ public class RobinHoodHashMap implements TermMapReader, TermMapWriter {
     this.fingerprintSizeBytes = fingerprintSizeBytes;
     this.valueSizeBytes = valueSizeBytes;
     this.totalSizeBytes = distSizeBytes + fingerprintSizeBytes + valueSizeBytes;
+    this.fingerprintMask = fingerprintMask(fingerprintSizeBytes);
 
     this.buffer = ByteBuffer.allocateDirect(this.capacity * this.totalSizeBytes);
+    this.input = new ByteBuffersDataInput(Collections.singletonList(buffer));
   }
 
-  public static long iterations = 0;
-  public static long calls = 0;
-
-  // Returns int representation of value, -1 if not in map
-  public int get(int hashcode, long fingerprint) {
-    ++calls;
+  // Returns the value, -1 if not in map
+  public long get(int hashcode, long fingerprint) throws IOException {
     if (hashcode < 0 || hashcode >= capacity)
       throw new IllegalArgumentException("Hashcode must be between 0, capacity-1");
+    fingerprint &= fingerprintMask;
     int distVal;
     int dist = 0;
     int index = hashcode;
     while (!isEmpty(index)) {
-      ++iterations;
-      buffer.position(index * totalSizeBytes);
-      distVal = readIntoInt(distSizeBytes);
+      long pos = (long) index * totalSizeBytes;
+      distVal = readInt(pos, distSizeBytes);
       int curHashcode = getHashcodeAtIndex(index, distVal);
-      long curFingerprint = readIntoLong(fingerprintSizeBytes);
+      long curFingerprint = readLong(pos + distSizeBytes, fingerprintSizeBytes);
       if (hashcode == curHashcode && fingerprint == curFingerprint) {
-        return readIntoInt(valueSizeBytes) >>> 1;
+        return readLong(pos + distSizeBytes + fingerprintSizeBytes, valueSizeBytes) >>> 1;
       }
       if (dist > distVal)
         return -1;
@@ -86,16 +92,22 @@ public class RobinHoodHashMap implements TermMapReader, TermMapWriter {
     return -1;
   }
 
-  public void put(int hashcode, long fingerprint, int value) {
+  // Probes start at the hashcode
+  public int homeSlot(int hashcode, long fingerprint) {
+    return hashcode;
+  }
+
+  public void put(int hashcode, long fingerprint, long value) throws IOException {
     if (hashcode < 0 || hashcode >= capacity)
       throw new IllegalArgumentException("Hashcode must be between 0, capacity-1");
+    fingerprint &= fingerprintMask;
 
     // wraps around when index reaches capacity
     shiftDown(hashcode, hashcode, fingerprint, value, 0);
 
   }
 
-  public double[] getAvgDist() {
+  public double[] getAvgDist() throws IOException {
     double totalDist = 0;
     double minDist = 10000;
     int totalTerms = 0;
@@ -103,8 +115,7 @@ public class RobinHoodHashMap implements TermMapReader, TermMapWriter {
       if (isEmpty(i))
         continue;
       totalTerms++;
-      buffer.position(i * totalSizeBytes);
-      int dist = readIntoInt(distSizeBytes);
+      int dist = readInt((long) i * totalSizeBytes, distSizeBytes);
       totalDist += dist;
       if (dist < minDist) {
         minDist = dist;
@@ -117,9 +128,8 @@ public class RobinHoodHashMap implements TermMapReader, TermMapWriter {
     return arr;
   }
 
-  public static int clashcount = 0;
-
-  private void shiftDown(int index, int hashcode, long fingerprint, int value, int dist) {
+  private void shiftDown(int index, int hashcode, long fingerprint, long value, int dist)
+      throws IOException {
     for (;;) {
       if (isEmpty(index)) {
         putAllInfoIntoBuffer(index, dist, fingerprint, value);
@@ -133,7 +143,6 @@ public class RobinHoodHashMap implements TermMapReader, TermMapWriter {
           if (hashcode == getHashcodeAtIndex(index, curDist) && fingerprint == curFingerprint) {
             System.out.println("Warning: key already in map");
             putIntoBuffer((value << 1) | 1, valueSizeBytes);
-            ++clashcount;
             return;
           }
 
@@ -141,7 +150,7 @@ public class RobinHoodHashMap implements TermMapReader, TermMapWriter {
           index = (index + 1) % capacity;
           dist += 1;
         } else {
-          int curValue = readIntoInt(valueSizeBytes) >>> 1;
+          long curValue = readIntoLong(valueSizeBytes) >>> 1;
 
           putAllInfoIntoBuffer(index, dist, fingerprint, value);
 
@@ -155,11 +164,24 @@ public class RobinHoodHashMap implements TermMapReader, TermMapWriter {
     }
   }
 
+  // Lists the fingerprints as kept in the slots, so they are only whole if the
+  // map was created with enough fingerprint bytes for every key
+  public void forEach(EntryVisitor visitor) throws IOException {
+    for (int i = 0; i < capacity; ++i) {
+      if (isEmpty(i)) {
+        continue;
+      }
+      long pos = (long) i * totalSizeBytes + distSizeBytes;
+      visitor.visit(readLong(pos, fingerprintSizeBytes),
+          readLong(pos + fingerprintSizeBytes, valueSizeBytes) >>> 1);
+    }
+  }
+
   public int getCapacity() {
     return capacity;
   }
 
-  private void putAllInfoIntoBuffer(int index, int hashcode, long fingerprint, int value) {
+  private void putAllInfoIntoBuffer(int index, int hashcode, long fingerprint, long value) {
     buffer.position(index * totalSizeBytes);
     putIntoBuffer(hashcode, distSizeBytes);
     putIntoBuffer(fingerprint, fingerprintSizeBytes);
@@ -179,6 +201,10 @@ public class RobinHoodHashMap implements TermMapReader, TermMapWriter {
     }
   }
 
+  private static long fingerprintMask(int fingerprintSizeBytes) {
+    return fingerprintSizeBytes >= 8 ? -1L : (1L << (8 * fingerprintSizeBytes)) - 1;
+  }
+
   private int getHashcodeAtIndex(int index, int dist) {
     return index >= dist ? index - dist : index - dist + capacity;
   }
@@ -201,13 +227,31 @@ public class RobinHoodHashMap implements TermMapReader, TermMapWriter {
     return result;
   }
 
+  private int readInt(long pos, int numBytes) throws IOException {
+    int result = (input.readByte(pos) & 0xff);
+    for (int i = 1; i < numBytes; ++i) {
+      result <<= 8;
+      result |= (input.readByte(pos + i) & 0xff);
+    }
+    return result;
+  }
+
+  private long readLong(long pos, int numBytes) throws IOException {
+    long result = (input.readByte(pos) & 0xff);
+    for (int i = 1; i < numBytes; ++i) {
+      result <<= 8;
+      result |= (input.readByte(pos + i) & 0xff);
+    }
+    return result;
+  }
+
   /**
    * Checks whether last bit of last byte of k-v pair of given index is set or not
    * 
    * @return true if last bit is 0, false if last bit is 1
    */
-  private boolean isEmpty(int index) {
-    return (buffer.get((index + 1) * this.totalSizeBytes - 1) & 1) == 0;
+  private boolean isEmpty(int index) throws IOException {
+    return (input.readByte((long) (index + 1) * this.totalSizeBytes - 1) & 1) == 0;
   }
 
   public void save(IndexOutput out) throws IOException {
@@ -222,13 +266,15 @@ public class RobinHoodHashMap implements TermMapReader, TermMapWriter {
   }
 
   public void open(int capacity, int distSizeBytes, int fingerprintSizeBytes, int valueSizeBytes,
-      byte[] array) {
+      RandomAccessInput input) {
     this.capacity = capacity;
     this.distSizeBytes = distSizeBytes;
     this.fingerprintSizeBytes = fingerprintSizeBytes;
     this.valueSizeBytes = valueSizeBytes;
     this.totalSizeBytes = distSizeBytes + fingerprintSizeBytes + valueSizeBytes;
-    this.buffer = ByteBuffer.wrap(array);
+    this.fingerprintMask = fingerprintMask(fingerprintSizeBytes);
+    this.buffer = null;
+    this.input = input;
   }
 
 }
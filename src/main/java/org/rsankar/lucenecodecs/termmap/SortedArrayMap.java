@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.rsankar.lucenecodecs.termmap;
+
+import java.io.IOException;
+
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.InPlaceMergeSorter;
+
+/**
+ * Term map for small fields: the fingerprints, sorted, in one packed array,
+ * followed by their values in another. Building is a sort with no parameters
+ * to tune and no empty slots. The arrays are stored in Eytzinger (breadth
+ * first) order, so that a lookup is a branch-free walk down an implicit binary
+ * search tree whose top levels, shared by every lookup, are at the front of
+ * the fingerprints, and only reads the value of the key it finds.
+ *
+ * Like PerfectHashMap, the hashcode passed to put/get is ignored. Slots keep
+ * the low fingerprintSizeBytes bytes of each fingerprint, and every
+ * fingerprint put in the map must fit in them: lookups compare whole stored
+ * fingerprints, so a miss is always exact.
+ */
+public class SortedArrayMap implements TermMapReader, TermMapWriter {
+  private int capacity;
+  private int fingerprintSizeBytes;
+  private int valueSizeBytes;
+  private long fingerprintMask;
+  private long valueMask;
+
+  // Keys buffered by put() until the array is built
+  private long[] keys;
+  private long[] values;
+  private int size;
+
+  private RandomAccessInput input;
+  private long valuesPos;
+
+  // capacity is the expected number of keys, the map grows past it if needed
+  public void create(int capacity, int hashcodeSizeBytes, int fingerprintSizeBytes,
+      int valueSizeBytes) {
+    this.capacity = 0;
+    setSizes(fingerprintSizeBytes, valueSizeBytes);
+    this.keys = new long[Math.max(capacity, 1)];
+    this.values = new long[Math.max(capacity, 1)];
+    this.size = 0;
+    this.input = null;
+  }
+
+  public void put(int hashcode, long fingerprint, long value) {
+    if (keys == null) {
+      throw new IllegalStateException("Map was opened for reading");
+    }
+    if (value < 0) {
+      throw new IllegalArgumentException("Values must not be negative");
+    }
+    if ((fingerprint & ~fingerprintMask) != 0) {
+      throw new IllegalArgumentException(
+          "Fingerprint " + fingerprint + " doesn't fit in " + fingerprintSizeBytes + " bytes");
+    }
+    if (size == keys.length) {
+      keys = ArrayUtil.grow(keys, size + 1);
+      values = ArrayUtil.growExact(values, keys.length);
+    }
+    keys[size] = fingerprint;
+    values[size] = value;
+    ++size;
+    // The array built so far no longer covers every key
+    input = null;
+  }
+
+  // Returns value for the fingerprint, -1 if not in map
+  public long get(int hashcode, long fingerprint) throws IOException {
+    if (input == null) {
+      build();
+    }
+    if ((fingerprint & ~fingerprintMask) != 0) {
+      return -1;
+    }
+    // Slot k's children are 2k and 2k + 1. Go right past every key that is
+    // smaller, so that the walk ends below the first key that isn't.
+    long k = 1;
+    while (k <= capacity) {
+      k = 2 * k + (Long.compareUnsigned(fingerprintAt(k), fingerprint) < 0 ? 1 : 0);
+    }
+    // Drop the right turns taken after the last left one, which lead back up
+    // to that key
+    k >>>= Long.numberOfTrailingZeros(~k) + 1;
+    if (k == 0 || fingerprintAt(k) != fingerprint) {
+      return -1;
+    }
+    return valueAt(k);
+  }
+
+  // Every lookup starts at the root
+  public int homeSlot(int hashcode, long fingerprint) throws IOException {
+    return 0;
+  }
+
+  public void forEach(EntryVisitor visitor) throws IOException {
+    if (input == null) {
+      build();
+    }
+    for (long k = 1; k <= capacity; ++k) {
+      visitor.visit(fingerprintAt(k), valueAt(k));
+    }
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public void save(IndexOutput out) throws IOException {
+    if (input == null) {
+      build();
+    }
+    out.writeVInt(capacity);
+    out.writeVInt(0); // no hashcode is stored
+    out.writeVInt(fingerprintSizeBytes);
+    out.writeVInt(valueSizeBytes);
+    long length = (long) capacity * (fingerprintSizeBytes + valueSizeBytes);
+    for (long i = 0; i < length; ++i) {
+      out.writeByte(input.readByte(i));
+    }
+  }
+
+  public void open(int capacity, int hashcodeSizeBytes, int fingerprintSizeBytes,
+      int valueSizeBytes, RandomAccessInput input) throws IOException {
+    this.capacity = capacity;
+    setSizes(fingerprintSizeBytes, valueSizeBytes);
+    this.keys = null;
+    this.values = null;
+    load(input);
+  }
+
+  private void setSizes(int fingerprintSizeBytes, int valueSizeBytes) {
+    if (fingerprintSizeBytes < 1 || fingerprintSizeBytes > 8) {
+      throw new IllegalArgumentException("Fingerprint size must be between 1 and 8 bytes");
+    }
+    if (valueSizeBytes < 1 || valueSizeBytes > 8) {
+      throw new IllegalArgumentException("Value size must be between 1 and 8 bytes");
+    }
+    this.fingerprintSizeBytes = fingerprintSizeBytes;
+    this.valueSizeBytes = valueSizeBytes;
+    this.fingerprintMask = fingerprintSizeBytes == 8 ? -1L
+        : (1L << (8 * fingerprintSizeBytes)) - 1;
+    this.valueMask = valueSizeBytes == 8 ? -1L : (1L << (8 * valueSizeBytes)) - 1;
+  }
+
+  /*
+   * Serialized layout, all big-endian: the fingerprints of the tree's nodes 1
+   * to capacity, then their values.
+   */
+  private void load(RandomAccessInput in) {
+    this.input = in;
+    this.valuesPos = (long) capacity * fingerprintSizeBytes;
+  }
+
+  private void build() throws IOException {
+    // Stable sort by fingerprint, so the last put of a duplicate wins. Stored
+    // fingerprints are compared unsigned, like lookups compare them.
+    new InPlaceMergeSorter() {
+      @Override
+      protected int compare(int i, int j) {
+        return Long.compareUnsigned(keys[i], keys[j]);
+      }
+
+      @Override
+      protected void swap(int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        long value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+      }
+    }.sort(0, size);
+    int numKeys = 0;
+    for (int i = 0; i < size; ++i) {
+      if (numKeys > 0 && keys[numKeys - 1] == keys[i]) {
+        values[numKeys - 1] = values[i];
+      } else {
+        keys[numKeys] = keys[i];
+        values[numKeys] = values[i];
+        ++numKeys;
+      }
+    }
+    size = numKeys;
+
+    this.capacity = numKeys;
+    byte[] bytes = new byte[numKeys * (fingerprintSizeBytes + valueSizeBytes)];
+    fill(bytes, 1, 0);
+    ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+    out.writeBytes(bytes, 0, bytes.length);
+    load(out.toDataInput());
+  }
+
+  // Writes the keys from index next on, in order, to the subtree rooted at
+  // node k, returning the index of the first key left
+  private int fill(byte[] bytes, long k, int next) {
+    if (k > capacity) {
+      return next;
+    }
+    next = fill(bytes, 2 * k, next);
+    writeLong(bytes, (int) ((k - 1) * fingerprintSizeBytes), keys[next], fingerprintSizeBytes);
+    writeLong(bytes, (int) ((long) capacity * fingerprintSizeBytes + (k - 1) * valueSizeBytes),
+        values[next], valueSizeBytes);
+    return fill(bytes, 2 * k + 1, next + 1);
+  }
+
+  // Reads the 8 bytes that end with the fingerprint when there are that many,
+  // which is one read instead of one per byte
+  private long fingerprintAt(long k) throws IOException {
+    long end = k * fingerprintSizeBytes;
+    if (end >= Long.BYTES) {
+      return input.readLong(end - Long.BYTES) & fingerprintMask;
+    }
+    return readLong(end - fingerprintSizeBytes, fingerprintSizeBytes);
+  }
+
+  private long valueAt(long k) throws IOException {
+    long end = valuesPos + k * valueSizeBytes;
+    if (end >= Long.BYTES) {
+      return input.readLong(end - Long.BYTES) & valueMask;
+    }
+    return readLong(end - valueSizeBytes, valueSizeBytes);
+  }
+
+  private long readLong(long pos, int numBytes) throws IOException {
+    long result = (input.readByte(pos) & 0xff);
+    for (int i = 1; i < numBytes; ++i) {
+      result <<= 8;
+      result |= (input.readByte(pos + i) & 0xff);
+    }
+    return result;
+  }
+
+  private static void writeLong(byte[] bytes, int pos, long val, int numBytes) {
+    for (int i = 0; i < numBytes; ++i) {
+      bytes[pos + i] = (byte) (val >>> ((numBytes - 1 - i) * 8));
+    }
+  }
+}
@@ -22,9 +22,35 @@
 
 package org.rsankar.lucenecodecs.termmap;
 
+import java.io.IOException;
+
+import org.apache.lucene.store.RandomAccessInput;
+
 public interface TermMapReader {
+  /**
+   * Opens the map directly on top of the given input (typically a slice of a
+   * memory-mapped file), without copying the table.
+   */
   public void open(int capacity, int hashcodeSizeBytes, int fingerprintSizeBytes,
-      int valueSizeBytes, byte[] array);
+      int valueSizeBytes, RandomAccessInput input) throws IOException;
+
+  long get(int hashcode, long fingerprint) throws IOException;
+
+  /**
+   * Where in the table a lookup for the key starts, as a non-negative number
+   * that grows with the position. Lookups made in order of their home slots
+   * read the table front to back.
+   */
+  int homeSlot(int hashcode, long fingerprint) throws IOException;
+
+  /**
+   * Calls the visitor with the fingerprint and value of every entry, in table
+   * order. Only maps whose type {@link TermMapType#storesFullFingerprints()}
+   * support this.
+   */
+  void forEach(EntryVisitor visitor) throws IOException;
 
-  int get(int hashcode, long fingerprint);
+  interface EntryVisitor {
+    void visit(long fingerprint, long value) throws IOException;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.termmap;
+
+/**
+ * The term map implementations a field can be written with. The id is stored
+ * in the index, so existing ids must never change.
+ */
+public enum TermMapType {
+  ROBIN_HOOD(0), PERFECT_HASH(1), BUCKETIZED(2), SORTED_ARRAY(3);
+
+  private final int id;
+
+  TermMapType(int id) {
+    this.id = id;
+  }
+
+  public int id() {
+    return id;
+  }
+
+  // Returns null for ids written by a newer version
+  public static TermMapType fromId(int id) {
+    for (TermMapType type : values()) {
+      if (type.id == id) {
+        return type;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Whether put/get need the hashcode of the fingerprint. The other maps hash
+   * the full fingerprint themselves and ignore it.
+   */
+  public boolean usesHashcode() {
+    return this == ROBIN_HOOD;
+  }
+
+  /**
+   * Whether the map keeps every byte of the fingerprints put in it that
+   * MapFieldsWriter sizes it for, so that they can be listed again with
+   * {@link TermMapReader#forEach}. Robin Hood slots only keep enough bytes to
+   * tell apart keys with the same hashcode.
+   */
+  public boolean storesFullFingerprints() {
+    return this != ROBIN_HOOD;
+  }
+
+  /**
+   * Smallest value width, in bytes, that holds every value up to maxValue in
+   * this map's slots.
+   */
+  public int valueSizeBytes(long maxValue) {
+    // Robin Hood slots keep an occupied flag in the low bit of the value
+    long maxStored = this == ROBIN_HOOD ? (maxValue << 1) | 1 : maxValue;
+    return Math.max(1, (Long.SIZE - Long.numberOfLeadingZeros(maxStored) + 7) / 8);
+  }
+
+  public TermMapWriter newWriter() {
+    switch (this) {
+    case PERFECT_HASH:
+      return new PerfectHashMap();
+    case BUCKETIZED:
+      return new BucketizedHashMap();
+    case SORTED_ARRAY:
+      return new SortedArrayMap();
+    default:
+      return new RobinHoodHashMap();
+    }
+  }
+
+  public TermMapReader newReader() {
+    switch (this) {
+    case PERFECT_HASH:
+      return new PerfectHashMap();
+    case BUCKETIZED:
+      return new BucketizedHashMap();
+    case SORTED_ARRAY:
+      return new SortedArrayMap();
+    default:
+      return new RobinHoodHashMap();
+    }
+  }
+}
@@ -29,7 +29,7 @@ import org.apache.lucene.store.IndexOutput;
 public interface TermMapWriter {
   void create(int capacity, int hashcodeSizeBytes, int fingerprintSizeBytes, int valueSizeBytes);
 
-  void put(int hashcode, long fingerprint, int value);
+  void put(int hashcode, long fingerprint, long value) throws IOException;
 
   void save(IndexOutput out) throws IOException;
 }
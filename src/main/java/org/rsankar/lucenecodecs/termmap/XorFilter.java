@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.termmap;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Xor filter (Graf and Lemire) over a set of fingerprints, with one byte per
+ * slot and about 1.23 slots per key. A fingerprint of the set is always
+ * reported as present, and any other fingerprint is reported as present with
+ * probability 1/256.
+ *
+ * Each key hashes to one slot in each of three blocks, and the xor of the bytes
+ * in its three slots equals an 8-bit tag of its hash. The filter is built by
+ * repeatedly peeling off a key that is alone in one of its slots, then filling
+ * in the slots in reverse peeling order. If the keys can't all be peeled, the
+ * build is retried with the next seed.
+ */
+public class XorFilter {
+  // Slots per 100 keys, plus a constant so that tiny sets still peel
+  static final int SLOTS_PER_100_KEYS = 123;
+  static final int EXTRA_SLOTS = 32;
+  static final int MAX_SEEDS = 100;
+
+  private final int seed;
+  private final int blockLength;
+  private final byte[] slots;
+
+  private XorFilter(int seed, int blockLength, byte[] slots) {
+    this.seed = seed;
+    this.blockLength = blockLength;
+    this.slots = slots;
+  }
+
+  /**
+   * Builds a filter over the first count fingerprints. Duplicates are allowed.
+   */
+  public static XorFilter build(long[] fingerprints, int count) {
+    long[] keys = Arrays.copyOf(fingerprints, count);
+    Arrays.sort(keys);
+    int size = 0;
+    for (int i = 0; i < count; ++i) {
+      if (i == 0 || keys[i] != keys[i - 1]) {
+        keys[size++] = keys[i];
+      }
+    }
+
+    int blockLength = Math.toIntExact((EXTRA_SLOTS + (long) SLOTS_PER_100_KEYS * size / 100) / 3);
+    int numSlots = 3 * blockLength;
+    long[] xors = new long[numSlots];
+    int[] counts = new int[numSlots];
+    int[] queue = new int[numSlots];
+    // Keys in peeling order, with the slot each one was alone in
+    long[] peeled = new long[size];
+    int[] peeledSlots = new int[size];
+
+    for (int seed = 0; seed < MAX_SEEDS; ++seed) {
+      Arrays.fill(xors, 0);
+      Arrays.fill(counts, 0);
+      for (int i = 0; i < size; ++i) {
+        long h = hash(keys[i], seed);
+        for (int j = 0; j < 3; ++j) {
+          int slot = slot(h, j, blockLength);
+          xors[slot] ^= keys[i];
+          ++counts[slot];
+        }
+      }
+
+      int queueSize = 0;
+      for (int slot = 0; slot < numSlots; ++slot) {
+        if (counts[slot] == 1) {
+          queue[queueSize++] = slot;
+        }
+      }
+      // A slot's count only goes down, so it is queued at most once
+      int numPeeled = 0;
+      while (queueSize > 0) {
+        int slot = queue[--queueSize];
+        if (counts[slot] != 1) {
+          continue;
+        }
+        long key = xors[slot];
+        peeled[numPeeled] = key;
+        peeledSlots[numPeeled++] = slot;
+        long h = hash(key, seed);
+        for (int j = 0; j < 3; ++j) {
+          int other = slot(h, j, blockLength);
+          xors[other] ^= key;
+          if (--counts[other] == 1) {
+            queue[queueSize++] = other;
+          }
+        }
+      }
+      if (numPeeled < size) {
+        continue;
+      }
+
+      // No key hashes to the slot of a key peeled before it, so setting slots
+      // in reverse peeling order never changes the xor of a key already set
+      byte[] slots = new byte[numSlots];
+      for (int i = numPeeled - 1; i >= 0; --i) {
+        long h = hash(peeled[i], seed);
+        int ownSlot = peeledSlots[i];
+        int tag = tag(h);
+        for (int j = 0; j < 3; ++j) {
+          int slot = slot(h, j, blockLength);
+          if (slot != ownSlot) {
+            tag ^= slots[slot];
+          }
+        }
+        slots[ownSlot] = (byte) tag;
+      }
+      return new XorFilter(seed, blockLength, slots);
+    }
+    throw new IllegalStateException("Could not build xor filter over " + size + " keys");
+  }
+
+  public boolean mightContain(long fingerprint) {
+    long h = hash(fingerprint, seed);
+    int tag = tag(h) ^ slots[slot(h, 0, blockLength)] ^ slots[slot(h, 1, blockLength)]
+        ^ slots[slot(h, 2, blockLength)];
+    return (byte) tag == 0;
+  }
+
+  public void save(DataOutput out) throws IOException {
+    out.writeVInt(seed);
+    out.writeVInt(blockLength);
+    out.writeBytes(slots, slots.length);
+  }
+
+  public static XorFilter read(DataInput in) throws IOException {
+    int seed = in.readVInt();
+    int blockLength = in.readVInt();
+    byte[] slots = new byte[Math.multiplyExact(3, blockLength)];
+    in.readBytes(slots, 0, slots.length);
+    return new XorFilter(seed, blockLength, slots);
+  }
+
+  public long ramBytesUsed() {
+    return RamUsageEstimator.shallowSizeOfInstance(XorFilter.class)
+        + RamUsageEstimator.sizeOf(slots);
+  }
+
+  // Slot of the hash in block j, from a different 32 bits of the hash for each
+  // block, mapped onto the block without a modulo
+  private static int slot(long hash, int j, int blockLength) {
+    int bits = (int) Long.rotateLeft(hash, 21 * j);
+    return (int) (((bits & 0xffffffffL) * blockLength) >>> 32) + j * blockLength;
+  }
+
+  private static int tag(long hash) {
+    return (int) (hash ^ (hash >>> 32));
+  }
+
+  // murmur3 fmix64 of the fingerprint, offset by the seed
+  static long hash(long fingerprint, int seed) {
+    long h = fingerprint + (seed + 1) * 0x9E3779B97F4A7C15L;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.mapcodec;
+
+import static org.hamcrest.core.Is.is;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.lucene50.Lucene50PostingsFormat;
+import org.apache.lucene.codecs.lucene80.Lucene80Codec;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SerialMergeScheduler;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Assert;
+import org.rsankar.lucenecodecs.mapcodec.MapFieldsReader.MapTerms;
+
+/**
+ * Fixtures shared by the codec tests, which index the same docs once with
+ * {@link MapTestFormat} and once with Lucene50PostingsFormat and compare what
+ * the two indexes return.
+ */
+public final class MapCodecTestUtil {
+  private MapCodecTestUtil() {
+  }
+
+  public static PostingsFormat mapFormat() {
+    return new MapTestFormat();
+  }
+
+  public static PostingsFormat onHeapMapFormat() {
+    return new MapTestFormat.OnHeap();
+  }
+
+  public static PostingsFormat pulsingMapFormat() {
+    return new MapTestFormat.Pulsing();
+  }
+
+  public static PostingsFormat defaultFormat() {
+    return new Lucene50PostingsFormat();
+  }
+
+  /**
+   * A config that writes every field with the format and flushes every
+   * maxBufferedDocs docs. Merges are picked by doc count, not by size in bytes,
+   * and run on the indexing thread, so both indexes of a test get the same
+   * segments with the same docIDs.
+   */
+  public static IndexWriterConfig newConfig(PostingsFormat format, int maxBufferedDocs) {
+    IndexWriterConfig iwc = new IndexWriterConfig();
+    iwc.setCodec(new Lucene80Codec() {
+      @Override
+      public PostingsFormat getPostingsFormatForField(String field) {
+        return format;
+      }
+    });
+    iwc.setMaxBufferedDocs(maxBufferedDocs);
+    iwc.setRAMBufferSizeMB(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+    iwc.setMergePolicy(new LogDocMergePolicy());
+    iwc.setMergeScheduler(new SerialMergeScheduler());
+    return iwc;
+  }
+
+  /**
+   * Checks that the field has the same stats in both segments, and that each
+   * term of the vocabulary has the same stats and postings, down to offsets
+   * and payloads. Fields without exact lookups can find terms that the segment
+   * doesn't have, so only the terms of the Lucene50 segment are looked up in
+   * them.
+   */
+  public static void assertSameTerms(LeafReader mapLeaf, LeafReader defaultLeaf, String field,
+      List<BytesRef> vocabulary, boolean exact) throws IOException {
+    Terms mapTerms = mapLeaf.terms(field);
+    Terms defaultTerms = defaultLeaf.terms(field);
+    if (defaultTerms == null) {
+      Assert.assertNull(field, mapTerms);
+      return;
+    }
+    Assert.assertNotNull(field, mapTerms);
+    Assert.assertThat(field, mapTerms.size(), is(defaultTerms.size()));
+    Assert.assertThat(field, mapTerms.getDocCount(), is(defaultTerms.getDocCount()));
+    Assert.assertThat(field, mapTerms.getSumDocFreq(), is(defaultTerms.getSumDocFreq()));
+    Assert.assertThat(field, mapTerms.getSumTotalTermFreq(),
+        is(defaultTerms.getSumTotalTermFreq()));
+    Assert.assertThat(field, mapTerms.hasFreqs(), is(defaultTerms.hasFreqs()));
+    Assert.assertThat(field, mapTerms.hasPositions(), is(defaultTerms.hasPositions()));
+    Assert.assertThat(field, mapTerms.hasOffsets(), is(defaultTerms.hasOffsets()));
+    Assert.assertThat(field, mapTerms.hasPayloads(), is(defaultTerms.hasPayloads()));
+
+    TermsEnum mapEnum = mapTerms.iterator();
+    TermsEnum defaultEnum = defaultTerms.iterator();
+    int flags = defaultTerms.hasPositions() ? PostingsEnum.ALL : PostingsEnum.FREQS;
+    for (BytesRef term : vocabulary) {
+      boolean found = defaultEnum.seekExact(term);
+      if (exact || found) {
+        Assert.assertThat(field + " " + term, mapEnum.seekExact(term), is(found));
+      }
+      if (found == false) {
+        continue;
+      }
+      Assert.assertThat(field + " " + term, mapEnum.docFreq(), is(defaultEnum.docFreq()));
+      Assert.assertThat(field + " " + term, mapEnum.totalTermFreq(),
+          is(defaultEnum.totalTermFreq()));
+      PostingsEnum mapPostings = mapEnum.postings(null, flags);
+      PostingsEnum defaultPostings = defaultEnum.postings(null, flags);
+      for (int doc = defaultPostings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS;
+          doc = defaultPostings.nextDoc()) {
+        Assert.assertThat(field + " " + term, mapPostings.nextDoc(), is(doc));
+        Assert.assertThat(field + " " + term, mapPostings.freq(), is(defaultPostings.freq()));
+        if (flags == PostingsEnum.ALL) {
+          for (int i = 0; i < defaultPostings.freq(); ++i) {
+            Assert.assertThat(field + " " + term, mapPostings.nextPosition(),
+                is(defaultPostings.nextPosition()));
+            Assert.assertThat(field + " " + term, mapPostings.startOffset(),
+                is(defaultPostings.startOffset()));
+            Assert.assertThat(field + " " + term, mapPostings.endOffset(),
+                is(defaultPostings.endOffset()));
+            Assert.assertEquals(field + " " + term, defaultPostings.getPayload(),
+                mapPostings.getPayload());
+          }
+        }
+      }
+      Assert.assertThat(field + " " + term, mapPostings.nextDoc(),
+          is(DocIdSetIterator.NO_MORE_DOCS));
+    }
+  }
+
+  /** Checks that the query counts and scores the same top hits on both indexes. */
+  public static void assertSameHits(IndexSearcher mapSearcher, IndexSearcher defaultSearcher,
+      Query query) throws IOException {
+    Assert.assertThat(query.toString(), mapSearcher.count(query),
+        is(defaultSearcher.count(query)));
+    TopDocs mapHits = mapSearcher.search(query, 10);
+    TopDocs defaultHits = defaultSearcher.search(query, 10);
+    Assert.assertThat(query.toString(), mapHits.scoreDocs.length,
+        is(defaultHits.scoreDocs.length));
+    for (int i = 0; i < defaultHits.scoreDocs.length; ++i) {
+      ScoreDoc mapHit = mapHits.scoreDocs[i];
+      ScoreDoc defaultHit = defaultHits.scoreDocs[i];
+      Assert.assertThat(query.toString(), mapHit.doc, is(defaultHit.doc));
+      Assert.assertThat(query.toString(), mapHit.score, is(defaultHit.score));
+    }
+  }
+
+  /**
+   * A key that no doc has, which a lookup in the terms still finds a slot for
+   * if lookups can have false positives: it has the same hashcode and low
+   * fingerprint bytes as key. Keys are their own fingerprint in
+   * {@link MapTestFormat}.
+   */
+  public static long absentKey(MapTerms terms, long key, Set<Long> keys, Random r) {
+    int lowBits = terms.fingerprintSizeBytes() * Byte.SIZE;
+    boolean collides = terms.hasExactLookups() == false && lowBits < Long.SIZE;
+    long lowMask = collides ? -1L >>> (Long.SIZE - lowBits) : 0;
+    int hashcode = collides ? ParameterAnalyzer.getHashcode(key, terms.k(), terms.capacity()) : 0;
+    while (true) {
+      long candidate = (r.nextLong() & ~lowMask) | (key & lowMask);
+      if ((collides == false
+          || ParameterAnalyzer.getHashcode(candidate, terms.k(), terms.capacity()) == hashcode)
+          && keys.contains(candidate) == false) {
+        return candidate;
+      }
+    }
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.mapcodec;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.lucene.codecs.FieldsConsumer;
+import org.apache.lucene.codecs.FieldsProducer;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FilterLeafReader.FilterTerms;
+import org.apache.lucene.index.FilterLeafReader.FilterTermsEnum;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.rsankar.lucenecodecs.field.IndexedLongField;
+import org.rsankar.lucenecodecs.termmap.TermMapType;
+
+/**
+ * Format the codec tests write their map fields with. The options of a field
+ * are the parts of its name after the first '.': a {@link TermMapType} name (the
+ * layout is used whatever the field's size, and it is ROBIN_HOOD without one),
+ * "full" for full fingerprints, "dict" for a terms dictionary, "skip" for a
+ * skip filter and "bitmaps" for bitmap postings. Terms of 8 bytes, like those
+ * of an {@link IndexedLongField}, are their own fingerprint, and shorter terms
+ * are packed with their length, so every term up to 7 bytes long has its own.
+ */
+public class MapTestFormat extends MapPostingsFormat {
+  public MapTestFormat() {
+    super("MapTestFormat");
+  }
+
+  protected MapTestFormat(String name, Residency residency, int pulsingThreshold) {
+    super(name, residency, pulsingThreshold);
+  }
+
+  /** The same format with the term maps loaded on heap. */
+  public static class OnHeap extends MapTestFormat {
+    public OnHeap() {
+      super("MapTestFormatOnHeap", Residency.ON_HEAP, DEFAULT_PULSING_THRESHOLD);
+    }
+  }
+
+  /** The same format with the postings of terms with up to 8 docs pulsed. */
+  public static class Pulsing extends MapTestFormat {
+    public static final int PULSING_THRESHOLD = 8;
+
+    public Pulsing() {
+      super("MapTestFormatPulsing", Residency.OFF_HEAP, PULSING_THRESHOLD);
+    }
+  }
+
+  /**
+   * The same format behind Lucene's filter wrappers, like a format that wraps
+   * another's terms: searches and IndexWriter applying deletes see a
+   * {@link FilterTerms} and {@link FilterTermsEnum} rather than the map's own.
+   * Merges get the map's reader itself.
+   */
+  public static class Wrapped extends PostingsFormat {
+    private final MapTestFormat delegate = new MapTestFormat();
+
+    public Wrapped() {
+      super("MapTestFormatWrapped");
+    }
+
+    @Override
+    public FieldsConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+      return delegate.fieldsConsumer(state);
+    }
+
+    @Override
+    public FieldsProducer fieldsProducer(SegmentReadState state) throws IOException {
+      FieldsProducer in = delegate.fieldsProducer(state);
+      return new FieldsProducer() {
+        @Override
+        public Iterator<String> iterator() {
+          return in.iterator();
+        }
+
+        @Override
+        public Terms terms(String field) throws IOException {
+          Terms terms = in.terms(field);
+          return terms == null ? null : new WrappedTerms(terms);
+        }
+
+        @Override
+        public int size() {
+          return in.size();
+        }
+
+        @Override
+        public long ramBytesUsed() {
+          return in.ramBytesUsed();
+        }
+
+        @Override
+        public void checkIntegrity() throws IOException {
+          in.checkIntegrity();
+        }
+
+        @Override
+        public FieldsProducer getMergeInstance() {
+          return in.getMergeInstance();
+        }
+
+        @Override
+        public void close() throws IOException {
+          in.close();
+        }
+      };
+    }
+  }
+
+  /** Terms of a {@link Wrapped} field, whose enums wrap the map's. */
+  public static class WrappedTerms extends FilterTerms {
+    WrappedTerms(Terms in) {
+      super(in);
+    }
+
+    // The map's own terms, for tests that need their parameters
+    public Terms getDelegate() {
+      return in;
+    }
+
+    @Override
+    public TermsEnum iterator() throws IOException {
+      return new FilterTermsEnum(in.iterator()) {
+      };
+    }
+  }
+
+  private static List<String> options(FieldInfo fieldInfo) {
+    return Arrays.asList(fieldInfo.name.split("\\."));
+  }
+
+  @Override
+  public TermMapType getTermMapType(FieldInfo fieldInfo) {
+    for (String option : options(fieldInfo)) {
+      for (TermMapType type : TermMapType.values()) {
+        if (option.equals(type.name())) {
+          return type;
+        }
+      }
+    }
+    return TermMapType.ROBIN_HOOD;
+  }
+
+  @Override
+  public int sortedArrayMaxTerms(FieldInfo fieldInfo) {
+    return 0;
+  }
+
+  @Override
+  public boolean usesFullFingerprints(FieldInfo fieldInfo) {
+    return options(fieldInfo).contains("full");
+  }
+
+  @Override
+  public boolean usesTermsDictionary(FieldInfo fieldInfo) {
+    return options(fieldInfo).contains("dict");
+  }
+
+  @Override
+  public boolean usesSkipFilter(FieldInfo fieldInfo) {
+    return options(fieldInfo).contains("skip");
+  }
+
+  @Override
+  public boolean usesBitmapPostings(FieldInfo fieldInfo) {
+    return options(fieldInfo).contains("bitmaps");
+  }
+
+  @Override
+  public long getFingerprint(BytesRef text) {
+    if (text.length == Long.BYTES) {
+      return IndexedLongField.BytesRefToLong(text);
+    }
+    if (text.length >= Long.BYTES) {
+      throw new IllegalArgumentException("Term " + text + " is longer than 8 bytes");
+    }
+    long fingerprint = text.length;
+    for (int i = 0; i < text.length; ++i) {
+      fingerprint = (fingerprint << 8) | (text.bytes[text.offset + i] & 0xff);
+    }
+    return fingerprint;
+  }
+
+  @Override
+  public long getFingerprint(long value) {
+    return value;
+  }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.mapcodec;
+
+import static org.hamcrest.core.Is.is;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.rsankar.lucenecodecs.field.IndexedLongField;
+import org.rsankar.lucenecodecs.mapcodec.MapFieldsReader.MapTerms;
+import org.rsankar.lucenecodecs.search.LongExactQuery;
+import org.rsankar.lucenecodecs.search.LongSetQuery;
+import org.rsankar.lucenecodecs.search.PrimaryKeyLookup;
+import org.rsankar.lucenecodecs.termmap.TermMapTestUtil;
+
+/**
+ * Runs TermQuery, LongExactQuery, LongSetQuery and PrimaryKeyLookup lookups
+ * from many threads against one reader and one IndexSearcher, with the maps
+ * off heap and on heap. The threads start together on a freshly opened
+ * reader, so they also race to open each field. Every result is checked
+ * against what the docs were indexed with, including those of terms enums
+ * that one thread created and another one uses.
+ */
+public class TestConcurrentLookups {
+  static final String[] ID_FIELDS = { "id.ROBIN_HOOD", "id.ROBIN_HOOD.full", "id.PERFECT_HASH",
+      "id.BUCKETIZED.skip", "id.SORTED_ARRAY" };
+  static final String VERSION_FIELD = "version";
+
+  static final int NUM_DOCS = 20000;
+  static final int DELETE_EVERY = 10;
+  static final int OPS_PER_THREAD = 3000;
+
+  @Rule
+  public final TestRule reportSeed = TermMapTestUtil.reportSeed();
+
+  @Test
+  public void testConcurrentLookupsOffHeap() throws Exception {
+    checkConcurrentLookups(MapCodecTestUtil.mapFormat());
+  }
+
+  @Test
+  public void testConcurrentLookupsOnHeap() throws Exception {
+    checkConcurrentLookups(MapCodecTestUtil.onHeapMapFormat());
+  }
+
+  /**
+   * Enums from {@link MapTerms#iterator()} are created on one thread and used
+   * on another, while the creating thread goes on looking keys up with the
+   * queries, whose enums are per thread.
+   */
+  @Test
+  public void testEnumsHandedToOtherThreads() throws Exception {
+    Random r = TermMapTestUtil.newRandom();
+    long[] keys = new long[NUM_DOCS];
+    long[] absentKeys = new long[NUM_DOCS];
+    randomKeys(keys, absentKeys, r);
+    Directory dir = index(MapCodecTestUtil.mapFormat(), keys, r);
+
+    int numThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try (DirectoryReader reader = DirectoryReader.open(dir)) {
+      IndexSearcher searcher = new IndexSearcher(reader);
+      searcher.setQueryCache(null);
+      // Every thread creates enums for the next one
+      List<BlockingQueue<TermsEnum[][]>> handoffs = new ArrayList<>();
+      for (int t = 0; t < numThreads; ++t) {
+        handoffs.add(new ArrayBlockingQueue<>(1));
+      }
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < numThreads; ++t) {
+        Random threadRandom = new Random(r.nextLong());
+        BlockingQueue<TermsEnum[][]> mine = handoffs.get(t);
+        BlockingQueue<TermsEnum[][]> next = handoffs.get((t + 1) % numThreads);
+        futures.add(executor.submit(() -> {
+          TermsEnum[][] created = new TermsEnum[reader.leaves().size()][ID_FIELDS.length];
+          for (LeafReaderContext leaf : reader.leaves()) {
+            for (int f = 0; f < ID_FIELDS.length; ++f) {
+              created[leaf.ord][f] = leaf.reader().terms(ID_FIELDS[f]).iterator();
+            }
+          }
+          next.put(created);
+          TermsEnum[][] enums = mine.take();
+          for (int op = 0; op < OPS_PER_THREAD; ++op) {
+            int f = threadRandom.nextInt(ID_FIELDS.length);
+            int i = threadRandom.nextInt(NUM_DOCS);
+            boolean absent = threadRandom.nextInt(4) == 0;
+            long key = absent ? absentKeys[i] : keys[i];
+            int expected = absent == false && isLive(i) ? 1 : 0;
+            int found = 0;
+            BytesRef term = IndexedLongField.longToBytesRef(key);
+            for (LeafReaderContext leaf : reader.leaves()) {
+              TermsEnum termsEnum = enums[leaf.ord][f];
+              if (termsEnum.seekExact(term)) {
+                PostingsEnum postings = termsEnum.postings(null, PostingsEnum.NONE);
+                Bits liveDocs = leaf.reader().getLiveDocs();
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS;
+                    doc = postings.nextDoc()) {
+                  if (liveDocs == null || liveDocs.get(doc)) {
+                    ++found;
+                  }
+                }
+              }
+            }
+            Assert.assertThat(ID_FIELDS[f] + " " + key, found, is(expected));
+            // The thread's own lookups, between those of the other's enums
+            Assert.assertThat(ID_FIELDS[f] + " " + key,
+                searcher.count(new LongExactQuery(ID_FIELDS[f], key)), is(expected));
+          }
+          return null;
+        }));
+      }
+      checkAll(futures);
+    } finally {
+      executor.shutdown();
+      dir.close();
+    }
+  }
+
+  private void checkConcurrentLookups(PostingsFormat format) throws Exception {
+    Random r = TermMapTestUtil.newRandom();
+    long[] keys = new long[NUM_DOCS];
+    long[] absentKeys = new long[NUM_DOCS];
+    randomKeys(keys, absentKeys, r);
+    Directory dir = index(format, keys, r);
+
+    int numThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try (DirectoryReader reader = DirectoryReader.open(dir)) {
+      Assert.assertThat(reader.leaves().size() > 1, is(true));
+      IndexSearcher searcher = new IndexSearcher(reader);
+      // Cached queries wouldn't reach the maps
+      searcher.setQueryCache(null);
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < numThreads; ++t) {
+        Random threadRandom = new Random(r.nextLong());
+        futures.add(executor.submit(() -> {
+          start.await();
+          runLookups(reader, searcher, keys, absentKeys, threadRandom);
+          return null;
+        }));
+      }
+      start.countDown();
+      checkAll(futures);
+    } finally {
+      executor.shutdown();
+      dir.close();
+    }
+  }
+
+  private static void randomKeys(long[] keys, long[] absentKeys, Random r) {
+    Set<Long> seen = new HashSet<>();
+    for (int i = 0; i < keys.length; ++i) {
+      do {
+        keys[i] = r.nextLong();
+      } while (!seen.add(keys[i]));
+      do {
+        absentKeys[i] = r.nextLong();
+      } while (!seen.add(absentKeys[i]));
+    }
+  }
+
+  // Every doc has a key in each id field and its number as version, and one
+  // doc in DELETE_EVERY is deleted
+  private static Directory index(PostingsFormat format, long[] keys, Random r)
+      throws IOException {
+    Directory dir = new ByteBuffersDirectory();
+    IndexWriterConfig iwc = MapCodecTestUtil.newConfig(format, 1000 + r.nextInt(2000));
+    // Lookups have to go through several segments
+    iwc.setMergePolicy(NoMergePolicy.INSTANCE);
+    try (IndexWriter writer = new IndexWriter(dir, iwc)) {
+      for (int i = 0; i < NUM_DOCS; ++i) {
+        Document doc = new Document();
+        for (String field : ID_FIELDS) {
+          doc.add(new IndexedLongField(field, keys[i], Field.Store.NO));
+        }
+        doc.add(new NumericDocValuesField(VERSION_FIELD, i));
+        writer.addDocument(doc);
+      }
+      // Some docs are deleted, so lookups also have to skip them
+      for (int i = 0; i < NUM_DOCS; i += DELETE_EVERY) {
+        writer.deleteDocuments(
+            new Term(ID_FIELDS[0], IndexedLongField.longToBytesRef(keys[i])));
+      }
+    }
+    return dir;
+  }
+
+  private static void checkAll(List<Future<?>> futures) throws Exception {
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof AssertionError) {
+          throw (AssertionError) e.getCause();
+        }
+        throw e;
+      }
+    }
+  }
+
+  private static boolean isLive(int i) {
+    return i % DELETE_EVERY != 0;
+  }
+
+  private static void runLookups(DirectoryReader reader, IndexSearcher searcher, long[] keys,
+      long[] absentKeys, Random r) throws Exception {
+    // PrimaryKeyLookup isn't thread safe, so each thread opens its own
+    PrimaryKeyLookup[] lookups = new PrimaryKeyLookup[ID_FIELDS.length];
+    for (int op = 0; op < OPS_PER_THREAD; ++op) {
+      int f = r.nextInt(ID_FIELDS.length);
+      String field = ID_FIELDS[f];
+      int i = r.nextInt(NUM_DOCS);
+      boolean absent = r.nextInt(4) == 0;
+      long key = absent ? absentKeys[i] : keys[i];
+      int expected = absent == false && isLive(i) ? 1 : 0;
+      switch (r.nextInt(4)) {
+      case 0:
+        TermQuery query = new TermQuery(new Term(field, IndexedLongField.longToBytesRef(key)));
+        Assert.assertThat(field + " " + key, searcher.count(query), is(expected));
+        break;
+      case 1:
+        Assert.assertThat(field + " " + key, searcher.count(new LongExactQuery(field, key)),
+            is(expected));
+        break;
+      case 2:
+        int j = r.nextInt(NUM_DOCS);
+        int expectedSet = isLive(i) ? 1 : 0;
+        if (i != j && isLive(j)) {
+          ++expectedSet;
+        }
+        LongSetQuery setQuery = new LongSetQuery(field, keys[i], keys[j], absentKeys[j]);
+        Assert.assertThat(field + " " + keys[i] + " " + keys[j], searcher.count(setQuery),
+            is(expectedSet));
+        break;
+      default:
+        if (lookups[f] == null) {
+          lookups[f] = new PrimaryKeyLookup(reader, field, VERSION_FIELD);
+        }
+        boolean found = lookups[f].lookup(key) != -1;
+        Assert.assertThat(field + " " + key, found, is(expected == 1));
+        Assert.assertThat(field + " " + key, lookups[f].getVersion(), is(found ? (long) i : -1L));
+        break;
+      }
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.mapcodec;
+
+import static org.hamcrest.core.Is.is;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.rsankar.lucenecodecs.field.IndexedLongField;
+import org.rsankar.lucenecodecs.mapcodec.MapFieldsReader.MapTerms;
+import org.rsankar.lucenecodecs.termmap.TermMapTestUtil;
+import org.rsankar.lucenecodecs.termmap.TermMapType;
+
+/**
+ * Indexes the same docs, updates and deletes into a map index and a Lucene50
+ * one, and compares them segment by segment while they merge, then again
+ * after forceMerge(1): field stats, the docs, freqs and positions of every
+ * term, and the hits and scores of term queries. Each {@link TermMapType} gets
+ * a key, a tag and a text field, so every layout goes through the merge from
+ * its source maps, and ROBIN_HOOD also gets them with full fingerprints and
+ * with a terms dictionary, which is merged in term order.
+ */
+public class TestMapMerge {
+  static final int NUM_KEYS = 1500;
+  static final int NUM_OPS = 4000;
+  static final int NUM_TAGS = 20;
+  static final int NUM_WORDS = 200;
+
+  static final List<String> LAYOUTS = new ArrayList<>();
+  static {
+    for (TermMapType type : TermMapType.values()) {
+      LAYOUTS.add(type.name());
+    }
+    LAYOUTS.add("ROBIN_HOOD.full");
+    LAYOUTS.add("ROBIN_HOOD.dict");
+  }
+
+  @Rule
+  public final TestRule reportSeed = TermMapTestUtil.reportSeed();
+
+  @Test
+  public void testMergesMatchLucene50() throws IOException {
+    Random r = TermMapTestUtil.newRandom();
+    long[] keys = new long[NUM_KEYS];
+    for (int i = 0; i < NUM_KEYS; ++i) {
+      keys[i] = r.nextLong();
+    }
+
+    int maxBufferedDocs = 50 + r.nextInt(150);
+    Directory mapDir = new ByteBuffersDirectory();
+    Directory defaultDir = new ByteBuffersDirectory();
+    IndexWriter mapWriter = new IndexWriter(mapDir,
+        MapCodecTestUtil.newConfig(MapCodecTestUtil.mapFormat(), maxBufferedDocs));
+    IndexWriter defaultWriter = new IndexWriter(defaultDir,
+        MapCodecTestUtil.newConfig(MapCodecTestUtil.defaultFormat(), maxBufferedDocs));
+    try {
+      for (int op = 0; op < NUM_OPS; ++op) {
+        int key = r.nextInt(NUM_KEYS);
+        // Deletes and updates go through the key field of a random layout
+        String keyField = "key." + LAYOUTS.get(r.nextInt(LAYOUTS.size()));
+        Term term = new Term(keyField, IndexedLongField.longToBytesRef(keys[key]));
+        int choice = r.nextInt(10);
+        if (choice == 0) {
+          mapWriter.deleteDocuments(term);
+          defaultWriter.deleteDocuments(term);
+        } else {
+          Document doc = doc(keys[key], r);
+          if (choice < 3) {
+            mapWriter.updateDocument(term, doc);
+            defaultWriter.updateDocument(term, doc);
+          } else {
+            mapWriter.addDocument(doc);
+            defaultWriter.addDocument(doc);
+          }
+        }
+        if ((op + 1) % 1000 == 0) {
+          checkSameIndex(mapWriter, defaultWriter, keys);
+        }
+      }
+      mapWriter.forceMerge(1);
+      defaultWriter.forceMerge(1);
+      checkSameIndex(mapWriter, defaultWriter, keys);
+    } finally {
+      IOUtils.close(mapWriter, defaultWriter, mapDir, defaultDir);
+    }
+  }
+
+  private static Document doc(long key, Random r) {
+    int numTags = r.nextInt(3);
+    int[] tags = new int[numTags];
+    for (int i = 0; i < numTags; ++i) {
+      // Low tags are in many docs
+      tags[i] = r.nextInt(1 + r.nextInt(NUM_TAGS));
+    }
+    StringBuilder text = new StringBuilder();
+    int numWords = 1 + r.nextInt(12);
+    for (int i = 0; i < numWords; ++i) {
+      text.append(word(r.nextInt(1 + r.nextInt(NUM_WORDS)))).append(' ');
+    }
+
+    Document doc = new Document();
+    for (String layout : LAYOUTS) {
+      doc.add(new IndexedLongField("key." + layout, key, Field.Store.NO));
+      for (int tag : tags) {
+        doc.add(new StringField("tag." + layout, tag(tag), Field.Store.NO));
+      }
+      doc.add(new TextField("body." + layout, text.toString(), Field.Store.NO));
+    }
+    return doc;
+  }
+
+  private static String tag(int tag) {
+    return "t" + tag;
+  }
+
+  private static String word(int word) {
+    return "w" + word;
+  }
+
+  private static void checkSameIndex(IndexWriter mapWriter, IndexWriter defaultWriter,
+      long[] keys) throws IOException {
+    List<BytesRef> keyTerms = new ArrayList<>();
+    for (long key : keys) {
+      keyTerms.add(IndexedLongField.longToBytesRef(key));
+    }
+    List<BytesRef> tagTerms = new ArrayList<>();
+    for (int i = 0; i <= NUM_TAGS; ++i) {
+      tagTerms.add(new BytesRef(tag(i)));
+    }
+    List<BytesRef> bodyTerms = new ArrayList<>();
+    for (int i = 0; i <= NUM_WORDS; ++i) {
+      bodyTerms.add(new BytesRef(word(i)));
+    }
+
+    try (DirectoryReader mapReader = DirectoryReader.open(mapWriter);
+        DirectoryReader defaultReader = DirectoryReader.open(defaultWriter)) {
+      Assert.assertThat(mapReader.leaves().size(), is(defaultReader.leaves().size()));
+      Assert.assertThat(mapReader.numDocs(), is(defaultReader.numDocs()));
+      IndexSearcher mapSearcher = new IndexSearcher(mapReader);
+      IndexSearcher defaultSearcher = new IndexSearcher(defaultReader);
+      for (String layout : LAYOUTS) {
+        for (int l = 0; l < mapReader.leaves().size(); ++l) {
+          LeafReader mapLeaf = mapReader.leaves().get(l).reader();
+          LeafReader defaultLeaf = defaultReader.leaves().get(l).reader();
+          Assert.assertThat(mapLeaf.maxDoc(), is(defaultLeaf.maxDoc()));
+          // Only compact ROBIN_HOOD maps without a terms dictionary need their
+          // fingerprints listed: 8 bytes and a vlong value per term
+          MapTerms mapKeys = (MapTerms) mapLeaf.terms("key." + layout);
+          if (layout.equals("ROBIN_HOOD")) {
+            Assert.assertThat(mapKeys.fingerprintListBytes() >= 9 * mapKeys.size(), is(true));
+          } else {
+            Assert.assertThat(layout, mapKeys.fingerprintListBytes(), is(0L));
+          }
+          MapCodecTestUtil.assertSameTerms(mapLeaf, defaultLeaf, "key." + layout, keyTerms,
+              true);
+          MapCodecTestUtil.assertSameTerms(mapLeaf, defaultLeaf, "tag." + layout, tagTerms,
+              true);
+          MapCodecTestUtil.assertSameTerms(mapLeaf, defaultLeaf, "body." + layout, bodyTerms,
+              true);
+        }
+        // Scores depend on the field stats and the norms, so they only match
+        // if the merged segments kept both
+        for (BytesRef term : tagTerms) {
+          MapCodecTestUtil.assertSameHits(mapSearcher, defaultSearcher,
+              new TermQuery(new Term("tag." + layout, term)));
+        }
+        for (BytesRef term : bodyTerms) {
+          MapCodecTestUtil.assertSameHits(mapSearcher, defaultSearcher,
+              new TermQuery(new Term("body." + layout, term)));
+        }
+      }
+    }
+  }
+}
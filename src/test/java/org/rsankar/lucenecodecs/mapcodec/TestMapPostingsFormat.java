@@ -0,0 +1,1113 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.mapcodec;
+
+import static org.hamcrest.core.Is.is;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.lucene50.Lucene50PostingsFormat;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.CheckIndex;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Impact;
+import org.apache.lucene.index.ImpactsEnum;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LogMergePolicy;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.SlowImpactsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.index.TermsEnum.SeekStatus;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.IOUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.rsankar.lucenecodecs.field.IndexedLongField;
+import org.rsankar.lucenecodecs.termmap.TermMapTestUtil;
+import org.rsankar.lucenecodecs.termmap.TermMapType;
+
+/**
+ * Round trips of the ways MapFileWriter stores terms, each checked against the
+ * same docs indexed with Lucene50PostingsFormat, and against the map value to
+ * make sure the term was stored the way the test means to exercise.
+ */
+public class TestMapPostingsFormat {
+  @Rule
+  public final TestRule reportSeed = TermMapTestUtil.reportSeed();
+
+  @Test
+  public void testSingletonsAreInlined() throws IOException {
+    Random r = TermMapTestUtil.newRandom();
+    int numDocs = 5000;
+    // The first 4000 docs have their own key, the others repeat one of them
+    long[] keys = new long[numDocs];
+    Set<Long> seen = new HashSet<>();
+    for (int i = 0; i < numDocs; ++i) {
+      if (i < 4000) {
+        do {
+          keys[i] = r.nextLong();
+        } while (!seen.add(keys[i]));
+      } else {
+        keys[i] = keys[r.nextInt(4000)];
+      }
+    }
+    List<BytesRef> keyTerms = new ArrayList<>();
+    for (int i = 0; i < 4000; ++i) {
+      keyTerms.add(IndexedLongField.longToBytesRef(keys[i]));
+    }
+    List<BytesRef> words = new ArrayList<>();
+    for (int i = 0; i < numDocs; ++i) {
+      words.add(new BytesRef("w" + i));
+    }
+
+    try (Indexes indexes = new Indexes(MapCodecTestUtil.mapFormat(), numDocs, i -> {
+      Document doc = new Document();
+      for (TermMapType type : TermMapType.values()) {
+        doc.add(new IndexedLongField("key." + type, keys[i], Field.Store.NO));
+      }
+      // A word of its own, in a field with positions
+      doc.add(new TextField("word", "w" + i, Field.Store.NO));
+      return doc;
+    })) {
+      for (TermMapType type : TermMapType.values()) {
+        String field = "key." + type;
+        TermsEnum termsEnum = indexes.mapLeaf().terms(field).iterator();
+        for (BytesRef term : keyTerms) {
+          Assert.assertThat(field, termsEnum.seekExact(term), is(true));
+          Assert.assertThat(field + " " + term, valueKind(termsEnum),
+              is(termsEnum.docFreq() == 1 ? MapFileWriter.KIND_SINGLETON
+                  : MapFileWriter.KIND_FILE));
+        }
+        MapCodecTestUtil.assertSameTerms(indexes.mapLeaf(), indexes.defaultLeaf(), field,
+            keyTerms, true);
+      }
+
+      // Only the docID of DOCS fields fits in the value
+      TermsEnum termsEnum = indexes.mapLeaf().terms("word").iterator();
+      for (BytesRef term : words) {
+        Assert.assertThat(termsEnum.seekExact(term), is(true));
+        Assert.assertThat(term.utf8ToString(), valueKind(termsEnum), is(MapFileWriter.KIND_FILE));
+      }
+      MapCodecTestUtil.assertSameTerms(indexes.mapLeaf(), indexes.defaultLeaf(), "word", words,
+          true);
+    }
+  }
+
+  @Test
+  public void testFreqsPositionsAndPayloads() throws IOException {
+    Random r = TermMapTestUtil.newRandom();
+    int numDocs = 3000;
+    int numWords = 300;
+    // Every doc's tokens, the same for both indexes
+    int[][] docWords = new int[numDocs][];
+    int[][] docIncrements = new int[numDocs][];
+    byte[][][] docPayloads = new byte[numDocs][][];
+    for (int i = 0; i < numDocs; ++i) {
+      int numTokens = 1 + r.nextInt(30);
+      docWords[i] = new int[numTokens];
+      docIncrements[i] = new int[numTokens];
+      docPayloads[i] = new byte[numTokens][];
+      for (int j = 0; j < numTokens; ++j) {
+        // Low words are in many docs, so they get skip data and impacts
+        docWords[i][j] = r.nextInt(1 + r.nextInt(numWords));
+        docIncrements[i][j] = j == 0 ? 1 : r.nextInt(3);
+        docPayloads[i][j] = new byte[r.nextInt(4)];
+        r.nextBytes(docPayloads[i][j]);
+      }
+    }
+    List<BytesRef> words = new ArrayList<>();
+    for (int i = 0; i < numWords; ++i) {
+      words.add(new BytesRef("w" + i));
+    }
+
+    // A field per index options, and one with payloads per index options that
+    // has positions
+    IndexOptions[] options = { IndexOptions.DOCS_AND_FREQS,
+        IndexOptions.DOCS_AND_FREQS_AND_POSITIONS,
+        IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS };
+    List<String> fields = new ArrayList<>();
+    for (IndexOptions indexOptions : options) {
+      fields.add(indexOptions.name());
+      if (indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0) {
+        fields.add("payloads." + indexOptions.name());
+      }
+    }
+    try (Indexes indexes = new Indexes(MapCodecTestUtil.mapFormat(), numDocs, i -> {
+      Document doc = new Document();
+      for (IndexOptions indexOptions : options) {
+        FieldType type = new FieldType(TextField.TYPE_NOT_STORED);
+        type.setIndexOptions(indexOptions);
+        type.freeze();
+        doc.add(new Field(indexOptions.name(),
+            new WordTokenStream(docWords[i], docIncrements[i], null), type));
+        if (fields.contains("payloads." + indexOptions.name())) {
+          doc.add(new Field("payloads." + indexOptions.name(),
+              new WordTokenStream(docWords[i], docIncrements[i], docPayloads[i]), type));
+        }
+      }
+      return doc;
+    })) {
+      IndexSearcher mapSearcher = new IndexSearcher(indexes.mapReader);
+      IndexSearcher defaultSearcher = new IndexSearcher(indexes.defaultReader);
+      for (String field : fields) {
+        MapCodecTestUtil.assertSameTerms(indexes.mapLeaf(), indexes.defaultLeaf(), field, words,
+            true);
+        if (indexes.mapLeaf().terms(field).hasPositions() == false) {
+          continue;
+        }
+        for (int i = 0; i < 50; ++i) {
+          Term first = new Term(field, words.get(r.nextInt(20)));
+          Term second = new Term(field, words.get(r.nextInt(20)));
+          MapCodecTestUtil.assertSameHits(mapSearcher, defaultSearcher,
+              new PhraseQuery.Builder().add(first).add(second).build());
+          MapCodecTestUtil.assertSameHits(mapSearcher, defaultSearcher,
+              new SpanNearQuery(new SpanQuery[] { new SpanTermQuery(first),
+                  new SpanTermQuery(second) }, 2, false));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testUniqueKeysOnlyWriteTheMap() throws IOException {
+    Random r = TermMapTestUtil.newRandom();
+    int numDocs = 3000;
+    long[] keys = new long[numDocs];
+    Set<Long> seen = new HashSet<>();
+    List<BytesRef> keyTerms = new ArrayList<>();
+    for (int i = 0; i < numDocs; ++i) {
+      do {
+        keys[i] = r.nextLong();
+      } while (!seen.add(keys[i]));
+      keyTerms.add(IndexedLongField.longToBytesRef(keys[i]));
+    }
+    // Compact ROBIN_HOOD slots only keep the low bytes of each fingerprint, so
+    // their fields also save the full ones in the .fde for merges
+    List<String> keyFields = new ArrayList<>();
+    for (TermMapType type : TermMapType.values()) {
+      if (type.storesFullFingerprints()) {
+        keyFields.add("key." + type);
+      }
+    }
+    keyFields.add("key.ROBIN_HOOD.full");
+
+    try (Indexes indexes = new Indexes(MapCodecTestUtil.mapFormat(), numDocs, i -> {
+      Document doc = new Document();
+      for (String field : keyFields) {
+        doc.add(new IndexedLongField(field, keys[i], Field.Store.NO));
+      }
+      return doc;
+    })) {
+      for (String field : keyFields) {
+        MapCodecTestUtil.assertSameTerms(indexes.mapLeaf(), indexes.defaultLeaf(), field,
+            keyTerms, true);
+      }
+      // Every term state is a singleton inlined in its map value, so nothing
+      // is written to the .fde file but its header and footer, which the
+      // segment's map fields share
+      SegmentInfo info = ((SegmentReader) indexes.mapLeaf()).getSegmentInfo().info;
+      Map<String, Long> dataFiles = fileLengths(info, MapPostingsFormat.FIELD_DATA_EXTENSION);
+      Assert.assertThat(dataFiles.size(), is(1));
+      for (Map.Entry<String, Long> file : dataFiles.entrySet()) {
+        String segmentSuffix = IndexFileNames.stripExtension(file.getKey())
+            .substring(info.name.length() + 1);
+        Assert.assertThat(file.getKey(), file.getValue(),
+            is((long) CodecUtil.indexHeaderLength(MapPostingsFormat.FIELD_DATA_CODEC,
+                segmentSuffix) + CodecUtil.footerLength()));
+      }
+    }
+  }
+
+  @Test
+  public void testAdvanceWithSkipData() throws IOException {
+    Random r = TermMapTestUtil.newRandom();
+    int numDocs = 6000;
+    // w0 is in every doc, w1 in every third doc and w2 in 129 docs, so they
+    // have skip data (docFreq > 128) and a last position block past 128
+    // positions. w3 is in 10 docs with 20 positions each: no skip data, but a
+    // lastPosBlockOffset. w4 is in 100 docs once each, under both limits.
+    Set<Integer> w2Docs = new HashSet<>();
+    while (w2Docs.size() < 129) {
+      w2Docs.add(r.nextInt(numDocs));
+    }
+    Set<Integer> w3Docs = new HashSet<>();
+    while (w3Docs.size() < 10) {
+      w3Docs.add(r.nextInt(numDocs));
+    }
+    Set<Integer> w4Docs = new HashSet<>();
+    while (w4Docs.size() < 100) {
+      w4Docs.add(r.nextInt(numDocs));
+    }
+    int[][] docWords = new int[numDocs][];
+    int[][] docIncrements = new int[numDocs][];
+    byte[][][] docPayloads = new byte[numDocs][][];
+    for (int i = 0; i < numDocs; ++i) {
+      List<Integer> tokens = new ArrayList<>();
+      for (int j = 1 + r.nextInt(4); j > 0; --j) {
+        tokens.add(0);
+      }
+      if (i % 3 == 0) {
+        tokens.add(1);
+      }
+      if (w2Docs.contains(i)) {
+        tokens.add(2);
+      }
+      if (w3Docs.contains(i)) {
+        tokens.addAll(Collections.nCopies(20, 3));
+      }
+      if (w4Docs.contains(i)) {
+        tokens.add(4);
+      }
+      Collections.shuffle(tokens, r);
+      docWords[i] = tokens.stream().mapToInt(Integer::intValue).toArray();
+      docIncrements[i] = new int[tokens.size()];
+      docPayloads[i] = new byte[tokens.size()][];
+      for (int j = 0; j < tokens.size(); ++j) {
+        docIncrements[i][j] = 1 + r.nextInt(2);
+        docPayloads[i][j] = new byte[r.nextInt(3)];
+        r.nextBytes(docPayloads[i][j]);
+      }
+    }
+    List<BytesRef> words = new ArrayList<>();
+    for (int i = 0; i < 5; ++i) {
+      words.add(new BytesRef("w" + i));
+    }
+
+    FieldType docsType = new FieldType(TextField.TYPE_NOT_STORED);
+    docsType.setIndexOptions(IndexOptions.DOCS);
+    docsType.freeze();
+    FieldType freqsType = new FieldType(TextField.TYPE_NOT_STORED);
+    freqsType.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+    freqsType.freeze();
+    FieldType offsetsType = new FieldType(TextField.TYPE_NOT_STORED);
+    offsetsType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+    offsetsType.freeze();
+    try (Indexes indexes = new Indexes(MapCodecTestUtil.mapFormat(), numDocs, i -> {
+      Document doc = new Document();
+      doc.add(new Field("docs", new WordTokenStream(docWords[i], docIncrements[i], null),
+          docsType));
+      doc.add(new Field("freqs", new WordTokenStream(docWords[i], docIncrements[i], null),
+          freqsType));
+      doc.add(new Field("positions", new WordTokenStream(docWords[i], docIncrements[i], null),
+          TextField.TYPE_NOT_STORED));
+      doc.add(new Field("payloads", new WordTokenStream(docWords[i], docIncrements[i],
+          docPayloads[i]), offsetsType));
+      return doc;
+    })) {
+      for (String field : new String[] { "docs", "freqs", "positions", "payloads" }) {
+        TermsEnum termsEnum = indexes.mapLeaf().terms(field).iterator();
+        // Without freqs, totalTermFreq is docFreq
+        int longPositions = indexes.mapLeaf().terms(field).hasFreqs() ? 4 : 3;
+        for (int i = 0; i < words.size(); ++i) {
+          Assert.assertThat(field, termsEnum.seekExact(words.get(i)), is(true));
+          Assert.assertThat(field + " w" + i, valueKind(termsEnum),
+              is(MapFileWriter.KIND_FILE));
+          Assert.assertThat(field + " w" + i, termsEnum.docFreq() > 128, is(i < 3));
+          Assert.assertThat(field + " w" + i, termsEnum.totalTermFreq() > 128,
+              is(i < longPositions));
+        }
+        MapCodecTestUtil.assertSameTerms(indexes.mapLeaf(), indexes.defaultLeaf(), field, words,
+            true);
+        // Advances of a few docs stay within a block, longer ones go through
+        // the skip lists
+        for (int i = 0; i < 20; ++i) {
+          assertSameAdvances(indexes.mapLeaf(), indexes.defaultLeaf(), field, words, r);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testImpactsAndFieldStats() throws IOException {
+    Random r = TermMapTestUtil.newRandom();
+    int numDocs = 5000;
+    int numWords = 500;
+    String[] texts = new String[numDocs];
+    for (int i = 0; i < numDocs; ++i) {
+      StringBuilder text = new StringBuilder();
+      // Docs of very different lengths have different norms
+      int numTokens = 1 + r.nextInt(1 + r.nextInt(100));
+      for (int j = 0; j < numTokens; ++j) {
+        text.append("w").append(r.nextInt(1 + r.nextInt(numWords))).append(' ');
+      }
+      texts[i] = text.toString();
+    }
+    List<BytesRef> words = new ArrayList<>();
+    for (int i = 0; i < numWords; ++i) {
+      words.add(new BytesRef("w" + i));
+    }
+
+    FieldType freqsType = new FieldType(TextField.TYPE_NOT_STORED);
+    freqsType.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+    freqsType.freeze();
+    String[] fields = { "freqs", "positions" };
+    try (Indexes indexes = new Indexes(MapCodecTestUtil.mapFormat(), numDocs, i -> {
+      Document doc = new Document();
+      doc.add(new Field("freqs", texts[i], freqsType));
+      doc.add(new TextField("positions", texts[i], Field.Store.NO));
+      return doc;
+    })) {
+      IndexSearcher mapSearcher = new IndexSearcher(indexes.mapReader);
+      IndexSearcher defaultSearcher = new IndexSearcher(indexes.defaultReader);
+      for (String field : fields) {
+        MapCodecTestUtil.assertSameTerms(indexes.mapLeaf(), indexes.defaultLeaf(), field, words,
+            true);
+        assertImpactsBoundPostings(indexes.mapLeaf(), field, words);
+        // Top-k disjunctions skip blocks by their impacts once enough hits
+        // are collected, so their top hits are only right if impacts are
+        for (int i = 0; i < 50; ++i) {
+          BooleanQuery.Builder query = new BooleanQuery.Builder();
+          int numClauses = 2 + r.nextInt(3);
+          for (int j = 0; j < numClauses; ++j) {
+            query.add(new TermQuery(new Term(field, words.get(r.nextInt(1 + r.nextInt(50))))),
+                BooleanClause.Occur.SHOULD);
+          }
+          MapCodecTestUtil.assertSameHits(mapSearcher, defaultSearcher, query.build());
+        }
+      }
+    }
+  }
+
+  // Checks that every doc of every term is bounded by an impact of the level
+  // that covers it, and that terms without skip data get a single impact with
+  // their highest freq and lowest norm
+  private static void assertImpactsBoundPostings(LeafReader leaf, String field,
+      List<BytesRef> vocabulary) throws IOException {
+    TermsEnum termsEnum = leaf.terms(field).iterator();
+    for (BytesRef term : vocabulary) {
+      if (termsEnum.seekExact(term) == false) {
+        continue;
+      }
+      ImpactsEnum impacts = termsEnum.impacts(PostingsEnum.FREQS);
+      Assert.assertThat(field, impacts instanceof SlowImpactsEnum, is(false));
+      PostingsEnum postings = termsEnum.postings(null, PostingsEnum.FREQS);
+      NumericDocValues norms = leaf.getNormValues(field);
+      int maxFreq = 0;
+      long minNorm = -1L;
+      for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS;
+          doc = postings.nextDoc()) {
+        long norm = norms.advanceExact(doc) ? norms.longValue() : 1L;
+        maxFreq = Math.max(maxFreq, postings.freq());
+        if (Long.compareUnsigned(norm, minNorm) < 0) {
+          minNorm = norm;
+        }
+        impacts.advanceShallow(doc);
+        Assert.assertThat(field + " " + term, impacts.getImpacts().getDocIdUpTo(0) >= doc,
+            is(true));
+        boolean bounded = false;
+        for (Impact impact : impacts.getImpacts().getImpacts(0)) {
+          bounded |= impact.freq >= postings.freq()
+              && Long.compareUnsigned(impact.norm, norm) <= 0;
+        }
+        Assert.assertThat(field + " " + term + " doc " + doc, bounded, is(true));
+      }
+      if (termsEnum.docFreq() <= Lucene50PostingsFormat.BLOCK_SIZE) {
+        impacts = termsEnum.impacts(PostingsEnum.FREQS);
+        impacts.advanceShallow(0);
+        List<Impact> levelImpacts = impacts.getImpacts().getImpacts(0);
+        Assert.assertThat(field + " " + term, levelImpacts.size(), is(1));
+        Assert.assertThat(field + " " + term, levelImpacts.get(0).freq, is(maxFreq));
+        Assert.assertThat(field + " " + term, levelImpacts.get(0).norm, is(minNorm));
+      }
+    }
+  }
+
+  @Test
+  public void testPulsing() throws IOException {
+    Random r = TermMapTestUtil.newRandom();
+    int numDocs = 2000;
+    int numTerms = 400;
+    // Term n is in 1 + n % 20 random docs, with a random freq in each
+    List<List<String>> docTokens = new ArrayList<>();
+    for (int i = 0; i < numDocs; ++i) {
+      docTokens.add(new ArrayList<>());
+    }
+    List<BytesRef> terms = new ArrayList<>();
+    for (int n = 0; n < numTerms; ++n) {
+      String term = "t" + n;
+      terms.add(new BytesRef(term));
+      Set<Integer> docs = new HashSet<>();
+      while (docs.size() < 1 + n % 20) {
+        docs.add(r.nextInt(numDocs));
+      }
+      for (int doc : docs) {
+        int freq = 1 + r.nextInt(3);
+        for (int i = 0; i < freq; ++i) {
+          docTokens.get(doc).add(term);
+        }
+      }
+    }
+
+    FieldType freqsType = new FieldType(TextField.TYPE_NOT_STORED);
+    freqsType.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+    freqsType.freeze();
+    try (Indexes indexes = new Indexes(MapCodecTestUtil.pulsingMapFormat(), numDocs, i -> {
+      Document doc = new Document();
+      String text = String.join(" ", docTokens.get(i));
+      for (String token : new HashSet<>(docTokens.get(i))) {
+        doc.add(new StringField("docs", token, Field.Store.NO));
+      }
+      doc.add(new Field("freqs", text, freqsType));
+      doc.add(new TextField("positions", text, Field.Store.NO));
+      return doc;
+    })) {
+      int threshold = MapTestFormat.Pulsing.PULSING_THRESHOLD;
+      for (String field : new String[] { "docs", "freqs", "positions" }) {
+        TermsEnum termsEnum = indexes.mapLeaf().terms(field).iterator();
+        for (BytesRef term : terms) {
+          Assert.assertThat(field, termsEnum.seekExact(term), is(true));
+          int docFreq = termsEnum.docFreq();
+          int expectedKind;
+          if (field.equals("positions") || docFreq > threshold) {
+            // Positions stay with the postings writer
+            expectedKind = MapFileWriter.KIND_FILE;
+          } else if (field.equals("docs") && docFreq == 1) {
+            expectedKind = MapFileWriter.KIND_SINGLETON;
+          } else {
+            expectedKind = MapFileWriter.KIND_PULSED;
+          }
+          Assert.assertThat(field + " " + term.utf8ToString(), valueKind(termsEnum),
+              is(expectedKind));
+        }
+        MapCodecTestUtil.assertSameTerms(indexes.mapLeaf(), indexes.defaultLeaf(), field, terms,
+            true);
+        assertSameAdvances(indexes.mapLeaf(), indexes.defaultLeaf(), field, terms, r);
+      }
+      assertImpactsBoundPostings(indexes.mapLeaf(), "freqs", terms);
+    }
+  }
+
+  @Test
+  public void testBitmapPostings() throws IOException {
+    Random r = TermMapTestUtil.newRandom();
+    // Three containers of 2^16 docs, the last one partly filled
+    int numDocs = 150000;
+    // Which tags each doc has: "all" in every doc and "half" in about half of
+    // them, so their containers are bitmaps, "sparse" in few enough docs per
+    // container to be arrays, "burst" in only one container, and "rare" in
+    // too few docs for a bitmap
+    String[][] docTags = new String[numDocs][];
+    for (int i = 0; i < numDocs; ++i) {
+      List<String> tags = new ArrayList<>();
+      tags.add("all");
+      if (r.nextBoolean()) {
+        tags.add("half");
+      }
+      if (r.nextInt(40) == 0) {
+        tags.add("sparse");
+      }
+      if (i >= 70000 && i < 80000 && i % 2 == 0) {
+        tags.add("burst");
+      }
+      if (r.nextInt(1000) == 0) {
+        tags.add("rare");
+      }
+      docTags[i] = tags.toArray(new String[0]);
+    }
+    List<BytesRef> tags = new ArrayList<>();
+    for (String tag : new String[] { "all", "half", "sparse", "burst", "rare" }) {
+      tags.add(new BytesRef(tag));
+    }
+
+    try (Indexes indexes = new Indexes(MapCodecTestUtil.mapFormat(), numDocs, i -> {
+      Document doc = new Document();
+      for (String tag : docTags[i]) {
+        doc.add(new StringField("tags.bitmaps", tag, Field.Store.NO));
+        doc.add(new StringField("tags", tag, Field.Store.NO));
+      }
+      return doc;
+    })) {
+      int minDocFreq = Math.max(Lucene50PostingsFormat.BLOCK_SIZE + 1, numDocs >>> 7);
+      for (String field : new String[] { "tags.bitmaps", "tags" }) {
+        TermsEnum termsEnum = indexes.mapLeaf().terms(field).iterator();
+        for (BytesRef tag : tags) {
+          Assert.assertThat(field, termsEnum.seekExact(tag), is(true));
+          boolean bitmap = field.equals("tags.bitmaps") && termsEnum.docFreq() >= minDocFreq;
+          Assert.assertThat(field + " " + tag.utf8ToString(), valueKind(termsEnum),
+              is(bitmap ? MapFileWriter.KIND_BITMAP : MapFileWriter.KIND_FILE));
+        }
+        MapCodecTestUtil.assertSameTerms(indexes.mapLeaf(), indexes.defaultLeaf(), field, tags,
+            true);
+        assertSameAdvances(indexes.mapLeaf(), indexes.defaultLeaf(), field, tags, r);
+      }
+
+      // Filters intersect the bitmaps with each other and with other postings
+      IndexSearcher mapSearcher = new IndexSearcher(indexes.mapReader);
+      IndexSearcher defaultSearcher = new IndexSearcher(indexes.defaultReader);
+      for (BytesRef first : tags) {
+        for (BytesRef second : tags) {
+          BooleanQuery query = new BooleanQuery.Builder()
+              .add(new TermQuery(new Term("tags.bitmaps", first)), BooleanClause.Occur.FILTER)
+              .add(new TermQuery(new Term("tags.bitmaps", second)), BooleanClause.Occur.FILTER)
+              .build();
+          MapCodecTestUtil.assertSameHits(mapSearcher, defaultSearcher, query);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSegmentContainers() throws IOException {
+    checkSegmentContainers(false);
+    checkSegmentContainers(true);
+  }
+
+  // Indexes fields of every kind into a few segments, then checks that
+  // each segment has one .fme and one .fde file for all its map fields, and a
+  // .fbm file only if one of them has bitmaps, and that every field found
+  // through the field directory matches Lucene50
+  private static void checkSegmentContainers(boolean useCompoundFile) throws IOException {
+    Random r = TermMapTestUtil.newRandom();
+    int numDocs = 2000;
+    int maxBufferedDocs = 700;
+    long[] keys = new long[numDocs];
+    Set<Long> seen = new HashSet<>();
+    for (int i = 0; i < numDocs; ++i) {
+      do {
+        keys[i] = r.nextLong();
+      } while (!seen.add(keys[i]));
+    }
+    String[] texts = new String[numDocs];
+    for (int i = 0; i < numDocs; ++i) {
+      StringBuilder text = new StringBuilder();
+      int numTokens = 1 + r.nextInt(10);
+      for (int j = 0; j < numTokens; ++j) {
+        text.append("w").append(r.nextInt(1 + r.nextInt(100))).append(' ');
+      }
+      texts[i] = text.toString();
+    }
+
+    List<String> keyFields = new ArrayList<>();
+    for (TermMapType type : TermMapType.values()) {
+      keyFields.add("key." + type);
+    }
+    keyFields.add("key.ROBIN_HOOD.full");
+    keyFields.add("key.BUCKETIZED.dict");
+    // The bitmap field and "first" are only in the first segment
+    String[] tagFields = { "tags.bitmaps", "tags", "tags.dict" };
+    FieldType freqsType = new FieldType(TextField.TYPE_NOT_STORED);
+    freqsType.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+    freqsType.freeze();
+    IntFunction<Document> newDoc = i -> {
+      Document doc = new Document();
+      for (String field : keyFields) {
+        doc.add(new IndexedLongField(field, keys[i], Field.Store.NO));
+      }
+      for (String field : tagFields) {
+        if (field.equals("tags.bitmaps") && i >= maxBufferedDocs) {
+          continue;
+        }
+        doc.add(new StringField(field, "all", Field.Store.NO));
+        doc.add(new StringField(field, "t" + i % 10, Field.Store.NO));
+      }
+      doc.add(new TextField("body", texts[i], Field.Store.NO));
+      doc.add(new Field("freqs", texts[i], freqsType));
+      if (i < maxBufferedDocs) {
+        doc.add(new StringField("first", "f" + i % 3, Field.Store.NO));
+      }
+      return doc;
+    };
+
+    List<BytesRef> keyTerms = new ArrayList<>();
+    for (long key : keys) {
+      keyTerms.add(IndexedLongField.longToBytesRef(key));
+    }
+    List<BytesRef> tags = new ArrayList<>();
+    tags.add(new BytesRef("all"));
+    for (int i = 0; i < 10; ++i) {
+      tags.add(new BytesRef("t" + i));
+    }
+    List<BytesRef> words = new ArrayList<>();
+    for (int i = 0; i < 100; ++i) {
+      words.add(new BytesRef("w" + i));
+    }
+    List<BytesRef> firsts = new ArrayList<>();
+    for (int i = 0; i < 3; ++i) {
+      firsts.add(new BytesRef("f" + i));
+    }
+    List<String> fields = new ArrayList<>(keyFields);
+    fields.addAll(Arrays.asList(tagFields));
+    fields.addAll(Arrays.asList("body", "freqs", "first"));
+
+    Directory mapDir = new ByteBuffersDirectory();
+    Directory defaultDir = new ByteBuffersDirectory();
+    try {
+      indexSegments(mapDir, MapCodecTestUtil.mapFormat(), numDocs, maxBufferedDocs,
+          useCompoundFile, newDoc);
+      indexSegments(defaultDir, MapCodecTestUtil.defaultFormat(), numDocs, maxBufferedDocs,
+          useCompoundFile, newDoc);
+      try (DirectoryReader mapReader = DirectoryReader.open(mapDir);
+          DirectoryReader defaultReader = DirectoryReader.open(defaultDir)) {
+        Assert.assertThat(mapReader.leaves().size(), is(3));
+        Assert.assertThat(defaultReader.leaves().size(), is(3));
+        for (int l = 0; l < mapReader.leaves().size(); ++l) {
+          LeafReader mapLeaf = mapReader.leaves().get(l).reader();
+          LeafReader defaultLeaf = defaultReader.leaves().get(l).reader();
+          String segment = mapLeaf.toString();
+          boolean hasBitmaps = mapLeaf.terms("tags.bitmaps") != null;
+          Assert.assertThat(segment, hasBitmaps, is(l == 0));
+          SegmentInfo info = ((SegmentReader) mapLeaf).getSegmentInfo().info;
+          Assert.assertThat(segment, info.getUseCompoundFile(), is(useCompoundFile));
+          Assert.assertThat(segment,
+              fileLengths(info, MapPostingsFormat.FIELD_MAP_EXTENSION).size(), is(1));
+          Assert.assertThat(segment,
+              fileLengths(info, MapPostingsFormat.FIELD_DATA_EXTENSION).size(), is(1));
+          Assert.assertThat(segment,
+              fileLengths(info, MapPostingsFormat.FIELD_BITMAP_EXTENSION).size(),
+              is(hasBitmaps ? 1 : 0));
+          if (hasBitmaps) {
+            TermsEnum termsEnum = mapLeaf.terms("tags.bitmaps").iterator();
+            Assert.assertThat(termsEnum.seekExact(new BytesRef("all")), is(true));
+            Assert.assertThat(segment, valueKind(termsEnum), is(MapFileWriter.KIND_BITMAP));
+          }
+          mapLeaf.checkIntegrity();
+
+          // Fields are opened from the directory in any order, and only once
+          Collections.shuffle(fields, r);
+          for (String field : fields) {
+            Assert.assertSame(field, mapLeaf.terms(field), mapLeaf.terms(field));
+            List<BytesRef> vocabulary;
+            if (field.startsWith("key.")) {
+              vocabulary = keyTerms;
+            } else if (field.startsWith("tags")) {
+              vocabulary = tags;
+            } else if (field.equals("first")) {
+              vocabulary = firsts;
+            } else {
+              vocabulary = words;
+            }
+            MapCodecTestUtil.assertSameTerms(mapLeaf, defaultLeaf, field, vocabulary, true);
+          }
+        }
+      }
+    } finally {
+      IOUtils.close(mapDir, defaultDir);
+    }
+  }
+
+  // Flushes every maxBufferedDocs docs, without merging
+  private static void indexSegments(Directory dir, PostingsFormat format, int numDocs,
+      int maxBufferedDocs, boolean useCompoundFile, IntFunction<Document> newDoc)
+      throws IOException {
+    IndexWriterConfig iwc = MapCodecTestUtil.newConfig(format, maxBufferedDocs);
+    iwc.setUseCompoundFile(useCompoundFile);
+    LogMergePolicy mergePolicy = (LogMergePolicy) iwc.getMergePolicy();
+    mergePolicy.setMergeFactor(numDocs);
+    // Flushed segments are only compound if the merge policy agrees
+    mergePolicy.setNoCFSRatio(useCompoundFile ? 1.0 : 0.0);
+    try (IndexWriter writer = new IndexWriter(dir, iwc)) {
+      for (int i = 0; i < numDocs; ++i) {
+        writer.addDocument(newDoc.apply(i));
+      }
+    }
+  }
+
+  // The length of each of the segment's files with the extension, looking
+  // inside its compound file if it has one
+  private static Map<String, Long> fileLengths(SegmentInfo info, String extension)
+      throws IOException {
+    Map<String, Long> lengths = new HashMap<>();
+    if (info.getUseCompoundFile()) {
+      for (String file : info.files()) {
+        Assert.assertThat(file, IndexFileNames.getExtension(file).equals(extension), is(false));
+      }
+      try (Directory compound = info.getCodec().compoundFormat().getCompoundReader(info.dir,
+          info, IOContext.READ)) {
+        for (String file : compound.listAll()) {
+          if (IndexFileNames.getExtension(file).equals(extension)) {
+            lengths.put(file, compound.fileLength(file));
+          }
+        }
+      }
+    } else {
+      for (String file : info.files()) {
+        if (IndexFileNames.getExtension(file).equals(extension)) {
+          lengths.put(file, info.dir.fileLength(file));
+        }
+      }
+    }
+    return lengths;
+  }
+
+  @Test
+  public void testTermsDictionary() throws IOException {
+    Random r = TermMapTestUtil.newRandom();
+    int numDocs = 3000;
+    int numWords = 400;
+    long[] keys = new long[numDocs];
+    String[] texts = new String[numDocs];
+    for (int i = 0; i < numDocs; ++i) {
+      // Some keys are in several docs
+      keys[i] = i < 2000 ? r.nextLong() : keys[r.nextInt(2000)];
+      StringBuilder text = new StringBuilder();
+      int numTokens = 1 + r.nextInt(20);
+      for (int j = 0; j < numTokens; ++j) {
+        // Low words are in many docs, and some high ones in none
+        text.append("w").append(r.nextInt(1 + r.nextInt(numWords))).append(' ');
+      }
+      texts[i] = text.toString();
+    }
+    List<BytesRef> keyTerms = new ArrayList<>();
+    for (long key : keys) {
+      keyTerms.add(IndexedLongField.longToBytesRef(key));
+    }
+    List<BytesRef> words = new ArrayList<>();
+    for (int i = 0; i < numWords; ++i) {
+      words.add(new BytesRef("w" + i));
+    }
+
+    // Every map field has a terms dictionary, so CheckIndex can walk them all
+    List<String> keyFields = new ArrayList<>();
+    for (TermMapType type : TermMapType.values()) {
+      keyFields.add("key." + type + ".dict");
+    }
+    String[] textFields = { "tags.dict", "freqs.dict", "body.dict" };
+    FieldType freqsType = new FieldType(TextField.TYPE_NOT_STORED);
+    freqsType.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+    freqsType.freeze();
+    try (Indexes indexes = new Indexes(MapCodecTestUtil.mapFormat(), numDocs, i -> {
+      Document doc = new Document();
+      for (String field : keyFields) {
+        doc.add(new IndexedLongField(field, keys[i], Field.Store.NO));
+      }
+      for (String word : new HashSet<>(Arrays.asList(texts[i].split(" ")))) {
+        doc.add(new StringField("tags.dict", word, Field.Store.NO));
+      }
+      doc.add(new Field("freqs.dict", texts[i], freqsType));
+      doc.add(new TextField("body.dict", texts[i], Field.Store.NO));
+      return doc;
+    })) {
+      IndexSearcher mapSearcher = new IndexSearcher(indexes.mapReader);
+      IndexSearcher defaultSearcher = new IndexSearcher(indexes.defaultReader);
+      List<String> fields = new ArrayList<>(keyFields);
+      fields.addAll(Arrays.asList(textFields));
+      for (String field : fields) {
+        MapFieldsReader.MapTerms mapTerms =
+            (MapFieldsReader.MapTerms) indexes.mapLeaf().terms(field);
+        Assert.assertThat(field, mapTerms.hasTermsDictionary(), is(true));
+        // The dictionary lists the terms for merges and verifies hits, so no
+        // field saves its fingerprints
+        Assert.assertThat(field, mapTerms.fingerprintListBytes(), is(0L));
+        List<BytesRef> vocabulary = field.startsWith("key.") ? keyTerms : words;
+        MapCodecTestUtil.assertSameTerms(indexes.mapLeaf(), indexes.defaultLeaf(), field,
+            vocabulary, true);
+        assertSameTermOrder(indexes.mapLeaf(), indexes.defaultLeaf(), field, vocabulary, r);
+
+        // Multi-term queries intersect the dictionary with their automaton
+        for (int i = 0; i < 20; ++i) {
+          BytesRef lower = vocabulary.get(r.nextInt(vocabulary.size()));
+          BytesRef upper = vocabulary.get(r.nextInt(vocabulary.size()));
+          BytesRef prefix = new BytesRef(lower.bytes, lower.offset,
+              1 + r.nextInt(Math.min(lower.length, 3)));
+          MapCodecTestUtil.assertSameHits(mapSearcher, defaultSearcher,
+              new PrefixQuery(new Term(field, prefix)));
+          MapCodecTestUtil.assertSameHits(mapSearcher, defaultSearcher,
+              new TermRangeQuery(field, lower, upper, r.nextBoolean(), r.nextBoolean()));
+        }
+      }
+
+      CheckIndex.Status status;
+      try (CheckIndex checkIndex = new CheckIndex(indexes.mapDir)) {
+        status = checkIndex.checkIndex();
+      }
+      Assert.assertThat(status.clean, is(true));
+    }
+  }
+
+  // Checks that the field enumerates the same terms in the same order as
+  // Lucene50, that seekCeil finds the same terms from anywhere, and that next()
+  // moves on from a term found by an exact lookup, whose state comes from the
+  // map rather than the dictionary, or by a seek to a saved state
+  private static void assertSameTermOrder(LeafReader mapLeaf, LeafReader defaultLeaf,
+      String field, List<BytesRef> vocabulary, Random r) throws IOException {
+    Terms mapTerms = mapLeaf.terms(field);
+    Terms defaultTerms = defaultLeaf.terms(field);
+    Assert.assertEquals(field, defaultTerms.getMin(), mapTerms.getMin());
+    Assert.assertEquals(field, defaultTerms.getMax(), mapTerms.getMax());
+
+    TermsEnum mapEnum = mapTerms.iterator();
+    TermsEnum defaultEnum = defaultTerms.iterator();
+    PostingsEnum mapPostings = null;
+    PostingsEnum defaultPostings = null;
+    for (BytesRef term = defaultEnum.next(); term != null; term = defaultEnum.next()) {
+      Assert.assertEquals(field, term, mapEnum.next());
+      Assert.assertEquals(field, term, mapEnum.term());
+      Assert.assertThat(field + " " + term, mapEnum.docFreq(), is(defaultEnum.docFreq()));
+      Assert.assertThat(field + " " + term, mapEnum.totalTermFreq(),
+          is(defaultEnum.totalTermFreq()));
+      mapPostings = mapEnum.postings(mapPostings, PostingsEnum.NONE);
+      defaultPostings = defaultEnum.postings(defaultPostings, PostingsEnum.NONE);
+      for (int doc = defaultPostings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS;
+          doc = defaultPostings.nextDoc()) {
+        Assert.assertThat(field + " " + term, mapPostings.nextDoc(), is(doc));
+      }
+      Assert.assertThat(field + " " + term, mapPostings.nextDoc(),
+          is(DocIdSetIterator.NO_MORE_DOCS));
+    }
+    Assert.assertNull(field, mapEnum.next());
+
+    for (int i = 0; i < 200; ++i) {
+      BytesRef target = randomTarget(vocabulary, r);
+      SeekStatus status = defaultEnum.seekCeil(target);
+      Assert.assertThat(field + " " + target, mapEnum.seekCeil(target), is(status));
+      if (status != SeekStatus.END) {
+        Assert.assertEquals(field + " " + target, defaultEnum.term(), mapEnum.term());
+        assertSameNextTerms(mapEnum, defaultEnum, field, 1 + r.nextInt(3));
+      }
+    }
+
+    for (int i = 0; i < 200; ++i) {
+      BytesRef term = vocabulary.get(r.nextInt(vocabulary.size()));
+      if (defaultEnum.seekExact(term) == false) {
+        continue;
+      }
+      Assert.assertThat(field + " " + term, mapEnum.seekExact(term), is(true));
+      TermState state = mapEnum.termState();
+      assertSameNextTerms(mapEnum, defaultEnum, field, 1 + r.nextInt(3));
+
+      TermsEnum stateEnum = mapTerms.iterator();
+      stateEnum.seekExact(term, state);
+      defaultEnum.seekExact(term);
+      Assert.assertThat(field + " " + term, stateEnum.docFreq(), is(defaultEnum.docFreq()));
+      assertSameNextTerms(stateEnum, defaultEnum, field, 1 + r.nextInt(3));
+    }
+  }
+
+  private static void assertSameNextTerms(TermsEnum mapEnum, TermsEnum defaultEnum,
+      String field, int count) throws IOException {
+    for (int i = 0; i < count; ++i) {
+      BytesRef term = defaultEnum.next();
+      Assert.assertEquals(field, term, mapEnum.next());
+      if (term == null) {
+        return;
+      }
+      Assert.assertThat(field + " " + term, mapEnum.docFreq(), is(defaultEnum.docFreq()));
+    }
+  }
+
+  // A term of the vocabulary, one with a byte more or less, or random bytes
+  private static BytesRef randomTarget(List<BytesRef> vocabulary, Random r) {
+    BytesRef term = vocabulary.get(r.nextInt(vocabulary.size()));
+    switch (r.nextInt(4)) {
+    case 0:
+      return term;
+    case 1:
+      BytesRefBuilder longer = new BytesRefBuilder();
+      longer.copyBytes(term);
+      longer.append((byte) r.nextInt(256));
+      return longer.toBytesRef();
+    case 2:
+      return new BytesRef(term.bytes, term.offset, r.nextInt(term.length + 1));
+    default:
+      byte[] bytes = new byte[r.nextInt(9)];
+      r.nextBytes(bytes);
+      return new BytesRef(bytes);
+    }
+  }
+
+  // Checks that postings advance to the same docs, with the same freqs and
+  // positions, from random targets
+  private static void assertSameAdvances(LeafReader mapLeaf, LeafReader defaultLeaf,
+      String field, List<BytesRef> vocabulary, Random r) throws IOException {
+    Terms defaultTerms = defaultLeaf.terms(field);
+    TermsEnum mapEnum = mapLeaf.terms(field).iterator();
+    TermsEnum defaultEnum = defaultTerms.iterator();
+    int flags = defaultTerms.hasPositions() ? PostingsEnum.ALL : PostingsEnum.FREQS;
+    int maxDoc = defaultLeaf.maxDoc();
+    for (BytesRef term : vocabulary) {
+      if (defaultEnum.seekExact(term) == false) {
+        continue;
+      }
+      Assert.assertThat(field + " " + term, mapEnum.seekExact(term), is(true));
+      PostingsEnum mapPostings = mapEnum.postings(null, flags);
+      PostingsEnum defaultPostings = defaultEnum.postings(null, flags);
+      Assert.assertThat(field + " " + term, mapPostings.cost(), is(defaultPostings.cost()));
+      int doc = -1;
+      while (doc != DocIdSetIterator.NO_MORE_DOCS) {
+        int target = doc + 1 + r.nextInt(1 + maxDoc / 8);
+        if (target >= maxDoc) {
+          target = DocIdSetIterator.NO_MORE_DOCS;
+        }
+        doc = defaultPostings.advance(target);
+        Assert.assertThat(field + " " + term + " " + target, mapPostings.advance(target),
+            is(doc));
+        if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+          break;
+        }
+        Assert.assertThat(field + " " + term, mapPostings.freq(), is(defaultPostings.freq()));
+        // Positions past the skipped ones have to be found as well
+        for (int i = 0; flags == PostingsEnum.ALL && i < defaultPostings.freq(); ++i) {
+          Assert.assertThat(field + " " + term + " " + doc, mapPostings.nextPosition(),
+              is(defaultPostings.nextPosition()));
+          Assert.assertThat(field + " " + term + " " + doc, mapPostings.startOffset(),
+              is(defaultPostings.startOffset()));
+          Assert.assertEquals(field + " " + term + " " + doc, defaultPostings.getPayload(),
+              mapPostings.getPayload());
+        }
+      }
+    }
+  }
+
+  // How the map value of the term the enum is on stores its state
+  private static int valueKind(TermsEnum termsEnum) throws IOException {
+    return (int) ((MapTermState) termsEnum.termState()).value & MapFileWriter.KIND_MASK;
+  }
+
+  // Tokens "w<word>" with the given position increments and payloads (none if
+  // payloads is null), each one character apart from the previous one
+  static final class WordTokenStream extends TokenStream {
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(
+        PositionIncrementAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+    private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
+    private final int[] words;
+    private final int[] increments;
+    private final byte[][] payloads;
+    private int token;
+    private int offset;
+
+    WordTokenStream(int[] words, int[] increments, byte[][] payloads) {
+      this.words = words;
+      this.increments = increments;
+      this.payloads = payloads;
+    }
+
+    @Override
+    public boolean incrementToken() {
+      if (token == words.length) {
+        return false;
+      }
+      clearAttributes();
+      termAtt.append("w").append(Integer.toString(words[token]));
+      posIncAtt.setPositionIncrement(increments[token]);
+      offsetAtt.setOffset(offset, offset + termAtt.length());
+      offset += termAtt.length() + 1;
+      if (payloads != null && payloads[token].length > 0) {
+        payloadAtt.setPayload(new BytesRef(payloads[token]));
+      }
+      ++token;
+      return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+      super.reset();
+      token = 0;
+      offset = 0;
+    }
+  }
+
+  /**
+   * The same docs indexed into one segment with a map format and one with
+   * Lucene50PostingsFormat. Docs are built once per index, so their fields can
+   * use token streams.
+   */
+  static final class Indexes implements Closeable {
+    final Directory mapDir = new ByteBuffersDirectory();
+    final Directory defaultDir = new ByteBuffersDirectory();
+    final DirectoryReader mapReader;
+    final DirectoryReader defaultReader;
+
+    Indexes(PostingsFormat mapFormat, int numDocs, IntFunction<Document> newDoc)
+        throws IOException {
+      index(mapDir, mapFormat, numDocs, newDoc);
+      index(defaultDir, MapCodecTestUtil.defaultFormat(), numDocs, newDoc);
+      this.mapReader = DirectoryReader.open(mapDir);
+      this.defaultReader = DirectoryReader.open(defaultDir);
+      Assert.assertThat(mapReader.leaves().size(), is(1));
+    }
+
+    private static void index(Directory dir, PostingsFormat format, int numDocs,
+        IntFunction<Document> newDoc) throws IOException {
+      try (IndexWriter writer = new IndexWriter(dir,
+          MapCodecTestUtil.newConfig(format, numDocs + 1))) {
+        for (int i = 0; i < numDocs; ++i) {
+          writer.addDocument(newDoc.apply(i));
+        }
+      }
+    }
+
+    LeafReader mapLeaf() {
+      return mapReader.leaves().get(0).reader();
+    }
+
+    LeafReader defaultLeaf() {
+      return defaultReader.leaves().get(0).reader();
+    }
+
+    @Override
+    public void close() throws IOException {
+      IOUtils.close(mapReader, defaultReader, mapDir, defaultDir);
+    }
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.mapcodec;
+
+import static org.hamcrest.core.Is.is;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.util.InfoStream;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.rsankar.lucenecodecs.termmap.TermMapTestUtil;
+
+/**
+ * Checks that the (capacity, k) pair doesn't depend on the pool the analysis
+ * runs on, and that large fields, scored on a sample first, get a valid pair
+ * after verifying no more candidates than they are allowed to.
+ */
+public class TestParameterAnalyzer {
+  // Smallest field whose candidates are scored on a sample
+  static final int SAMPLED_TERMS = 4 * ParameterAnalyzer.SAMPLE_SIZE;
+
+  // "<position>/<pairs>: (<capacity>,<k>) - ...", logged for each valid
+  // candidate the analysis verified
+  static final Pattern VERIFIED = Pattern.compile("^(\\d+)/\\d+: \\((\\d+),(\\d+)\\)");
+
+  @Rule
+  public final TestRule reportSeed = TermMapTestUtil.reportSeed();
+
+  @Test
+  public void testSameParametersWithAnyPool() throws Exception {
+    Random r = TermMapTestUtil.newRandom();
+    ForkJoinPool singleThread = new ForkJoinPool(1);
+    ForkJoinPool manyThreads = new ForkJoinPool(
+        Math.max(4, Runtime.getRuntime().availableProcessors()));
+    try {
+      for (int termCount : new int[] { 2000, 50000, SAMPLED_TERMS }) {
+        long[] fp = randomFingerprints(termCount, r);
+        // Without hints, and with the ks of a merge's sources
+        int[][] hints = { null, { ParameterAnalyzer.K_CHOICES[r.nextInt(
+            ParameterAnalyzer.K_CHOICES.length)] } };
+        for (int[] hintKs : hints) {
+          int maxCandidates = 1 + r.nextInt(40);
+          ParameterAnalyzer expected = new ParameterAnalyzer(fp, hintKs, 2, maxCandidates, 0,
+              InfoStream.NO_OUTPUT, singleThread);
+          ParameterAnalyzer actual = new ParameterAnalyzer(fp, hintKs, 2, maxCandidates, 0,
+              InfoStream.NO_OUTPUT, manyThreads);
+          String message = termCount + " terms, maxCandidates " + maxCandidates;
+          Assert.assertThat(message, actual.capacity, is(expected.capacity));
+          Assert.assertThat(message, actual.k, is(expected.k));
+          Assert.assertThat(message, actual.fingerprintSizeBytes,
+              is(expected.fingerprintSizeBytes));
+        }
+      }
+    } finally {
+      singleThread.shutdown();
+      manyThreads.shutdown();
+    }
+  }
+
+  @Test
+  public void testSampledAnalysisIsBoundByMaxCandidates() {
+    Random r = TermMapTestUtil.newRandom();
+    long[] fp = randomFingerprints(SAMPLED_TERMS + r.nextInt(1000), r);
+    int maxCandidates = 1 + r.nextInt(4);
+    int totalPairs = Primes.next20Primes(fp.length).length
+        * ParameterAnalyzer.K_CHOICES.length;
+
+    List<int[]> bounded = new ArrayList<>();
+    ParameterAnalyzer analyzer = new ParameterAnalyzer(fp, null, 0, maxCandidates, 0,
+        new VerifiedCandidates(bounded), ParameterAnalyzer.sharedPool());
+    assertValid(analyzer, fp);
+    // Once a candidate was valid, no more than maxCandidates were taken
+    Assert.assertThat(bounded.isEmpty(), is(false));
+    int firstValid = bounded.get(0)[0];
+    for (int[] candidate : bounded) {
+      Assert.assertThat(candidate[0] + " " + maxCandidates,
+          candidate[0] <= Math.max(firstValid, maxCandidates), is(true));
+    }
+    assertChosenFrom(analyzer, bounded);
+
+    // Without the bound the analysis goes through the whole grid, unless it
+    // finds 1 byte fingerprints, and can only do better
+    List<int[]> unbounded = new ArrayList<>();
+    ParameterAnalyzer best = new ParameterAnalyzer(fp, null, 0, totalPairs, 0,
+        new VerifiedCandidates(unbounded), ParameterAnalyzer.sharedPool());
+    assertValid(best, fp);
+    assertChosenFrom(best, unbounded);
+    if (best.fingerprintSizeBytes > 1) {
+      Assert.assertThat(unbounded.size() > bounded.size(), is(true));
+    }
+    Assert.assertThat(best.fingerprintSizeBytes <= analyzer.fingerprintSizeBytes, is(true));
+  }
+
+  private static long[] randomFingerprints(int termCount, Random r) {
+    long[] fp = new long[termCount];
+    for (int i = 0; i < termCount; ++i) {
+      fp[i] = r.nextLong();
+    }
+    return fp;
+  }
+
+  // The pair keeps probes short, and its fingerprints are no wider than they
+  // have to be to tell keys with the same hashcode apart
+  private static void assertValid(ParameterAnalyzer analyzer, long[] fp) {
+    int[] slots = new int[analyzer.capacity];
+    byte[] dists = new byte[analyzer.capacity];
+    String pair = "(" + analyzer.capacity + "," + analyzer.k + ")";
+    Assert.assertThat(pair, analyzer.capacity >= fp.length, is(true));
+    Assert.assertThat(pair, ParameterAnalyzer.analyzeParameters(analyzer.capacity, analyzer.k,
+        slots, dists, fp, analyzer.fingerprintSizeBytes) >= 0, is(true));
+    if (analyzer.fingerprintSizeBytes > 1) {
+      Assert.assertThat(pair, ParameterAnalyzer.analyzeParameters(analyzer.capacity,
+          analyzer.k, slots, dists, fp, analyzer.fingerprintSizeBytes - 1), is(-1.0));
+    }
+  }
+
+  private static void assertChosenFrom(ParameterAnalyzer analyzer, List<int[]> verified) {
+    boolean found = false;
+    for (int[] candidate : verified) {
+      found |= candidate[1] == analyzer.capacity && candidate[2] == analyzer.k;
+    }
+    Assert.assertThat("(" + analyzer.capacity + "," + analyzer.k + ")", found, is(true));
+  }
+
+  // Collects the position, capacity and k of every valid candidate the
+  // analysis logs
+  private static final class VerifiedCandidates extends InfoStream {
+    private final List<int[]> candidates;
+
+    VerifiedCandidates(List<int[]> candidates) {
+      this.candidates = candidates;
+    }
+
+    @Override
+    public void message(String component, String message) {
+      Matcher matcher = VERIFIED.matcher(message);
+      if (matcher.find()) {
+        candidates.add(new int[] { Integer.parseInt(matcher.group(1)),
+            Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3)) });
+      }
+    }
+
+    @Override
+    public boolean isEnabled(String component) {
+      return component.equals(ParameterAnalyzer.INFO_STREAM_COMPONENT);
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
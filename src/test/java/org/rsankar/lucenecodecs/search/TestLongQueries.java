@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.rsankar.lucenecodecs.search;
+
+import static org.hamcrest.core.Is.is;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.rsankar.lucenecodecs.field.IndexedLongField;
+import org.rsankar.lucenecodecs.mapcodec.MapCodecTestUtil;
+import org.rsankar.lucenecodecs.mapcodec.MapFieldsReader.MapTerms;
+import org.rsankar.lucenecodecs.termmap.TermMapTestUtil;
+
+/**
+ * Runs LongExactQuery and LongSetQuery on map fields of every layout, for
+ * keys the index has and for absent keys that collide with them: on a
+ * ROBIN_HOOD field without full fingerprints, each absent key has the same
+ * hashcode and low fingerprint bytes as a present one, so the map finds a slot
+ * for it and only the query's verification of its hits keeps it from matching.
+ */
+public class TestLongQueries {
+  static final String[] ID_FIELDS = { "id.ROBIN_HOOD", "id.ROBIN_HOOD.full", "id.PERFECT_HASH",
+      "id.BUCKETIZED.skip", "id.SORTED_ARRAY", "id.ROBIN_HOOD.dict" };
+
+  static final int NUM_KEYS = 5000;
+  static final int NUM_SEGMENTS = 3;
+  static final int NUM_QUERIES = 200;
+
+  @Rule
+  public final TestRule reportSeed = TermMapTestUtil.reportSeed();
+
+  @Test
+  public void testLongExactQuery() throws IOException {
+    Random r = TermMapTestUtil.newRandom();
+    try (Keys keys = new Keys(r)) {
+      for (String field : ID_FIELDS) {
+        for (int i = 0; i < NUM_QUERIES; ++i) {
+          int key = r.nextInt(NUM_KEYS);
+          Assert.assertThat(field, keys.searcher.count(new LongExactQuery(field, keys.keys[key])),
+              is(1));
+          Assert.assertThat(field,
+              keys.searcher.count(new LongExactQuery(field, keys.absentKey(field, key))), is(0));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testLongSetQuery() throws IOException {
+    Random r = TermMapTestUtil.newRandom();
+    try (Keys keys = new Keys(r)) {
+      for (String field : ID_FIELDS) {
+        for (int i = 0; i < NUM_QUERIES / 10; ++i) {
+          // Both sides of the rewrite to LongExactQuerys, and sets with more
+          // colliding keys than present ones
+          int numValues = i % 2 == 0 ? 1 + r.nextInt(LongSetQuery.BOOLEAN_REWRITE_THRESHOLD)
+              : LongSetQuery.BOOLEAN_REWRITE_THRESHOLD + 1 + r.nextInt(100);
+          long[] values = new long[numValues];
+          Set<Integer> present = new HashSet<>();
+          for (int v = 0; v < numValues; ++v) {
+            int key = r.nextInt(NUM_KEYS);
+            if (r.nextInt(3) == 0) {
+              values[v] = keys.keys[key];
+              present.add(key);
+            } else {
+              values[v] = keys.absentKey(field, key);
+            }
+          }
+          Assert.assertThat(field + " " + numValues,
+              keys.searcher.count(new LongSetQuery(field, values)), is(present.size()));
+        }
+      }
+    }
+  }
+
+  /** Keys indexed one per doc, and absent keys that collide with them. */
+  private static class Keys implements AutoCloseable {
+    final long[] keys = new long[NUM_KEYS];
+    // Per field, the absent key colliding with each key in its segment
+    final long[][] absentKeys = new long[ID_FIELDS.length][NUM_KEYS];
+    final Directory dir = new ByteBuffersDirectory();
+    final DirectoryReader reader;
+    final IndexSearcher searcher;
+
+    Keys(Random r) throws IOException {
+      Set<Long> seen = new HashSet<>();
+      for (int i = 0; i < NUM_KEYS; ++i) {
+        do {
+          keys[i] = r.nextLong();
+        } while (!seen.add(keys[i]));
+      }
+      try (IndexWriter writer = new IndexWriter(dir, MapCodecTestUtil
+          .newConfig(MapCodecTestUtil.mapFormat(), NUM_KEYS / NUM_SEGMENTS + 1))) {
+        for (long key : keys) {
+          Document doc = new Document();
+          for (String field : ID_FIELDS) {
+            doc.add(new IndexedLongField(field, key, Field.Store.NO));
+          }
+          writer.addDocument(doc);
+        }
+      }
+      reader = DirectoryReader.open(dir);
+      searcher = new IndexSearcher(reader);
+      // Cached queries wouldn't reach the maps
+      searcher.setQueryCache(null);
+      for (LeafReaderContext context : reader.leaves()) {
+        for (int f = 0; f < ID_FIELDS.length; ++f) {
+          MapTerms terms = (MapTerms) context.reader().terms(ID_FIELDS[f]);
+          for (int doc = 0; doc < context.reader().maxDoc(); ++doc) {
+            int i = context.docBase + doc;
+            long absentKey = MapCodecTestUtil.absentKey(terms, keys[i], seen, r);
+            seen.add(absentKey);
+            absentKeys[f][i] = absentKey;
+            if (terms.hasExactLookups() == false) {
+              Assert.assertThat(ID_FIELDS[f],
+                  terms.iterator(null).seekExactFingerprint(absentKey), is(true));
+            }
+          }
+        }
+      }
+    }
+
+    long absentKey(String field, int key) {
+      for (int f = 0; f < ID_FIELDS.length; ++f) {
+        if (ID_FIELDS[f].equals(field)) {
+          return absentKeys[f][key];
+        }
+      }
+      throw new IllegalArgumentException(field);
+    }
+
+    @Override
+    public void close() throws IOException {
+      reader.close();
+      dir.close();
+    }
+  }
+}
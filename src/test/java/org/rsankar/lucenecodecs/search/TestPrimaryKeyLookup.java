@@ -0,0 +1,416 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.search;
+
+import static org.hamcrest.core.Is.is;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.ExitableDirectoryReader;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.automaton.Automata;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.rsankar.lucenecodecs.field.IndexedLongField;
+import org.rsankar.lucenecodecs.mapcodec.MapCodecTestUtil;
+import org.rsankar.lucenecodecs.mapcodec.MapFieldsReader.MapTerms;
+import org.rsankar.lucenecodecs.mapcodec.MapFieldsReader.MapTermsEnum;
+import org.rsankar.lucenecodecs.mapcodec.MapTestFormat;
+import org.rsankar.lucenecodecs.termmap.TermMapTestUtil;
+
+/**
+ * Runs the same random updateDocument and deleteDocuments calls against a map
+ * index and a Lucene50 one, and checks that PrimaryKeyLookup finds the same
+ * versions in both after every reopen. Every doc has its key in one field per
+ * map layout, and each call goes through a random one of them, so a false
+ * positive of any layout, when IndexWriter applies deletes or in a lookup,
+ * shows up as a difference.
+ */
+public class TestPrimaryKeyLookup {
+  // ROBIN_HOOD without full fingerprints is the only layout with inexact
+  // lookups, so it relies on hits being verified
+  static final String[] ID_FIELDS = { "id.ROBIN_HOOD", "id.ROBIN_HOOD.full", "id.PERFECT_HASH",
+      "id.BUCKETIZED.skip", "id.SORTED_ARRAY", "id.BUCKETIZED.dict" };
+  static final String VERSION_FIELD = "version";
+
+  static final int NUM_KEYS = 2000;
+  static final int NUM_OPS = 6000;
+  static final int REOPEN_EVERY = 500;
+
+  @Rule
+  public final TestRule reportSeed = TermMapTestUtil.reportSeed();
+
+  @Test
+  public void testUpdatesMatchLucene50() throws IOException {
+    Random r = TermMapTestUtil.newRandom();
+    // Absent keys are deleted too, which only deletes docs if a lookup gives
+    // a false positive
+    long[] keys = new long[NUM_KEYS];
+    long[] absentKeys = new long[NUM_KEYS];
+    Set<Long> seen = new HashSet<>();
+    for (int i = 0; i < NUM_KEYS; ++i) {
+      do {
+        keys[i] = r.nextLong();
+      } while (!seen.add(keys[i]));
+      do {
+        absentKeys[i] = r.nextLong();
+      } while (!seen.add(absentKeys[i]));
+    }
+
+    int maxBufferedDocs = 100 + r.nextInt(200);
+    Directory mapDir = new ByteBuffersDirectory();
+    Directory defaultDir = new ByteBuffersDirectory();
+    IndexWriter mapWriter = new IndexWriter(mapDir,
+        MapCodecTestUtil.newConfig(MapCodecTestUtil.mapFormat(), maxBufferedDocs));
+    IndexWriter defaultWriter = new IndexWriter(defaultDir,
+        MapCodecTestUtil.newConfig(MapCodecTestUtil.defaultFormat(), maxBufferedDocs));
+    try {
+      for (int op = 0; op < NUM_OPS; ++op) {
+        String field = ID_FIELDS[r.nextInt(ID_FIELDS.length)];
+        int choice = r.nextInt(10);
+        if (choice < 6) {
+          long key = keys[r.nextInt(NUM_KEYS)];
+          Term term = new Term(field, IndexedLongField.longToBytesRef(key));
+          mapWriter.updateDocument(term, doc(key, op));
+          defaultWriter.updateDocument(term, doc(key, op));
+        } else {
+          long key = choice < 8 ? keys[r.nextInt(NUM_KEYS)] : absentKeys[r.nextInt(NUM_KEYS)];
+          Term term = new Term(field, IndexedLongField.longToBytesRef(key));
+          mapWriter.deleteDocuments(term);
+          defaultWriter.deleteDocuments(term);
+        }
+        if ((op + 1) % REOPEN_EVERY == 0) {
+          checkSameVersions(mapWriter, defaultWriter, keys, absentKeys);
+        }
+      }
+      mapWriter.forceMerge(1);
+      defaultWriter.forceMerge(1);
+      checkSameVersions(mapWriter, defaultWriter, keys, absentKeys);
+    } finally {
+      IOUtils.close(mapWriter, defaultWriter, mapDir, defaultDir);
+    }
+  }
+
+  private static Document doc(long key, long version) {
+    Document doc = new Document();
+    for (String field : ID_FIELDS) {
+      doc.add(new IndexedLongField(field, key, Field.Store.NO));
+    }
+    doc.add(new NumericDocValuesField(VERSION_FIELD, version));
+    return doc;
+  }
+
+  private static void checkSameVersions(IndexWriter mapWriter, IndexWriter defaultWriter,
+      long[] keys, long[] absentKeys) throws IOException {
+    try (DirectoryReader mapReader = DirectoryReader.open(mapWriter);
+        DirectoryReader defaultReader = DirectoryReader.open(defaultWriter)) {
+      checkSameVersions(mapReader, defaultReader, keys, absentKeys);
+    }
+  }
+
+  private static void checkSameVersions(DirectoryReader mapReader, DirectoryReader defaultReader,
+      long[] keys, long[] absentKeys) throws IOException {
+    Assert.assertThat(mapReader.numDocs(), is(defaultReader.numDocs()));
+    IndexSearcher mapSearcher = new IndexSearcher(mapReader);
+    IndexSearcher defaultSearcher = new IndexSearcher(defaultReader);
+    for (String field : ID_FIELDS) {
+      PrimaryKeyLookup mapLookup = new PrimaryKeyLookup(mapReader, field, VERSION_FIELD);
+      PrimaryKeyLookup defaultLookup = new PrimaryKeyLookup(defaultReader, field,
+          VERSION_FIELD);
+      for (long[] lookedUp : new long[][] { keys, absentKeys }) {
+        for (long key : lookedUp) {
+          boolean found = defaultLookup.lookup(key) != -1;
+          Assert.assertThat(field + " " + key, mapLookup.lookup(key) != -1, is(found));
+          Assert.assertThat(field + " " + key, mapLookup.getVersion(),
+              is(defaultLookup.getVersion()));
+        }
+
+        int[] mapDocs = new int[lookedUp.length];
+        long[] mapVersions = new long[lookedUp.length];
+        int[] defaultDocs = new int[lookedUp.length];
+        long[] defaultVersions = new long[lookedUp.length];
+        Assert.assertThat(field,
+            mapLookup.lookup(lookedUp, lookedUp.length, mapDocs, mapVersions),
+            is(defaultLookup.lookup(lookedUp, lookedUp.length, defaultDocs, defaultVersions)));
+        Assert.assertArrayEquals(field, defaultVersions, mapVersions);
+      }
+
+      for (int i = 0; i < 100; ++i) {
+        TermQuery query = new TermQuery(
+            new Term(field, IndexedLongField.longToBytesRef(absentKeys[i])));
+        Assert.assertThat(field, mapSearcher.count(query), is(0));
+        query = new TermQuery(new Term(field, IndexedLongField.longToBytesRef(keys[i])));
+        Assert.assertThat(field, mapSearcher.count(query), is(defaultSearcher.count(query)));
+      }
+    }
+  }
+
+  /**
+   * Updates and deletes through a format that hides the map's terms behind
+   * Lucene's filter wrappers, so IndexWriter applies deleted terms through a
+   * FilterTermsEnum, and lookups through an ExitableDirectoryReader. The
+   * absent keys deleted on a ROBIN_HOOD field collide with present ones, so
+   * applying them deletes docs unless every hit is verified.
+   */
+  @Test
+  public void testUpdatesThroughWrappedTerms() throws IOException {
+    Random r = TermMapTestUtil.newRandom();
+    long[] keys = new long[NUM_KEYS];
+    long[] absentKeys = new long[NUM_KEYS];
+    Set<Long> seen = new HashSet<>();
+    for (int i = 0; i < NUM_KEYS; ++i) {
+      do {
+        keys[i] = r.nextLong();
+      } while (!seen.add(keys[i]));
+      do {
+        absentKeys[i] = r.nextLong();
+      } while (!seen.add(absentKeys[i]));
+    }
+
+    Directory mapDir = new ByteBuffersDirectory();
+    Directory defaultDir = new ByteBuffersDirectory();
+    IndexWriter mapWriter = new IndexWriter(mapDir,
+        MapCodecTestUtil.newConfig(new MapTestFormat.Wrapped(), NUM_KEYS));
+    IndexWriter defaultWriter = new IndexWriter(defaultDir,
+        MapCodecTestUtil.newConfig(MapCodecTestUtil.defaultFormat(), NUM_KEYS));
+    try {
+      for (long key : keys) {
+        mapWriter.addDocument(doc(key, 0));
+        defaultWriter.addDocument(doc(key, 0));
+      }
+      List<Term> deletes = new ArrayList<>();
+      try (DirectoryReader reader = DirectoryReader.open(mapWriter)) {
+        LeafReaderContext context = reader.leaves().get(0);
+        for (String field : ID_FIELDS) {
+          Terms terms = context.reader().terms(field);
+          Assert.assertThat(field, terms instanceof MapTestFormat.WrappedTerms, is(true));
+          MapTerms mapTerms = (MapTerms) ((MapTestFormat.WrappedTerms) terms).getDelegate();
+          MapTermsEnum mapEnum = mapTerms.iterator(null);
+          for (int i = 0; i < 100; ++i) {
+            long key = MapCodecTestUtil.absentKey(mapTerms, keys[i], seen, r);
+            BytesRef term = IndexedLongField.longToBytesRef(key);
+            // Unverified, the map finds a term for every colliding key
+            if (mapTerms.hasExactLookups() == false) {
+              Assert.assertThat(field + " " + key,
+                  mapEnum.seekExactFingerprint(IndexedLongField.BytesRefToLong(term)), is(true));
+            }
+            deletes.add(new Term(field, term));
+          }
+        }
+      }
+
+      for (Term term : deletes) {
+        mapWriter.deleteDocuments(term);
+        defaultWriter.deleteDocuments(term);
+      }
+      for (int op = 0; op < NUM_KEYS; ++op) {
+        String field = ID_FIELDS[r.nextInt(ID_FIELDS.length)];
+        long key = keys[r.nextInt(NUM_KEYS)];
+        Term term = new Term(field, IndexedLongField.longToBytesRef(key));
+        if (r.nextInt(4) == 0) {
+          mapWriter.deleteDocuments(term);
+          defaultWriter.deleteDocuments(term);
+        } else {
+          mapWriter.updateDocument(term, doc(key, op + 1));
+          defaultWriter.updateDocument(term, doc(key, op + 1));
+        }
+      }
+
+      try (DirectoryReader mapReader =
+          ExitableDirectoryReader.wrap(DirectoryReader.open(mapWriter), () -> false);
+          DirectoryReader defaultReader = DirectoryReader.open(defaultWriter)) {
+        checkSameVersions(mapReader, defaultReader, keys, absentKeys);
+      }
+    } finally {
+      IOUtils.close(mapWriter, defaultWriter, mapDir, defaultDir);
+    }
+  }
+
+  /**
+   * Walks sorted terms through an ExitableDirectoryReader's enums the way
+   * IndexWriter applies deleted terms, with next() and then seekCeil() on each
+   * term, and checks that every layout finds the docs Lucene50 does, for
+   * present keys and colliding absent ones alike.
+   */
+  @Test
+  public void testSortedWalkThroughWrappedReader() throws IOException {
+    Random r = TermMapTestUtil.newRandom();
+    long[] keys = new long[NUM_KEYS];
+    Set<Long> seen = new HashSet<>();
+    for (int i = 0; i < NUM_KEYS; ++i) {
+      do {
+        keys[i] = r.nextLong();
+      } while (!seen.add(keys[i]));
+    }
+
+    Directory mapDir = new ByteBuffersDirectory();
+    Directory defaultDir = new ByteBuffersDirectory();
+    try {
+      for (Directory dir : new Directory[] { mapDir, defaultDir }) {
+        PostingsFormat format = dir == mapDir ? MapCodecTestUtil.mapFormat()
+            : MapCodecTestUtil.defaultFormat();
+        try (IndexWriter writer = new IndexWriter(dir,
+            MapCodecTestUtil.newConfig(format, NUM_KEYS))) {
+          for (int i = 0; i < NUM_KEYS; ++i) {
+            writer.addDocument(doc(keys[i], i));
+          }
+        }
+      }
+      try (DirectoryReader mapReader =
+          ExitableDirectoryReader.wrap(DirectoryReader.open(mapDir), () -> false);
+          DirectoryReader defaultReader = DirectoryReader.open(defaultDir)) {
+        LeafReaderContext mapContext = mapReader.leaves().get(0);
+        LeafReaderContext defaultContext = defaultReader.leaves().get(0);
+        for (String field : ID_FIELDS) {
+          Terms terms = mapContext.reader().terms(field);
+          Assert.assertThat(field, terms instanceof MapTerms, is(false));
+          MapTerms mapTerms = (MapTerms) FilterLeafReader.unwrap(mapContext.reader())
+              .terms(field);
+          List<BytesRef> walked = new ArrayList<>();
+          for (int i = 0; i < 200; ++i) {
+            walked.add(IndexedLongField.longToBytesRef(keys[r.nextInt(NUM_KEYS)]));
+            walked.add(IndexedLongField.longToBytesRef(
+                MapCodecTestUtil.absentKey(mapTerms, keys[r.nextInt(NUM_KEYS)], seen, r)));
+          }
+          walked.sort(null);
+          Assert.assertThat(field, walkedDocs(terms, walked),
+              is(walkedDocs(defaultContext.reader().terms(field), walked)));
+        }
+      }
+    } finally {
+      IOUtils.close(mapDir, defaultDir);
+    }
+  }
+
+  // The docs of the sorted terms, found as FrozenBufferedUpdates does when it
+  // applies deleted terms to a segment
+  private static List<Integer> walkedDocs(Terms terms, List<BytesRef> sortedTerms)
+      throws IOException {
+    List<Integer> docs = new ArrayList<>();
+    TermsEnum termsEnum = terms.iterator();
+    BytesRef readerTerm = termsEnum.next();
+    for (BytesRef term : sortedTerms) {
+      if (termsEnum == null) {
+        break;
+      }
+      int cmp = readerTerm == null ? 1 : term.compareTo(readerTerm);
+      if (cmp < 0) {
+        continue;
+      }
+      if (cmp > 0) {
+        TermsEnum.SeekStatus status = termsEnum.seekCeil(term);
+        if (status == TermsEnum.SeekStatus.END) {
+          termsEnum = null;
+          continue;
+        }
+        readerTerm = BytesRef.deepCopyOf(termsEnum.term());
+        if (status == TermsEnum.SeekStatus.NOT_FOUND) {
+          continue;
+        }
+      }
+      PostingsEnum postings = termsEnum.postings(null, PostingsEnum.NONE);
+      for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS;
+          doc = postings.nextDoc()) {
+        docs.add(doc);
+      }
+    }
+    return docs;
+  }
+
+  @Test
+  public void testMapTermsAreNotOrdered() throws IOException {
+    Directory dir = new ByteBuffersDirectory();
+    try (IndexWriter writer = new IndexWriter(dir,
+        MapCodecTestUtil.newConfig(MapCodecTestUtil.mapFormat(), 1000))) {
+      for (int i = 0; i < 10; ++i) {
+        writer.addDocument(doc(i, i));
+      }
+    }
+    try (DirectoryReader reader = DirectoryReader.open(dir)) {
+      LeafReaderContext context = reader.leaves().get(0);
+      for (String field : ID_FIELDS) {
+        Terms terms = context.reader().terms(field);
+        Assert.assertThat(terms instanceof MapTerms, is(true));
+        Assert.assertThat(field, ((MapTerms) terms).hasExactLookups(),
+            is(field.equals("id.ROBIN_HOOD") == false));
+        TermsEnum termsEnum = terms.iterator();
+        if (((MapTerms) terms).hasTermsDictionary()) {
+          Assert.assertThat(termsEnum.next(), is(IndexedLongField.longToBytesRef(0)));
+          Assert.assertThat(termsEnum.seekCeil(IndexedLongField.longToBytesRef(-1)),
+              is(TermsEnum.SeekStatus.END));
+          continue;
+        }
+        // Terms can only be walked in the order of sorted lookups: next() on a
+        // new enum gives the empty term, a bound below every term, and seekCeil()
+        // is an exact lookup
+        Assert.assertThat(termsEnum.next(), is(new BytesRef()));
+        try {
+          termsEnum.next();
+          Assert.fail(field + ": next() should throw");
+        } catch (UnsupportedOperationException expected) {
+        }
+        Assert.assertThat(termsEnum.seekCeil(IndexedLongField.longToBytesRef(3)),
+            is(TermsEnum.SeekStatus.FOUND));
+        Assert.assertThat(termsEnum.docFreq(), is(1));
+        BytesRef absent = IndexedLongField.longToBytesRef(42);
+        Assert.assertThat(termsEnum.seekCeil(absent), is(TermsEnum.SeekStatus.NOT_FOUND));
+        Assert.assertThat(termsEnum.term(), is(absent));
+        Assert.assertThat(termsEnum.postings(null).nextDoc(), is(DocIdSetIterator.NO_MORE_DOCS));
+        try {
+          terms.intersect(new CompiledAutomaton(Automata.makeAnyString()), null);
+          Assert.fail(field + ": intersect() should throw");
+        } catch (UnsupportedOperationException expected) {
+        }
+        Assert.assertThat(termsEnum.seekExact(IndexedLongField.longToBytesRef(3)), is(true));
+      }
+    } finally {
+      dir.close();
+    }
+  }
+}
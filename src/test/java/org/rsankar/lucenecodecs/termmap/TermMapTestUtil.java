@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.termmap;
+
+import static org.hamcrest.core.Is.is;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.Assert;
+import org.junit.rules.TestRule;
+import org.junit.rules.TestWatcher;
+import org.junit.runner.Description;
+
+/**
+ * Fixtures shared by the term map tests. Their random keys and values come
+ * from one seed per run, printed when a test fails and set with
+ * -Dtests.seed=N to reproduce it. The codec tests use the same seed.
+ */
+public final class TermMapTestUtil {
+  public static final long SEED = Long.getLong("tests.seed", System.nanoTime());
+
+  private TermMapTestUtil() {
+  }
+
+  public static Random newRandom() {
+    return new Random(SEED);
+  }
+
+  /** A rule that prints the seed of the failed test's run. */
+  public static TestRule reportSeed() {
+    return new TestWatcher() {
+      @Override
+      protected void failed(Throwable e, Description description) {
+        System.err.println("NOTE: reproduce " + description.getDisplayName() + " with -Dtests.seed="
+            + SEED);
+      }
+    };
+  }
+
+  interface OpenedMapChecker {
+    /**
+     * Checks the map opened from the saved one, whose body (after the vint
+     * header) is bodyLength bytes.
+     */
+    void check(long bodyLength) throws IOException;
+  }
+
+  /**
+   * Saves the map, then opens its saved table with opened and runs the checker
+   * while the saved file is still open.
+   */
+  static void saveAndOpen(TermMapWriter map, TermMapReader opened, OpenedMapChecker checker)
+      throws IOException {
+    try (Directory dir = new ByteBuffersDirectory()) {
+      try (IndexOutput out = dir.createOutput("map", IOContext.DEFAULT)) {
+        map.save(out);
+      }
+      try (IndexInput in = dir.openInput("map", IOContext.DEFAULT)) {
+        int capacity = in.readVInt();
+        int hashcodeSizeBytes = in.readVInt();
+        int fingerprintSizeBytes = in.readVInt();
+        int valueSizeBytes = in.readVInt();
+        long bodyLength = in.length() - in.getFilePointer();
+        opened.open(capacity, hashcodeSizeBytes, fingerprintSizeBytes, valueSizeBytes,
+            in.randomAccessSlice(in.getFilePointer(), bodyLength));
+        checker.check(bodyLength);
+      }
+    }
+  }
+
+  /**
+   * Asserts that the map lists every key once, with the fingerprint it was put
+   * with, and nothing else.
+   */
+  static void assertListsAll(TermMapReader map, long[] keys, long[] values) throws IOException {
+    Map<Long, Long> listed = new HashMap<>();
+    map.forEach((fingerprint, value) -> Assert.assertNull(listed.put(fingerprint, value)));
+    Assert.assertThat(listed.size(), is(keys.length));
+    for (int i = 0; i < keys.length; ++i) {
+      Assert.assertThat(listed.get(keys[i]), is(values[i]));
+    }
+  }
+}
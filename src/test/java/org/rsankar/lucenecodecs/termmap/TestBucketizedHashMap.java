@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.termmap;
+
+import static org.hamcrest.core.Is.is;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+public class TestBucketizedHashMap {
+  final static int FINGERPRINT_SIZE_BYTES = 8;
+  final static int VALUE_SIZE_BYTES = 3;
+
+  @Rule
+  public final TestRule reportSeed = TermMapTestUtil.reportSeed();
+
+  @Test
+  public void testBHM() throws IOException {
+    long keys[] = { 0, 32, 2, 64, 96, 128, 1, 33, 34, 1000, 1001, 1002, 1003 };
+    long values[] = new long[keys.length];
+    Random r = TermMapTestUtil.newRandom();
+    for (int i = 0; i < keys.length; ++i) {
+      values[i] = r.nextInt(keys.length);
+    }
+    BucketizedHashMap map = new BucketizedHashMap();
+    map.create(keys.length, 0, FINGERPRINT_SIZE_BYTES, VALUE_SIZE_BYTES);
+    Assert.assertThat(map.getCapacity(), is(BucketizedHashMap.SLOTS_PER_BUCKET));
+    testKeysAndValues(map, keys, values);
+    Assert.assertThat(map.get(0, 3), is(-1L));
+    Assert.assertThat(map.get(0, -1), is(-1L));
+
+    testBHMWithParams(32, 32);
+    testBHMWithParams(64, 64);
+    testBHMWithParams(1000, 900);
+    testBHMWithParams(100000, 95000);
+  }
+
+  public void testBHMWithParams(int capacity, int numKeys) throws IOException {
+    long keys[] = new long[numKeys];
+    long values[] = new long[numKeys];
+    Random r = TermMapTestUtil.newRandom();
+    Set<Long> seen = new HashSet<>();
+    for (int i = 0; i < numKeys; ++i) {
+      do {
+        keys[i] = r.nextLong();
+      } while (!seen.add(keys[i]));
+      values[i] = r.nextInt(1 << 24);
+    }
+
+    BucketizedHashMap map = new BucketizedHashMap();
+    map.create(capacity, 0, FINGERPRINT_SIZE_BYTES, VALUE_SIZE_BYTES);
+    testKeysAndValues(map, keys, values);
+
+    for (int i = 0; i < 1000; ++i) {
+      long missing = r.nextLong();
+      if (!seen.contains(missing)) {
+        Assert.assertThat(map.get(0, missing), is(-1L));
+      }
+    }
+  }
+
+  public void testKeysAndValues(BucketizedHashMap map, long[] keys, long[] values)
+      throws IOException {
+    for (int i = 0; i < keys.length; ++i) {
+      map.put(0, keys[i], values[i]);
+    }
+
+    Assert.assertThat(map.get(0, keys[0]), is(values[0]));
+    // Replace key at index 0's value with 12
+    map.put(0, keys[0], 12);
+    values[0] = 12;
+
+    for (int i = 0; i < keys.length; ++i) {
+      Assert.assertThat(map.get(0, keys[i]), is(values[i]));
+    }
+  }
+
+  @Test
+  public void testWideValues() throws IOException {
+    // Values wider than an int, like pointers into a .fde section over 2GB
+    long values[] = { 1L << 32, (1L << 40) - 1, 5 };
+    BucketizedHashMap map = new BucketizedHashMap();
+    map.create(values.length, 0, FINGERPRINT_SIZE_BYTES, TermMapType.BUCKETIZED.valueSizeBytes(1L << 40));
+    for (int i = 0; i < values.length; ++i) {
+      map.put(0, i, values[i]);
+    }
+    for (int i = 0; i < values.length; ++i) {
+      Assert.assertThat(map.get(0, i), is(values[i]));
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testFullMap() throws IOException {
+    BucketizedHashMap map = new BucketizedHashMap();
+    map.create(BucketizedHashMap.SLOTS_PER_BUCKET, 0, FINGERPRINT_SIZE_BYTES,
+        VALUE_SIZE_BYTES);
+    for (int i = 0; i <= BucketizedHashMap.SLOTS_PER_BUCKET; ++i) {
+      map.put(0, i, i);
+    }
+  }
+
+  @Test
+  public void testOpenFromSavedMap() throws IOException {
+    int capacity = 60000;
+    int numKeys = 50000;
+    long keys[] = new long[numKeys];
+    long values[] = new long[numKeys];
+    Random r = TermMapTestUtil.newRandom();
+    for (int i = 0; i < numKeys; ++i) {
+      // Distinct, so the values don't depend on put order
+      keys[i] = i * 0x9E3779B97F4A7C15L;
+      values[i] = r.nextInt(1 << 24);
+    }
+
+    BucketizedHashMap map = new BucketizedHashMap();
+    map.create(capacity, 0, FINGERPRINT_SIZE_BYTES, VALUE_SIZE_BYTES);
+    testKeysAndValues(map, keys, values);
+
+    BucketizedHashMap opened = new BucketizedHashMap();
+    TermMapTestUtil.saveAndOpen(map, opened, bodyLength -> {
+      for (int i = 0; i < numKeys; ++i) {
+        Assert.assertThat(opened.get(0, keys[i]), is(values[i]));
+      }
+      Assert.assertThat(opened.get(0, 7), is(-1L));
+      TermMapTestUtil.assertListsAll(opened, keys, values);
+    });
+  }
+
+  @Test
+  public void testBucketFillsInSlotOrder() throws IOException {
+    // Every key of a one bucket map goes in the first empty slot, so the map
+    // lists them in the order they were put
+    int numKeys = BucketizedHashMap.SLOTS_PER_BUCKET - 3;
+    Random r = TermMapTestUtil.newRandom();
+    BucketizedHashMap map = new BucketizedHashMap();
+    map.create(BucketizedHashMap.SLOTS_PER_BUCKET, 0, FINGERPRINT_SIZE_BYTES,
+        VALUE_SIZE_BYTES);
+    List<Long> keys = new ArrayList<>();
+    for (int i = 0; i < numKeys; ++i) {
+      long key = r.nextLong();
+      if (keys.contains(key) == false) {
+        keys.add(key);
+        map.put(0, key, i);
+      }
+    }
+    List<Long> listed = new ArrayList<>();
+    map.forEach((fingerprint, value) -> listed.add(fingerprint));
+    Assert.assertEquals(keys, listed);
+  }
+
+  @Test
+  public void testBucketsAreCacheLineAligned() throws IOException {
+    int numKeys = 1000;
+    long keys[] = new long[numKeys];
+    long values[] = new long[numKeys];
+    Random r = TermMapTestUtil.newRandom();
+    for (int i = 0; i < numKeys; ++i) {
+      keys[i] = i * 0x9E3779B97F4A7C15L;
+      values[i] = r.nextInt(1 << 24);
+    }
+    BucketizedHashMap map = new BucketizedHashMap();
+    map.create(numKeys, 0, FINGERPRINT_SIZE_BYTES, VALUE_SIZE_BYTES);
+    testKeysAndValues(map, keys, values);
+
+    // Whatever was written to the file before the map
+    for (int offset = 0; offset < 2 * BucketizedHashMap.BUCKET_SIZE_BYTES; ++offset) {
+      try (Directory dir = new ByteBuffersDirectory()) {
+        try (IndexOutput out = dir.createOutput("map", IOContext.DEFAULT)) {
+          for (int i = 0; i < offset; ++i) {
+            out.writeByte((byte) r.nextInt());
+          }
+          map.save(out);
+        }
+        try (IndexInput in = dir.openInput("map", IOContext.DEFAULT)) {
+          in.seek(offset);
+          int capacity = in.readVInt();
+          int hashcodeSizeBytes = in.readVInt();
+          int fingerprintSizeBytes = in.readVInt();
+          int valueSizeBytes = in.readVInt();
+          long tableStart = in.getFilePointer();
+          int padding = in.readByte();
+          Assert.assertThat(padding < BucketizedHashMap.BUCKET_SIZE_BYTES, is(true));
+          Assert.assertThat((in.getFilePointer() + padding)
+              % BucketizedHashMap.BUCKET_SIZE_BYTES, is(0L));
+
+          BucketizedHashMap opened = new BucketizedHashMap();
+          opened.open(capacity, hashcodeSizeBytes, fingerprintSizeBytes, valueSizeBytes,
+              in.randomAccessSlice(tableStart, in.length() - tableStart));
+          for (int i = 0; i < numKeys; ++i) {
+            Assert.assertThat(opened.get(0, keys[i]), is(values[i]));
+          }
+          Assert.assertThat(opened.get(0, 7), is(-1L));
+          TermMapTestUtil.assertListsAll(opened, keys, values);
+        }
+      }
+    }
+  }
+}
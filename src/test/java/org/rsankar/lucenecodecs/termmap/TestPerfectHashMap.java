@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.termmap;
+
+import static org.hamcrest.core.Is.is;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.lucene.store.RandomAccessInput;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+public class TestPerfectHashMap {
+  final static int FINGERPRINT_SIZE_BYTES = 8;
+  final static int VALUE_SIZE_BYTES = 3;
+
+  @Rule
+  public final TestRule reportSeed = TermMapTestUtil.reportSeed();
+
+  @Test
+  public void testPHM() throws IOException {
+    long keys[] = { 0, 32, 2, 64, 96, 128, 1, 33, 34, 1000, 1001, 1002, 1003 };
+    long values[] = new long[keys.length];
+    Random r = TermMapTestUtil.newRandom();
+    for (int i = 0; i < keys.length; ++i) {
+      values[i] = r.nextInt(keys.length);
+    }
+    PerfectHashMap map = new PerfectHashMap();
+    map.create(keys.length, 0, FINGERPRINT_SIZE_BYTES, VALUE_SIZE_BYTES);
+    testKeysAndValues(map, keys, values);
+    Assert.assertThat(map.getCapacity(), is(keys.length));
+    Assert.assertThat(map.get(0, 3), is(-1L));
+    Assert.assertThat(map.get(0, -1), is(-1L));
+
+    testPHMWithKeys(1);
+    testPHMWithKeys(200);
+    testPHMWithKeys(1000);
+    testPHMWithKeys(100000);
+  }
+
+  public void testPHMWithKeys(int numKeys) throws IOException {
+    long keys[] = new long[numKeys];
+    long values[] = new long[numKeys];
+    Random r = TermMapTestUtil.newRandom();
+    Set<Long> seen = new HashSet<>();
+    for (int i = 0; i < numKeys; ++i) {
+      do {
+        keys[i] = r.nextLong();
+      } while (!seen.add(keys[i]));
+      values[i] = r.nextInt(1 << 24);
+    }
+
+    PerfectHashMap map = new PerfectHashMap();
+    // Start below the key count, the map has to grow
+    map.create(numKeys / 2, 0, FINGERPRINT_SIZE_BYTES, VALUE_SIZE_BYTES);
+    testKeysAndValues(map, keys, values);
+    Assert.assertThat(map.getCapacity(), is(numKeys));
+
+    for (int i = 0; i < 1000; ++i) {
+      long missing = r.nextLong();
+      if (!seen.contains(missing)) {
+        Assert.assertThat(map.get(0, missing), is(-1L));
+      }
+    }
+  }
+
+  public void testKeysAndValues(PerfectHashMap map, long[] keys, long[] values)
+      throws IOException {
+    for (int i = 0; i < keys.length; ++i) {
+      map.put(0, keys[i], values[i]);
+    }
+
+    Assert.assertThat(map.get(0, keys[0]), is(values[0]));
+    // Replace key at index 0's value with 12
+    map.put(0, keys[0], 12);
+    values[0] = 12;
+
+    for (int i = 0; i < keys.length; ++i) {
+      Assert.assertThat(map.get(0, keys[i]), is(values[i]));
+    }
+  }
+
+  @Test
+  public void testWideValues() throws IOException {
+    // Values wider than an int, like pointers into a .fde section over 2GB
+    long values[] = { 1L << 32, (1L << 40) - 1, 5 };
+    PerfectHashMap map = new PerfectHashMap();
+    map.create(values.length, 0, FINGERPRINT_SIZE_BYTES, TermMapType.PERFECT_HASH.valueSizeBytes(1L << 40));
+    for (int i = 0; i < values.length; ++i) {
+      map.put(0, i, values[i]);
+    }
+    for (int i = 0; i < values.length; ++i) {
+      Assert.assertThat(map.get(0, i), is(values[i]));
+    }
+  }
+
+  @Test
+  public void testShortFingerprints() throws IOException {
+    // Only the low byte of each fingerprint is kept to reject misses
+    PerfectHashMap map = new PerfectHashMap();
+    map.create(3, 0, 1, 1);
+    map.put(0, 0x100, 1);
+    map.put(0, 0x201, 2);
+    map.put(0, 0x302, 3);
+    Assert.assertThat(map.get(0, 0x100), is(1L));
+    Assert.assertThat(map.get(0, 0x201), is(2L));
+    Assert.assertThat(map.get(0, 0x302), is(3L));
+    Assert.assertThat(map.get(0, 0xff), is(-1L));
+  }
+
+  @Test
+  public void testOpenFromSavedMap() throws IOException {
+    int numKeys = 50000;
+    long keys[] = new long[numKeys];
+    long values[] = new long[numKeys];
+    Random r = TermMapTestUtil.newRandom();
+    for (int i = 0; i < numKeys; ++i) {
+      // Distinct, so the values don't depend on put order
+      keys[i] = i * 0x9E3779B97F4A7C15L;
+      values[i] = r.nextInt(1 << 24);
+    }
+
+    PerfectHashMap map = new PerfectHashMap();
+    map.create(numKeys, 0, FINGERPRINT_SIZE_BYTES, VALUE_SIZE_BYTES);
+    testKeysAndValues(map, keys, values);
+
+    PerfectHashMap opened = new PerfectHashMap();
+    TermMapTestUtil.saveAndOpen(map, opened, bodyLength -> {
+      // Apart from the slots, the structure should take a few bits per key
+      long slotBytes = (long) numKeys * (FINGERPRINT_SIZE_BYTES + VALUE_SIZE_BYTES);
+      Assert.assertTrue((bodyLength - slotBytes) * 8 < 5L * numKeys);
+
+      for (int i = 0; i < numKeys; ++i) {
+        Assert.assertThat(opened.get(0, keys[i]), is(values[i]));
+      }
+      Assert.assertThat(opened.get(0, 7), is(-1L));
+      TermMapTestUtil.assertListsAll(opened, keys, values);
+    });
+  }
+
+  @Test
+  public void testSlotsPast2GB() throws IOException {
+    // A map whose keys all went to the fallback array, generated on the fly
+    // rather than built: 2^28 sorted fallback keys take 2GB, so the slots start
+    // past 2^31 bytes and the last ones end past 2^32
+    int numKeys = (1 << 28) + 1;
+    int fingerprintSizeBytes = 8;
+    int valueSizeBytes = 8;
+    int slotSizeBytes = fingerprintSizeBytes + valueSizeBytes;
+    long fallbackPos = 3 * Integer.BYTES;
+    long slotsPos = fallbackPos + (long) numKeys * Long.BYTES;
+    RandomAccessInput input = new RandomAccessInput() {
+      @Override
+      public byte readByte(long pos) throws IOException {
+        // Only slots are read byte by byte
+        Assert.assertTrue(pos >= slotsPos);
+        long slot = (pos - slotsPos) / slotSizeBytes;
+        int offset = (int) ((pos - slotsPos) % slotSizeBytes);
+        long field = offset < fingerprintSizeBytes ? key(slot) : value(slot);
+        return (byte) (field >>> (56 - 8 * (offset % Long.BYTES)));
+      }
+
+      @Override
+      public short readShort(long pos) throws IOException {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public int readInt(long pos) throws IOException {
+        // numKeys, no levels, no rank samples, then numFallback
+        return pos == Integer.BYTES ? 0 : numKeys;
+      }
+
+      @Override
+      public long readLong(long pos) throws IOException {
+        return key((pos - fallbackPos) / Long.BYTES);
+      }
+
+      private long key(long i) {
+        return i * 3;
+      }
+
+      private long value(long i) {
+        return i * 7 + 1;
+      }
+    };
+
+    PerfectHashMap map = new PerfectHashMap();
+    map.open(numKeys, 0, fingerprintSizeBytes, valueSizeBytes, input);
+    for (long i : new long[] { 0, 1, (1L << 27) + 5, (Integer.MAX_VALUE / slotSizeBytes) + 1,
+        numKeys - 1 }) {
+      Assert.assertThat(map.get(0, i * 3), is(i * 7 + 1));
+      Assert.assertThat(map.get(0, i * 3 + 1), is(-1L));
+    }
+  }
+}
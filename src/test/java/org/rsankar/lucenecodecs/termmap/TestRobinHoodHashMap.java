@@ -24,21 +24,27 @@ package org.rsankar.lucenecodecs.termmap;
 
 import static org.hamcrest.core.Is.is;
 
+import java.io.IOException;
 import java.util.Random;
 
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TestRule;
 
 public class TestRobinHoodHashMap {
   final static int HASHCODE_SIZE_BYTES = 4;
   final static int FINGERPRINT_SIZE_BYTES = 8;
   final static int VALUE_SIZE_BYTES = 2;
 
+  @Rule
+  public final TestRule reportSeed = TermMapTestUtil.reportSeed();
+
   @Test
-  public void testRHHM() {
+  public void testRHHM() throws IOException {
     long keys[] = { 0, 32, 2, 64, 96, 128, 1, 33, 34, 1000, 1001, 1002, 1003 };
-    int values[] = new int[keys.length];
-    Random r = new Random();
+    long values[] = new long[keys.length];
+    Random r = TermMapTestUtil.newRandom();
     for (int i = 0; i < keys.length; ++i) {
       values[i] = r.nextInt(keys.length);
     }
@@ -49,14 +55,14 @@ public class TestRobinHoodHashMap {
     fullmap.create(keys.length, HASHCODE_SIZE_BYTES, FINGERPRINT_SIZE_BYTES, VALUE_SIZE_BYTES);
 
     testKeysAndValues(map, keys, values);
-    Assert.assertThat(map.get(1, 3), is(-1));
-    Assert.assertThat(map.get(2, 2), is(-1));
-    Assert.assertThat(map.get(3, 0), is(-1));
+    Assert.assertThat(map.get(1, 3), is(-1L));
+    Assert.assertThat(map.get(2, 2), is(-1L));
+    Assert.assertThat(map.get(3, 0), is(-1L));
 
     testKeysAndValues(fullmap, keys, values);
-    Assert.assertThat(fullmap.get(1, 3), is(-1));
-    Assert.assertThat(fullmap.get(2, 2), is(-1));
-    Assert.assertThat(fullmap.get(3, 0), is(-1));
+    Assert.assertThat(fullmap.get(1, 3), is(-1L));
+    Assert.assertThat(fullmap.get(2, 2), is(-1L));
+    Assert.assertThat(fullmap.get(3, 0), is(-1L));
 
     testRHHMWithParams(255, 200);
     testRHHMWithParams(300, 250);
@@ -66,10 +72,10 @@ public class TestRobinHoodHashMap {
     testRHHMWithParams(1000, 800);
   }
 
-  public void testRHHMWithParams(int capacity, int numKeys) {
+  public void testRHHMWithParams(int capacity, int numKeys) throws IOException {
     long keys[] = new long[numKeys];
-    int values[] = new int[numKeys];
-    Random r = new Random();
+    long values[] = new long[numKeys];
+    Random r = TermMapTestUtil.newRandom();
 
     for (int i = 0; i < numKeys; ++i) {
       keys[i] = r.nextLong();
@@ -82,7 +88,8 @@ public class TestRobinHoodHashMap {
     testKeysAndValues(map, keys, values);
   }
 
-  public void testKeysAndValues(RobinHoodHashMap map, long[] keys, int[] values) {
+  public void testKeysAndValues(RobinHoodHashMap map, long[] keys, long[] values)
+      throws IOException {
     int capacity = map.getCapacity();
 
     for (int i = 0; i < keys.length; ++i) {
@@ -106,6 +113,62 @@ public class TestRobinHoodHashMap {
     }
   }
 
+  @Test
+  public void testOpenFromSavedMap() throws IOException {
+    int capacity = 1000;
+    int numKeys = 800;
+    long keys[] = new long[numKeys];
+    long values[] = new long[numKeys];
+    Random r = TermMapTestUtil.newRandom();
+    for (int i = 0; i < numKeys; ++i) {
+      keys[i] = r.nextLong();
+      values[i] = r.nextInt(capacity);
+    }
+
+    RobinHoodHashMap map = new RobinHoodHashMap();
+    map.create(capacity, HASHCODE_SIZE_BYTES, FINGERPRINT_SIZE_BYTES, VALUE_SIZE_BYTES);
+    testKeysAndValues(map, keys, values);
+
+    RobinHoodHashMap opened = new RobinHoodHashMap();
+    TermMapTestUtil.saveAndOpen(map, opened, bodyLength -> {
+      for (int i = 0; i < numKeys; ++i) {
+        Assert.assertThat(opened.get(getHashcode(keys[i], capacity),
+            getFingerprint(keys[i], capacity)), is(values[i]));
+      }
+      // The slots keep whole fingerprints, so the map can list them
+      long fingerprints[] = new long[numKeys];
+      for (int i = 0; i < numKeys; ++i) {
+        fingerprints[i] = getFingerprint(keys[i], capacity);
+      }
+      TermMapTestUtil.assertListsAll(opened, fingerprints, values);
+    });
+  }
+
+  @Test
+  public void testWideValues() throws IOException {
+    // Values wider than an int, like pointers into a .fde section over 2GB
+    long values[] = { 1L << 32, (1L << 40) - 1, 5 };
+    RobinHoodHashMap map = new RobinHoodHashMap();
+    map.create(16, 1, 1, TermMapType.ROBIN_HOOD.valueSizeBytes(1L << 40));
+    for (int i = 0; i < values.length; ++i) {
+      map.put(i, i, values[i]);
+    }
+    for (int i = 0; i < values.length; ++i) {
+      Assert.assertThat(map.get(i, i), is(values[i]));
+    }
+  }
+
+  @Test
+  public void testFingerprintIsMasked() throws IOException {
+    // Only the low byte is stored, so callers can pass whole fingerprints
+    RobinHoodHashMap map = new RobinHoodHashMap();
+    map.create(16, 1, 1, VALUE_SIZE_BYTES);
+    map.put(3, 0x1234L, 7);
+    Assert.assertThat(map.get(3, 0x1234L), is(7L));
+    Assert.assertThat(map.get(3, 0x34L), is(7L));
+    Assert.assertThat(map.get(3, 0x1235L), is(-1L));
+  }
+
   static int getHashcode(long key, int capacity) {
     return (int) Math.abs(key % capacity);
   }
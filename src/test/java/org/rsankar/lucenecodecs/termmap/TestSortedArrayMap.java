@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.rsankar.lucenecodecs.termmap;
+
+import static org.hamcrest.core.Is.is;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+public class TestSortedArrayMap {
+  final static int FINGERPRINT_SIZE_BYTES = 8;
+  final static int VALUE_SIZE_BYTES = 3;
+
+  @Rule
+  public final TestRule reportSeed = TermMapTestUtil.reportSeed();
+
+  @Test
+  public void testSAM() throws IOException {
+    long keys[] = { 0, 32, 2, 64, 96, 128, 1, 33, 34, 1000, 1001, 1002, 1003, -1, Long.MIN_VALUE };
+    long values[] = new long[keys.length];
+    Random r = TermMapTestUtil.newRandom();
+    for (int i = 0; i < keys.length; ++i) {
+      values[i] = r.nextInt(keys.length);
+    }
+    SortedArrayMap map = new SortedArrayMap();
+    map.create(keys.length, 0, FINGERPRINT_SIZE_BYTES, VALUE_SIZE_BYTES);
+    testKeysAndValues(map, keys, values);
+    Assert.assertThat(map.getCapacity(), is(keys.length));
+    Assert.assertThat(map.get(0, 3), is(-1L));
+    Assert.assertThat(map.get(0, -2), is(-1L));
+
+    // Every tree shape, from a single node to a few full levels
+    for (int numKeys = 1; numKeys <= 70; ++numKeys) {
+      testSAMWithKeys(numKeys);
+    }
+    testSAMWithKeys(1000);
+    testSAMWithKeys(100000);
+  }
+
+  public void testSAMWithKeys(int numKeys) throws IOException {
+    long keys[] = new long[numKeys];
+    long values[] = new long[numKeys];
+    Random r = TermMapTestUtil.newRandom();
+    Set<Long> seen = new HashSet<>();
+    for (int i = 0; i < numKeys; ++i) {
+      do {
+        keys[i] = r.nextLong();
+      } while (!seen.add(keys[i]));
+      values[i] = r.nextInt(1 << 24);
+    }
+
+    SortedArrayMap map = new SortedArrayMap();
+    // Start below the key count, the map has to grow
+    map.create(numKeys / 2, 0, FINGERPRINT_SIZE_BYTES, VALUE_SIZE_BYTES);
+    testKeysAndValues(map, keys, values);
+    Assert.assertThat(map.getCapacity(), is(numKeys));
+
+    for (int i = 0; i < 1000; ++i) {
+      long missing = r.nextLong();
+      if (!seen.contains(missing)) {
+        Assert.assertThat(map.get(0, missing), is(-1L));
+      }
+    }
+  }
+
+  public void testKeysAndValues(SortedArrayMap map, long[] keys, long[] values)
+      throws IOException {
+    for (int i = 0; i < keys.length; ++i) {
+      map.put(0, keys[i], values[i]);
+    }
+
+    Assert.assertThat(map.get(0, keys[0]), is(values[0]));
+    // Replace key at index 0's value with 12
+    map.put(0, keys[0], 12);
+    values[0] = 12;
+
+    for (int i = 0; i < keys.length; ++i) {
+      Assert.assertThat(map.get(0, keys[i]), is(values[i]));
+    }
+  }
+
+  @Test
+  public void testWideValues() throws IOException {
+    // Values wider than an int, like pointers into a .fde section over 2GB
+    long values[] = { 1L << 32, (1L << 40) - 1, 5 };
+    SortedArrayMap map = new SortedArrayMap();
+    map.create(values.length, 0, FINGERPRINT_SIZE_BYTES, TermMapType.SORTED_ARRAY.valueSizeBytes(1L << 40));
+    for (int i = 0; i < values.length; ++i) {
+      map.put(0, i, values[i]);
+    }
+    for (int i = 0; i < values.length; ++i) {
+      Assert.assertThat(map.get(0, i), is(values[i]));
+    }
+  }
+
+  @Test
+  public void testShortFingerprints() throws IOException {
+    // Keys have to fit in the fingerprint bytes, so misses are still exact
+    SortedArrayMap map = new SortedArrayMap();
+    map.create(3, 0, 2, 1);
+    map.put(0, 0x100, 1);
+    map.put(0, 0x201, 2);
+    map.put(0, 0xffff, 3);
+    Assert.assertThat(map.get(0, 0x100), is(1L));
+    Assert.assertThat(map.get(0, 0x201), is(2L));
+    Assert.assertThat(map.get(0, 0xffff), is(3L));
+    Assert.assertThat(map.get(0, 0x10100), is(-1L));
+    Assert.assertThat(map.get(0, 0xff), is(-1L));
+    try {
+      map.put(0, 0x10000, 4);
+      Assert.fail("Fingerprint wider than 2 bytes was accepted");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testOpenFromSavedMap() throws IOException {
+    int numKeys = 50000;
+    long keys[] = new long[numKeys];
+    long values[] = new long[numKeys];
+    Random r = TermMapTestUtil.newRandom();
+    for (int i = 0; i < numKeys; ++i) {
+      // Distinct, so the values don't depend on put order
+      keys[i] = i * 0x9E3779B97F4A7C15L;
+      values[i] = r.nextInt(1 << 24);
+    }
+
+    SortedArrayMap map = new SortedArrayMap();
+    map.create(numKeys, 0, FINGERPRINT_SIZE_BYTES, VALUE_SIZE_BYTES);
+    testKeysAndValues(map, keys, values);
+
+    SortedArrayMap opened = new SortedArrayMap();
+    TermMapTestUtil.saveAndOpen(map, opened, bodyLength -> {
+      // Nothing but the slots is stored
+      Assert.assertThat(bodyLength,
+          is((long) numKeys * (FINGERPRINT_SIZE_BYTES + VALUE_SIZE_BYTES)));
+
+      for (int i = 0; i < numKeys; ++i) {
+        Assert.assertThat(opened.get(0, keys[i]), is(values[i]));
+      }
+      Assert.assertThat(opened.get(0, 7), is(-1L));
+      TermMapTestUtil.assertListsAll(opened, keys, values);
+    });
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2020 Rishi Sankar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.rsankar.lucenecodecs.termmap;
+
+import static org.hamcrest.core.Is.is;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+public class TestXorFilter {
+  @Rule
+  public final TestRule reportSeed = TermMapTestUtil.reportSeed();
+
+  @Test
+  public void testXorFilter() throws IOException {
+    testXorFilterWithKeys(0);
+    testXorFilterWithKeys(1);
+    testXorFilterWithKeys(10);
+    testXorFilterWithKeys(1000);
+    testXorFilterWithKeys(200000);
+  }
+
+  public void testXorFilterWithKeys(int numKeys) throws IOException {
+    long keys[] = new long[numKeys];
+    Random r = TermMapTestUtil.newRandom();
+    Set<Long> seen = new HashSet<>();
+    for (int i = 0; i < numKeys; ++i) {
+      keys[i] = r.nextLong();
+      seen.add(keys[i]);
+    }
+
+    XorFilter filter = XorFilter.build(keys, numKeys);
+    for (int i = 0; i < numKeys; ++i) {
+      Assert.assertTrue(filter.mightContain(keys[i]));
+    }
+
+    int falsePositives = 0;
+    for (int i = 0; i < 100000; ++i) {
+      long missing = r.nextLong();
+      if (!seen.contains(missing) && filter.mightContain(missing)) {
+        ++falsePositives;
+      }
+    }
+    // Expected 100000 / 256 = 390
+    Assert.assertTrue("false positives: " + falsePositives, falsePositives < 600);
+  }
+
+  @Test
+  public void testDuplicateKeys() {
+    long keys[] = { 5, 3, 5, 5, 3, 8 };
+    XorFilter filter = XorFilter.build(keys, keys.length);
+    for (long key : keys) {
+      Assert.assertTrue(filter.mightContain(key));
+    }
+  }
+
+  @Test
+  public void testOpenFromSavedFilter() throws IOException {
+    int numKeys = 50000;
+    long keys[] = new long[numKeys];
+    for (int i = 0; i < numKeys; ++i) {
+      keys[i] = i * 0x9E3779B97F4A7C15L;
+    }
+    XorFilter filter = XorFilter.build(keys, numKeys);
+
+    try (Directory dir = new ByteBuffersDirectory()) {
+      try (IndexOutput out = dir.createOutput("filter", IOContext.DEFAULT)) {
+        filter.save(out);
+      }
+      try (IndexInput in = dir.openInput("filter", IOContext.DEFAULT)) {
+        XorFilter opened = XorFilter.read(in);
+        Assert.assertThat(in.getFilePointer(), is(in.length()));
+        for (int i = 0; i < numKeys; ++i) {
+          Assert.assertTrue(opened.mightContain(keys[i]));
+        }
+        for (long key = 1; key < 100000; ++key) {
+          Assert.assertThat(opened.mightContain(key), is(filter.mightContain(key)));
+        }
+      }
+    }
+  }
+}